@@ -11,12 +11,16 @@ package org.dom4j.io;
 
 import org.dom4j.*;
 import org.jivesoftware.multiplexer.net.MXParser;
+import org.jivesoftware.multiplexer.net.PassthroughElement;
+import org.jivesoftware.util.CoarseClock;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.*;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * <p><code>XMPPPacketReader</code> is a Reader of DOM4J documents that
@@ -30,6 +34,27 @@ import java.net.URL;
  */
 public class XMPPPacketReader {
 
+    /**
+     * Names and namespaces that are common in the traffic with the server. Parsed names
+     * equal to these are replaced with the same String so all elements share them.
+     */
+    private static final Map<String, String> commonNames = new HashMap<String, String>();
+    /**
+     * Max number of QNames to keep in the cache of a reader.
+     */
+    private static final int MAX_CACHED_QNAMES = 512;
+
+    static {
+        String[] names = {"route", "iq", "message", "presence", "session", "body", "error",
+                "query", "status", "show", "priority", "thread", "subject", "x", "c", "delay",
+                "to", "from", "type", "id", "streamid", "xml:lang", "xmlns",
+                "jabber:client", "jabber:server", "jabber:connectionmanager",
+                "urn:ietf:params:xml:ns:xmpp-stanzas", "http://jabber.org/protocol/caps"};
+        for (String name : names) {
+            commonNames.put(name, name);
+        }
+    }
+
     /**
      * <code>DocumentFactory</code> used to create new document objects
      */
@@ -54,7 +79,30 @@ public class XMPPPacketReader {
      * Last time a full Document was read or a heartbeat was received. Hearbeats
      * are represented as whitespaces received while a Document is not being parsed.
      */
-    private long lastActive = System.currentTimeMillis();
+    private long lastActive = CoarseClock.currentTimeMillis();
+
+    /**
+     * Name of the root elements whose children are kept as text instead of being
+     * parsed into DOM elements.
+     */
+    private String passthroughParent;
+
+    /**
+     * QNames of elements read by this reader by namespace URI and name. Names and
+     * namespaces are repeated in most stanzas so they are created only once instead of
+     * looking them up in the synchronized caches of the DocumentFactory for every tag.
+     */
+    private final Map<String, Map<String, QName>> elementNames =
+            new HashMap<String, Map<String, QName>>();
+    /**
+     * QNames of attributes without prefix read by this reader by name.
+     */
+    private final Map<String, QName> attributeNames = new HashMap<String, QName>();
+    private int cachedQNames = 0;
+    /**
+     * Start tag being read. The tag is reused for all the read elements.
+     */
+    private final StartTag startTag = new StartTag();
 
 
     public XMPPPacketReader() {
@@ -215,6 +263,18 @@ public class XMPPPacketReader {
         this.xppFactory = xppFactory;
     }
 
+    /**
+     * Sets the name of the root elements whose children are not parsed into DOM elements.
+     * Each child element is returned as a {@link PassthroughElement} that keeps the XML
+     * text of the child and only exposes its name and attributes as DOM.
+     *
+     * @param elementName the name of the root elements whose children are kept as text
+     *        or <tt>null</tt> to parse all elements into DOM.
+     */
+    public void setPassthroughParent(String elementName) {
+        this.passthroughParent = elementName;
+    }
+
     /**
      * @return the <code>DocumentFactory</code> used to create document objects
      */
@@ -307,19 +367,106 @@ public class XMPPPacketReader {
     // Implementation methods
     //-------------------------------------------------------------------------
     public Document parseDocument() throws DocumentException, IOException, XmlPullParserException {
+        Document document = getDocumentFactory().createDocument();
+        parse(document, null, false);
+        return document;
+    }
+
+    /**
+     * Reads the next root element without creating a Document for it. Processing
+     * instructions and comments found outside of the root element are ignored.
+     *
+     * @return the read element or <tt>null</tt> if the end of the document was reached
+     *         before reading an element.
+     * @throws DocumentException if the read text is not a valid element.
+     * @throws IOException if an error occured while reading.
+     * @throws XmlPullParserException if an error occured while parsing.
+     */
+    public Element parseElement() throws DocumentException, IOException, XmlPullParserException {
+        return parse(null, null, false);
+    }
+
+    /**
+     * Continues reading a root element whose first tokens were already read by the caller,
+     * starting with the token where the parser is positioned. Callers that recognize some
+     * packets while streaming use this method to build the elements of packets that were
+     * not recognized.
+     *
+     * @param parent the innermost open element that was created by the caller or
+     *        <tt>null</tt> if the parser is positioned on the start tag of the root element.
+     * @return the root element of the read element or <tt>null</tt> if the end of the
+     *         document was reached before reading an element.
+     * @throws DocumentException if the read text is not a valid element.
+     * @throws IOException if an error occured while reading.
+     * @throws XmlPullParserException if an error occured while parsing.
+     */
+    public Element resumeElement(Element parent)
+            throws DocumentException, IOException, XmlPullParserException {
+        return parse(null, parent, true);
+    }
+
+    /**
+     * Records that a packet was read by a caller that did not use this reader to build it.
+     */
+    public void updateLastActive() {
+        lastActive = CoarseClock.currentTimeMillis();
+    }
+
+    /**
+     * Creates an element with the name, namespaces and attributes of the specified start tag.
+     *
+     * @param tag the start tag of the element.
+     * @return the new element.
+     */
+    public Element createElement(StartTag tag) {
         DocumentFactory df = getDocumentFactory();
-        Document document = df.createDocument();
-        Element parent = null;
-        XmlPullParser pp = getXPPParser();
+        Element element;
+        // Do not include the namespace if this is the start tag of a new packet
+        // This avoids including "jabber:client", "jabber:server" or
+        // "jabber:component:accept"
+        if ("jabber:connectionmanager".equals(tag.namespace)) {
+            element = df.createElement(getQName(tag.name, null, ""));
+        }
+        else {
+            element = df.createElement(getQName(tag.name, tag.prefix, tag.namespace));
+        }
+        for (int i = 0; i < tag.namespaceCount; i++) {
+            element.addNamespace(tag.namespacePrefixes[i], tag.namespaceURIs[i]);
+        }
+        for (int i = 0; i < tag.attributeCount; i++) {
+            String prefix = tag.attributePrefixes[i];
+            QName qa = (prefix == null) ? getAttributeQName(tag.attributeNames[i]) :
+                    df.createQName(tag.attributeNames[i], prefix, tag.attributeNamespaces[i]);
+            element.addAttribute(qa, tag.attributeValues[i]);
+        }
+        return element;
+    }
+
+    /**
+     * Reads the next root element and adds it to the specified document if any. If a
+     * parent is specified the reading continues inside the parent and the token where the
+     * parser is positioned is processed first when resuming.
+     */
+    private Element parse(Document document, Element parent, boolean resume)
+            throws DocumentException, IOException, XmlPullParserException {
+        Element root = null;
         int count = 0;
+        for (Element element = parent; element != null; element = element.getParent()) {
+            root = element;
+            count++;
+        }
+        XmlPullParser pp = getXPPParser();
         while (true) {
-            int type = -1;
-            type = pp.nextToken();
+            int type = resume ? pp.getEventType() : pp.nextToken();
+            resume = false;
             switch (type) {
                 case XmlPullParser.PROCESSING_INSTRUCTION: {
                     String text = pp.getText();
                     int loc = text.indexOf(" ");
-                    if (loc >= 0) {
+                    if (document == null) {
+                        // Ignore processing instructions when only the element is needed
+                    }
+                    else if (loc >= 0) {
                         document.addProcessingInstruction(text.substring(0, loc),
                                 text.substring(loc + 1));
                     }
@@ -332,7 +479,7 @@ public class XMPPPacketReader {
                     if (parent != null) {
                         parent.addComment(pp.getText());
                     }
-                    else {
+                    else if (document != null) {
                         document.addComment(pp.getText());
                     }
                     break;
@@ -363,37 +510,25 @@ public class XMPPPacketReader {
                     break;
                 }
                 case XmlPullParser.END_DOCUMENT: {
-                    return document;
+                    return root;
                 }
                 case XmlPullParser.START_TAG: {
-                    QName qname = (pp.getPrefix() == null) ? df.createQName(pp.getName(), pp.getNamespace()) : df.createQName(pp.getName(), pp.getPrefix(), pp.getNamespace());
-                    Element newElement = null;
-                    // Do not include the namespace if this is the start tag of a new packet
-                    // This avoids including "jabber:client", "jabber:server" or
-                    // "jabber:component:accept"
-                    if ("jabber:connectionmanager".equals(qname.getNamespaceURI())) {
-                        newElement = df.createElement(pp.getName());
-                    }
-                    else {
-                        newElement = df.createElement(qname);
-                    }
-                    int nsStart = pp.getNamespaceCount(pp.getDepth() - 1);
-                    int nsEnd = pp.getNamespaceCount(pp.getDepth());
-                    for (int i = nsStart; i < nsEnd; i++) {
-                        if (pp.getNamespacePrefix(i) != null) {
-                            newElement
-                                    .addNamespace(pp.getNamespacePrefix(i), pp.getNamespaceUri(i));
-                        }
-                    }
-                    for (int i = 0; i < pp.getAttributeCount(); i++) {
-                        QName qa = (pp.getAttributePrefix(i) == null) ? df.createQName(pp.getAttributeName(i)) : df.createQName(pp.getAttributeName(i), pp.getAttributePrefix(i), pp.getAttributeNamespace(i));
-                        newElement.addAttribute(qa, pp.getAttributeValue(i));
-                    }
+                    startTag.capture(pp);
+                    Element newElement = createElement(startTag);
                     if (parent != null) {
+                        if (count == 1 && passthroughParent != null &&
+                                passthroughParent.equals(parent.getName())) {
+                            // Keep the child as text. The parser is left on the end tag of the child
+                            parent.add(readPassthroughElement(pp, newElement));
+                            break;
+                        }
                         parent.add(newElement);
                     }
                     else {
-                        document.add(newElement);
+                        root = newElement;
+                        if (document != null) {
+                            document.add(newElement);
+                        }
                     }
                     parent = newElement;
                     count++;
@@ -406,8 +541,8 @@ public class XMPPPacketReader {
                     count--;
                     if (count < 1) {
                         // Update the last time a Document was received
-                        lastActive = System.currentTimeMillis();
-                        return document;
+                        lastActive = CoarseClock.currentTimeMillis();
+                        return root;
                     }
                     break;
                 }
@@ -431,6 +566,320 @@ public class XMPPPacketReader {
         }
     }
 
+    /**
+     * Returns the QName of an element with the specified name and namespace. QNames of
+     * elements without prefix are kept in a cache of this reader.
+     *
+     * @param name the local name of the element.
+     * @param prefix the prefix of the element or <tt>null</tt> if none.
+     * @param namespace the namespace URI of the element.
+     * @return the QName of the element.
+     */
+    protected QName getQName(String name, String prefix, String namespace) {
+        if (prefix != null) {
+            // Prefixed elements are rare in stanzas (e.g. stream features)
+            return getDocumentFactory().createQName(name, prefix, namespace);
+        }
+        Map<String, QName> names = elementNames.get(namespace);
+        QName qname = names == null ? null : names.get(name);
+        if (qname == null) {
+            name = intern(name);
+            namespace = intern(namespace);
+            qname = getDocumentFactory().createQName(name, namespace);
+            if (names == null) {
+                names = new HashMap<String, QName>();
+                elementNames.put(namespace, names);
+            }
+            names.put(name, qname);
+            cached();
+        }
+        return qname;
+    }
+
+    /**
+     * Returns the QName of an attribute without prefix. QNames of attributes are kept in
+     * a cache of this reader.
+     *
+     * @param name the name of the attribute.
+     * @return the QName of the attribute.
+     */
+    protected QName getAttributeQName(String name) {
+        QName qname = attributeNames.get(name);
+        if (qname == null) {
+            name = intern(name);
+            qname = getDocumentFactory().createQName(name);
+            attributeNames.put(name, qname);
+            cached();
+        }
+        return qname;
+    }
+
+    private void cached() {
+        if (++cachedQNames > MAX_CACHED_QNAMES) {
+            // Avoid growing the cache when unusual names are being received
+            elementNames.clear();
+            attributeNames.clear();
+            cachedQNames = 0;
+        }
+    }
+
+    private static String intern(String name) {
+        String common = commonNames.get(name);
+        return common == null ? name : common;
+    }
+
+    /**
+     * Reads the element whose start tag was just parsed and returns it as a
+     * {@link PassthroughElement}. The XML text of the element is rebuilt from the
+     * parsed tokens without creating DOM nodes.
+     *
+     * @param pp the parser positioned on the start tag of the element.
+     * @param element the element with the name and attributes of the start tag.
+     * @return the element with the XML text of the whole element.
+     */
+    private Element readPassthroughElement(XmlPullParser pp, Element element)
+            throws XmlPullParserException, IOException {
+        StringBuilder sb = new StringBuilder(256);
+        int depth = pp.getDepth();
+        boolean emptyElement = appendStartTag(pp, sb, true);
+        while (true) {
+            switch (pp.nextToken()) {
+                case XmlPullParser.START_TAG: {
+                    emptyElement = appendStartTag(pp, sb, false);
+                    break;
+                }
+                case XmlPullParser.END_TAG: {
+                    if (emptyElement) {
+                        emptyElement = false;
+                    }
+                    else {
+                        sb.append("</");
+                        appendName(pp.getPrefix(), pp.getName(), sb);
+                        sb.append('>');
+                    }
+                    if (pp.getDepth() == depth) {
+                        PassthroughElement passthrough =
+                                new PassthroughElement(element.getQName(), sb.toString());
+                        passthrough.appendAttributes(element);
+                        return passthrough;
+                    }
+                    break;
+                }
+                case XmlPullParser.TEXT:
+                case XmlPullParser.ENTITY_REF:
+                case XmlPullParser.IGNORABLE_WHITESPACE: {
+                    appendEscaped(pp.getText(), sb, false);
+                    break;
+                }
+                case XmlPullParser.CDSECT: {
+                    sb.append("<![CDATA[").append(pp.getText()).append("]]>");
+                    break;
+                }
+                case XmlPullParser.COMMENT: {
+                    sb.append("<!--").append(pp.getText()).append("-->");
+                    break;
+                }
+                case XmlPullParser.PROCESSING_INSTRUCTION: {
+                    sb.append("<?").append(pp.getText()).append("?>");
+                    break;
+                }
+                case XmlPullParser.END_DOCUMENT: {
+                    throw new XmlPullParserException("End of document found inside element " +
+                            element.getName());
+                }
+                default:
+                {
+                    ;
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends the start tag the parser is positioned on. The namespace of the first element
+     * is declared just like {@link Element#asXML()} would do for a parsed element.
+     *
+     * @return true if the element is an empty element tag.
+     */
+    private boolean appendStartTag(XmlPullParser pp, StringBuilder sb, boolean first)
+            throws XmlPullParserException {
+        String prefix = pp.getPrefix();
+        sb.append('<');
+        appendName(prefix, pp.getName(), sb);
+        if (first && prefix == null) {
+            // Elements of the jabber:connectionmanager namespace are created without namespace
+            String namespace = pp.getNamespace();
+            if (namespace != null && namespace.length() > 0 &&
+                    !"jabber:connectionmanager".equals(namespace)) {
+                sb.append(" xmlns=\"");
+                appendEscaped(namespace, sb, true);
+                sb.append('"');
+            }
+        }
+        boolean prefixDeclared = prefix == null;
+        int nsStart = pp.getNamespaceCount(pp.getDepth() - 1);
+        int nsEnd = pp.getNamespaceCount(pp.getDepth());
+        for (int i = nsStart; i < nsEnd; i++) {
+            String nsPrefix = pp.getNamespacePrefix(i);
+            if (nsPrefix == null) {
+                if (first) {
+                    // Already declared based on the namespace of the element
+                    continue;
+                }
+                sb.append(" xmlns=\"");
+            }
+            else {
+                prefixDeclared = prefixDeclared || nsPrefix.equals(prefix);
+                sb.append(" xmlns:").append(nsPrefix).append("=\"");
+            }
+            appendEscaped(pp.getNamespaceUri(i), sb, true);
+            sb.append('"');
+        }
+        if (first && !prefixDeclared) {
+            // The prefix was declared by an ancestor
+            sb.append(" xmlns:").append(prefix).append("=\"");
+            appendEscaped(pp.getNamespace(), sb, true);
+            sb.append('"');
+        }
+        for (int i = 0; i < pp.getAttributeCount(); i++) {
+            sb.append(' ');
+            appendName(pp.getAttributePrefix(i), pp.getAttributeName(i), sb);
+            sb.append("=\"");
+            appendEscaped(pp.getAttributeValue(i), sb, true);
+            sb.append('"');
+        }
+        if (pp.isEmptyElementTag()) {
+            sb.append("/>");
+            return true;
+        }
+        sb.append('>');
+        return false;
+    }
+
+    private static void appendName(String prefix, String name, StringBuilder sb) {
+        if (prefix != null) {
+            sb.append(prefix).append(':');
+        }
+        sb.append(name);
+    }
+
+    private static void appendEscaped(String text, StringBuilder sb, boolean attribute) {
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char ch = text.charAt(i);
+            switch (ch) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '"':
+                    if (attribute) {
+                        sb.append("&quot;");
+                    }
+                    else {
+                        sb.append(ch);
+                    }
+                    break;
+                default:
+                    sb.append(ch);
+            }
+        }
+    }
+
+    /**
+     * Name, namespaces and attributes of a start tag. Start tags are kept by callers that
+     * recognize packets while streaming so elements can still be created if the packet is
+     * not recognized. The arrays of a start tag are reused when capturing other tags.
+     */
+    public static class StartTag {
+
+        private String name;
+        private String prefix;
+        private String namespace;
+        private int namespaceCount;
+        private String[] namespacePrefixes = new String[2];
+        private String[] namespaceURIs = new String[2];
+        private int attributeCount;
+        private String[] attributeNames = new String[4];
+        private String[] attributePrefixes = new String[4];
+        private String[] attributeNamespaces = new String[4];
+        private String[] attributeValues = new String[4];
+
+        /**
+         * Keeps the start tag where the parser is positioned.
+         *
+         * @param pp the parser positioned on a start tag.
+         * @throws XmlPullParserException if the parser is not positioned on a start tag.
+         */
+        public void capture(XmlPullParser pp) throws XmlPullParserException {
+            name = pp.getName();
+            prefix = pp.getPrefix();
+            namespace = pp.getNamespace();
+            namespaceCount = 0;
+            int nsEnd = pp.getNamespaceCount(pp.getDepth());
+            for (int i = pp.getNamespaceCount(pp.getDepth() - 1); i < nsEnd; i++) {
+                // Default namespaces are declared based on the namespace of the element
+                if (pp.getNamespacePrefix(i) != null) {
+                    if (namespaceCount == namespacePrefixes.length) {
+                        namespacePrefixes = grow(namespacePrefixes);
+                        namespaceURIs = grow(namespaceURIs);
+                    }
+                    namespacePrefixes[namespaceCount] = pp.getNamespacePrefix(i);
+                    namespaceURIs[namespaceCount++] = pp.getNamespaceUri(i);
+                }
+            }
+            attributeCount = pp.getAttributeCount();
+            if (attributeCount > attributeNames.length) {
+                int size = Math.max(attributeCount, attributeNames.length * 2);
+                attributeNames = new String[size];
+                attributePrefixes = new String[size];
+                attributeNamespaces = new String[size];
+                attributeValues = new String[size];
+            }
+            for (int i = 0; i < attributeCount; i++) {
+                attributeNames[i] = pp.getAttributeName(i);
+                attributePrefixes[i] = pp.getAttributePrefix(i);
+                attributeNamespaces[i] = pp.getAttributeNamespace(i);
+                attributeValues[i] = pp.getAttributeValue(i);
+            }
+        }
+
+        /**
+         * Returns the local name of the tag.
+         *
+         * @return the local name of the tag.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the value of the attribute without prefix with the specified name or
+         * <tt>null</tt> if the tag does not have the attribute.
+         *
+         * @param name the name of the attribute.
+         * @return the value of the attribute or null if the tag does not have the attribute.
+         */
+        public String getAttributeValue(String name) {
+            for (int i = 0; i < attributeCount; i++) {
+                if (attributePrefixes[i] == null && name.equals(attributeNames[i])) {
+                    return attributeValues[i];
+                }
+            }
+            return null;
+        }
+
+        private static String[] grow(String[] array) {
+            String[] bigger = new String[array.length * 2];
+            System.arraycopy(array, 0, bigger, 0, array.length);
+            return bigger;
+        }
+    }
+
     protected DispatchHandler getDispatchHandler() {
         if (dispatchHandler == null) {
             dispatchHandler = new DispatchHandler();
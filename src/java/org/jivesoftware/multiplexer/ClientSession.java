@@ -31,8 +31,8 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
-import java.util.concurrent.AbstractExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Session that represents a client to server connection.
@@ -127,7 +127,7 @@ public class ClientSession extends Session {
         connection.setCompressionPolicy(serverSurrogate.getCompressionPolicy());
 
         // Create a ClientSession for this user.
-        String streamID = idFactory.createStreamID();
+        String streamID = StreamIDFactory.getInstance().createStreamID();
         ClientSession session = new ClientSession(serverName, connection, streamID);
         connection.init(session);
         // Set the stream ID that identifies the client when forwarding traffic to a client fails
@@ -266,7 +266,7 @@ public class ClientSession extends Session {
         // Deliver stanza to client
         if (conn != null && !conn.isClosed()) {
             try {
-                conn.deliver(stanza.asXML());
+                conn.deliver(stanza);
             }
             catch (Exception e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
@@ -299,10 +299,11 @@ public class ClientSession extends Session {
             else  {
                 conn.close();
             }
+            // Tell the server that the client session has been closed. The session is
+            // removed afterwards so the notification uses the connection of the session
+            ConnectionManager.getInstance().getServerSurrogate().clientSessionClosed(getStreamID());
             // Remove session from list of sessions
             removeSession(getStreamID());
-            // Tell the server that the client session has been closed
-            ConnectionManager.getInstance().getServerSurrogate().clientSessionClosed(getStreamID());
         }
     }
 
@@ -311,38 +312,77 @@ public class ClientSession extends Session {
         return status == STATUS_CLOSED;
     }
 
-    private final AtomicBoolean sessionCreatedOnServer = new AtomicBoolean(
-            false);
+    private volatile boolean sessionCreatedOnServer = false;
+
+    /**
+     * Working thread whose connection to the server forwards the traffic of this session
+     * when session affinity is enabled or <tt>null</tt> if no connection was assigned.
+     */
+    private volatile ConnectionWorkerThread workerThread;
+
+    private static final AtomicReferenceFieldUpdater<ClientSession, ConnectionWorkerThread>
+            workerThreadUpdater = AtomicReferenceFieldUpdater.newUpdater(ClientSession.class,
+            ConnectionWorkerThread.class, "workerThread");
+
+    /**
+     * Returns the working thread whose connection to the server forwards the traffic of
+     * this session or <tt>null</tt> if no connection was assigned.
+     *
+     * @return the working thread assigned to this session.
+     */
+    ConnectionWorkerThread getWorkerThread() {
+        return workerThread;
+    }
+
+    /**
+     * Assigns a working thread to this session if the assigned thread is still the
+     * expected one.
+     *
+     * @param expected the working thread that is expected to be assigned.
+     * @param workerThread the working thread to assign.
+     * @return true if the working thread was assigned.
+     */
+    boolean assignWorkerThread(ConnectionWorkerThread expected,
+            ConnectionWorkerThread workerThread) {
+        return workerThreadUpdater.compareAndSet(this, expected, workerThread);
+    }
 
-    private ArrayList<ClientTask> pendingTasks = new ArrayList<ClientTask>();
+    /**
+     * Tasks waiting for the server to create the session. The list is created when the
+     * first task is pended and is dropped once the server created the session.
+     */
+    private ArrayList<ClientTask> pendingTasks;
 
     public boolean isSessionCreatedOnServer() {
-        return sessionCreatedOnServer.get();
+        return sessionCreatedOnServer;
     }
 
-    public void pendClientTask(ClientTask task, AbstractExecutorService executor) {
-        if (sessionCreatedOnServer.get()) {
+    public void pendClientTask(ClientTask task, Executor executor) {
+        if (sessionCreatedOnServer) {
             executor.execute(task);
         } else {
-            synchronized (sessionCreatedOnServer) {
-                if (sessionCreatedOnServer.get()) {
+            synchronized (this) {
+                if (sessionCreatedOnServer) {
                     executor.execute(task);
                 } else {
+                    if (pendingTasks == null) {
+                        pendingTasks = new ArrayList<ClientTask>(4);
+                    }
                     pendingTasks.add(task);
                 }
             }
         }
     }
 
-    public void onSessionCreatedOnServer(AbstractExecutorService executor) {
-        synchronized (sessionCreatedOnServer) {
-            if (!sessionCreatedOnServer.get()) {
+    public void onSessionCreatedOnServer(Executor executor) {
+        synchronized (this) {
+            if (!sessionCreatedOnServer && pendingTasks != null) {
                 for (ClientTask task : pendingTasks) {
                     executor.execute(task);
                 }
-                pendingTasks = null;
             }
-            sessionCreatedOnServer.compareAndSet(false, true);
+            pendingTasks = null;
+            sessionCreatedOnServer = true;
         }
     }
 }
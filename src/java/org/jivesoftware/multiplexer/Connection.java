@@ -20,6 +20,8 @@
 
 package org.jivesoftware.multiplexer;
 
+import org.dom4j.Element;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -101,6 +103,15 @@ public interface Connection {
      */
     public void deliver(String stanza);
 
+    /**
+     * Delivers the stanza to this connection without checking the recipient. Connections
+     * may serialize the stanza directly into their write buffers so this method should be
+     * preferred over {@link #deliver(String)} when the stanza is an Element.
+     *
+     * @param stanza the stanza to deliver.
+     */
+    public void deliver(Element stanza);
+
     /**
      * Delivers raw text to this connection. This is a very low level way for sending
      * XML stanzas to the client. This method should not be used unless you have very
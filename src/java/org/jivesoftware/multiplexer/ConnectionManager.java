@@ -34,6 +34,7 @@ import org.dom4j.Document;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.multiplexer.net.ClientConnectionHandler;
 import org.jivesoftware.multiplexer.net.SSLConfig;
+import org.jivesoftware.multiplexer.net.SizeClassBufferAllocator;
 import org.jivesoftware.multiplexer.net.SocketSendingTracker;
 import org.jivesoftware.multiplexer.net.StalledSessionsFilter;
 import org.jivesoftware.multiplexer.net.XMPPCodecFactory;
@@ -130,6 +131,8 @@ public class ConnectionManager {
     private ServerSurrogate serverSurrogate;
     private SocketAcceptor socketAcceptor;
     private SocketAcceptor sslSocketAcceptor;
+    private SizeClassBufferAllocator bufferAllocator;
+    private StatisticsLogger statisticsLogger;
 
     /**
      * Returns a singleton instance of ConnectionManager.
@@ -263,8 +266,17 @@ public class ConnectionManager {
         SocketSendingTracker.getInstance().start();
         // Check if we need to configure MINA to use Direct or Heap Buffers
         // Note: It has been reported that heap buffers are 50% faster than direct buffers
-        if (!JiveGlobals.getBooleanProperty("xmpp.socket.directBuffer", false)) {
-            ByteBuffer.setUseDirectBuffers(false);
+        boolean directBuffers = JiveGlobals.getBooleanProperty("xmpp.socket.directBuffer", false);
+        ByteBuffer.setUseDirectBuffers(directBuffers);
+        // Pool released buffers by size class only if pooling was enabled. Pooling requires
+        // every acquired buffer to be released once so it is disabled by default
+        if (JiveGlobals.getBooleanProperty("xmpp.socket.buffer.pool", false)) {
+            bufferAllocator = new SizeClassBufferAllocator(
+                    JiveGlobals.getIntProperty("xmpp.socket.buffer.pool.maxSize", 64 * 1024),
+                    JiveGlobals.getIntProperty("xmpp.socket.buffer.pool.maxBytes", 16 * 1024 * 1024));
+            ByteBuffer.setAllocator(bufferAllocator);
+        }
+        else if (!directBuffers) {
             ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
         }
         // Start the port listener for clients
@@ -273,9 +285,17 @@ public class ConnectionManager {
         startClientSSLListeners(localIPAddress);
         // Start http bind listener
         startHttpBindServlet();
+        // Log statistics of the connection manager when debug is enabled
+        statisticsLogger = new StatisticsLogger();
+        TaskEngine.getInstance().scheduleAtFixedRate(statisticsLogger, StatisticsLogger.PERIOD,
+                StatisticsLogger.PERIOD);
     }
 
     private void stopModules() {
+        if (statisticsLogger != null) {
+            TaskEngine.getInstance().cancelScheduledTask(statisticsLogger);
+            statisticsLogger = null;
+        }
         stopClientListeners();
         stopClientSSLListeners();
         stopHttpBindServlet();
@@ -568,6 +588,17 @@ public class ConnectionManager {
         return serverSurrogate;
     }
 
+    /**
+     * Returns the allocator that pools the buffers used by client connections or
+     * <tt>null</tt> if buffers are not pooled. Buffers are pooled when the system property
+     * <tt>xmpp.socket.buffer.pool</tt> is true.
+     *
+     * @return the allocator that pools the buffers used by client connections.
+     */
+    public SizeClassBufferAllocator getBufferAllocator() {
+        return bufferAllocator;
+    }
+
     /**
      * Returns the name of the main server where received packets will be forwarded.
      *
@@ -0,0 +1,92 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import java.util.Collection;
+
+/**
+ * Selects the connection to the server that forwards the traffic of a client session.
+ * A session keeps the connection it was assigned while that connection is valid so
+ * connections that are created or become valid later never take sessions away from other
+ * connections. Sessions are only assigned a new connection when their connection is lost.<p>
+ *
+ * New assignments use rendezvous hashing of the stream ID and the connection names, the
+ * valid connection with the highest weight for the session is selected. Threads that
+ * assign a connection to the same session at the same time select the same connection.
+ *
+ * @param <T> the type of the connections.
+ */
+abstract class ConnectionSelector<T> {
+
+    /**
+     * Returns true if the connection can be used for forwarding traffic.
+     *
+     * @param connection the connection to check.
+     * @return true if the connection can be used for forwarding traffic.
+     */
+    protected abstract boolean isValid(T connection);
+
+    /**
+     * Returns the name of the connection used for hashing sessions to connections.
+     *
+     * @param connection the connection whose name will be returned.
+     * @return the name of the connection.
+     */
+    protected abstract String getName(T connection);
+
+    /**
+     * Returns the connection to use for the specified session. The assigned connection
+     * is returned if it is still valid, otherwise a valid connection is selected.
+     *
+     * @param streamID the stream ID assigned by the connection manager to the session.
+     * @param assigned the connection assigned to the session or <tt>null</tt> if none.
+     * @param connections the existing connections.
+     * @return the connection to use or <tt>null</tt> if there are no valid connections.
+     */
+    T select(String streamID, T assigned, Collection<T> connections) {
+        if (assigned != null && isValid(assigned)) {
+            return assigned;
+        }
+        T selected = null;
+        int selectedWeight = 0;
+        int hash = streamID.hashCode();
+        for (T connection : connections) {
+            if (!isValid(connection)) {
+                continue;
+            }
+            int weight = mix(hash * 31 + getName(connection).hashCode());
+            if (selected == null || weight > selectedWeight) {
+                selected = connection;
+                selectedWeight = weight;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Spreads the bits of the specified hash (finalization step of MurmurHash3).
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
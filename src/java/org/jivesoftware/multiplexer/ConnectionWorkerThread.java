@@ -25,6 +25,7 @@ import com.jcraft.jzlib.ZInputStream;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.net.DNSUtil;
+import org.jivesoftware.multiplexer.net.FrameTemplate;
 import org.jivesoftware.multiplexer.net.MXParser;
 import org.jivesoftware.multiplexer.net.SocketConnection;
 import org.jivesoftware.multiplexer.spi.ServerFailoverDeliverer;
@@ -45,6 +46,7 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Thread that creates and keeps a connection to the server. This thread is responsable
@@ -66,7 +68,7 @@ public class ConnectionWorkerThread extends Thread {
     public static final int DEFAULT_MULTIPLEX_PORT = 5262;
 
     // Sequence and random number generator used for creating unique IQ ID's.
-    private static int sequence = 0;
+    private static final AtomicInteger sequence = new AtomicInteger(0);
     private static Random random = new Random();
     private static ConnectionCloseListener connectionListener;
 
@@ -82,10 +84,22 @@ public class ConnectionWorkerThread extends Thread {
      * Connection to the server.
      */
     private SocketConnection connection;
+    /**
+     * Reader of the stanzas sent by the server through the connection.
+     */
+    private ServerPacketReader packetReader;
     /**
      * Store the last received stream features from the server
      */
     private Element features;
+    /**
+     * Templates of the stanzas sent to the server. Constant parts of the stanzas depend
+     * on the server name and the address of this connection so they are encoded once.
+     */
+    private FrameTemplate routeTemplate;
+    private FrameTemplate createTemplate;
+    private FrameTemplate closeTemplate;
+    private FrameTemplate failedTemplate;
 
     static {
         connectionListener = new ConnectionCloseListener() {
@@ -128,6 +142,15 @@ public class ConnectionWorkerThread extends Thread {
         return connection;
     }
 
+    /**
+     * Returns the reader of the stanzas sent by the server through the connection.
+     *
+     * @return the reader of the stanzas sent by the server.
+     */
+    ServerPacketReader getPacketReader() {
+        return packetReader;
+    }
+
     /**
      * Creates a new connection to the server
      * 
@@ -178,6 +201,7 @@ public class ConnectionWorkerThread extends Thread {
             connection = new SocketConnection(new ServerFailoverDeliverer(), socket, false);
 
             jidAddress = managerName + "/" + getName();
+            createTemplates();
 
             // Send the stream header
             StringBuilder openingStream = new StringBuilder();
@@ -241,6 +265,8 @@ public class ConnectionWorkerThread extends Thread {
                 connection.registerCloseListener(connectionListener, this);
                 // Set idle time out (server needs to send heartbeats or traffic). Default 5 minutes
                 connection.setIdleTimeout(5 * 60 * 1000);
+                // Stream was negotiated so threads delivering stanzas no longer wait for the socket
+                connection.startQueuedWrites(jidAddress);
                 // Create reader that will process packets sent from the server.
                 createSocketReader(reader);
                 // Restore default timeout
@@ -265,6 +291,23 @@ public class ConnectionWorkerThread extends Thread {
         return false;
     }
 
+    private void createTemplates() {
+        String iq = "<iq type='set' to='" + serverName + "' from='" + jidAddress + "' id='";
+        String session = "'><session xmlns='http://jabber.org/protocol/connectionmanager' id='";
+        routeTemplate = new FrameTemplate(true,
+                "<route to='" + serverName + "' from='" + jidAddress + "' streamid='", "'>",
+                "</route>");
+        createTemplate = new FrameTemplate(false, iq, session, "'><create><host name='",
+                "' address='", "'/></create></session></iq>");
+        closeTemplate = new FrameTemplate(false, iq, session, "'><close/></session></iq>");
+        failedTemplate = new FrameTemplate(true, iq, session, "'><failed>",
+                "</failed></session></iq>");
+    }
+
+    private String nextId() {
+        return random.nextInt(1000) + "-" + sequence.getAndIncrement();
+    }
+
     private boolean secureConnection(XMPPPacketReader reader, StringBuilder openingStream)
             throws Exception {
         Log.debug("CM - Indicating we want TLS to " + serverName);
@@ -409,9 +452,8 @@ public class ConnectionWorkerThread extends Thread {
      * @param reader the reader to use to retrieve stanzas.
      */
     private void createSocketReader(XMPPPacketReader reader) {
-        ServerPacketReader serverPacketReader =
-                new ServerPacketReader(reader, connection, jidAddress);
-        connection.setSocketStatistic(serverPacketReader);
+        packetReader = new ServerPacketReader(reader, connection, jidAddress);
+        connection.setSocketStatistic(packetReader);
     }
 
     /**
@@ -421,15 +463,11 @@ public class ConnectionWorkerThread extends Thread {
      * @param address the remote address of the client.
      */
     public void clientSessionCreated(String streamID, InetAddress address) {
-        StringBuilder sb = new StringBuilder(100);
-        sb.append("<iq type='set' to='").append(serverName);
-        sb.append("' from='").append(jidAddress);
-        sb.append("' id='").append(String.valueOf(random.nextInt(1000) + "-" + sequence++));
-        sb.append("'><session xmlns='http://jabber.org/protocol/connectionmanager' id='").append(streamID);
-        sb.append("'><create><host name='").append(address.getHostName());
-        sb.append("' address='").append(address.getHostAddress()).append("'/></create></session></iq>");
-        // Forward the notification to the server
-        connection.deliver(sb.toString());
+        // Forward the notification to the server. The host name is looked up by other
+        // threads so a slow DNS server does not block the traffic of other sessions
+        String hostName = HostNameResolver.getInstance().getHostName(address);
+        connection.deliver(createTemplate.build(nextId(), streamID, hostName,
+                address.getHostAddress()));
     }
 
     /**
@@ -438,14 +476,8 @@ public class ConnectionWorkerThread extends Thread {
      * @param streamID the stream ID assigned by the connection manager to the closed session.
      */
     public void clientSessionClosed(String streamID) {
-        StringBuilder sb = new StringBuilder(100);
-        sb.append("<iq type='set' to='").append(serverName);
-        sb.append("' from='").append(jidAddress);
-        sb.append("' id='").append(String.valueOf(random.nextInt(1000) + "-" + sequence++));
-        sb.append("'><session xmlns='http://jabber.org/protocol/connectionmanager' id='").append(streamID);
-        sb.append("'><close/></session></iq>");
         // Forward the notification to the server
-        connection.deliver(sb.toString());
+        connection.deliver(closeTemplate.build(nextId(), streamID));
     }
 
     /**
@@ -457,14 +489,8 @@ public class ConnectionWorkerThread extends Thread {
      *        longer available session.
      */
     public void deliveryFailed(Element stanza, String streamID) {
-        StringBuilder sb = new StringBuilder(100);
-        sb.append("<iq type='set' to='").append(serverName);
-        sb.append("' from='").append(jidAddress);
-        sb.append("' id='").append(String.valueOf(random.nextInt(1000) + "-" + sequence++));
-        sb.append("'><session xmlns='http://jabber.org/protocol/connectionmanager' id='").append(streamID);
-        sb.append("'><failed>").append(stanza.asXML()).append("</failed></session></iq>");
         // Send notification to the server
-        connection.deliver(sb.toString());
+        connection.deliver(failedTemplate.build(nextId(), streamID, stanza.asXML()));
     }
 
     @Override
@@ -500,16 +526,7 @@ public class ConnectionWorkerThread extends Thread {
      * @param streamID the stream ID assigned by the connection manager to the client session.
      */
     public void deliver(String stanza, String streamID) {
-        // Wrap the stanza
-        StringBuilder sb = new StringBuilder(80);
-        sb.append("<route ");
-        sb.append("to='").append(serverName);
-        sb.append("' from='").append(jidAddress);
-        sb.append("' streamid='").append(streamID).append("'>");
-        sb.append(stanza);
-        sb.append("</route>");
-
-        // Forward the wrapped stanza to the server
-        connection.deliver(sb.toString());
+        // Wrap the stanza and forward the wrapped stanza to the server
+        connection.deliver(routeTemplate.build(streamID, stanza));
     }
 }
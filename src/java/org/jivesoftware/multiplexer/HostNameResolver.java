@@ -0,0 +1,296 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.jivesoftware.util.JiveGlobals;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks up the host names of client addresses using a pool of threads and keeps the
+ * looked up names in a cache. Reverse DNS lookups may take seconds so they are not done
+ * by the threads that send the traffic of all the sessions to the server.<p>
+ *
+ * Threads that need a host name that is not cached wait for the lookup for up to
+ * <tt>xmpp.manager.dns.timeout</tt> milliseconds (1000 by default) and then use the IP
+ * address. When <tt>xmpp.manager.dns.immediate</tt> is true threads never wait: the IP
+ * address is used right away and the host name will be used by the next sessions from
+ * the same address. Looked up names are kept for <tt>xmpp.manager.dns.ttl</tt> milliseconds
+ * (5 minutes by default) and at most <tt>xmpp.manager.dns.cacheSize</tt> addresses are
+ * cached. The cache is trimmed once it grows an eighth over that size so that misses do
+ * not scan the cache, and lookups that are still running are never removed. Use
+ * <tt>xmpp.manager.dns.threads</tt> to set the number of lookup threads.
+ */
+class HostNameResolver {
+
+    /**
+     * Max number of lookups waiting for a lookup thread.
+     */
+    private static final int MAX_PENDING_LOOKUPS = 1000;
+
+    private static HostNameResolver instance;
+
+    /**
+     * Returns the resolver configured by the system properties.
+     *
+     * @return the resolver configured by the system properties.
+     */
+    static synchronized HostNameResolver getInstance() {
+        if (instance == null) {
+            instance = new HostNameResolver(
+                    JiveGlobals.getIntProperty("xmpp.manager.dns.threads", 4),
+                    JiveGlobals.getIntProperty("xmpp.manager.dns.ttl", 300000),
+                    JiveGlobals.getIntProperty("xmpp.manager.dns.cacheSize", 10000),
+                    JiveGlobals.getIntProperty("xmpp.manager.dns.timeout", 1000),
+                    JiveGlobals.getBooleanProperty("xmpp.manager.dns.immediate", false));
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the resolver if it was already created or <tt>null</tt> if no host name
+     * was looked up yet.
+     *
+     * @return the resolver or <tt>null</tt> if it was not created yet.
+     */
+    static synchronized HostNameResolver getExistingInstance() {
+        return instance;
+    }
+
+    private final ConcurrentMap<String, Lookup> cache = new ConcurrentHashMap<String, Lookup>();
+    private final ThreadPoolExecutor executor;
+    private final long ttl;
+    private final int maxSize;
+    private final int evictionSlack;
+    private final AtomicBoolean evicting = new AtomicBoolean(false);
+    private final long timeout;
+    private final boolean immediate;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicLong lookups = new AtomicLong(0);
+    private final AtomicLong lookupTime = new AtomicLong(0);
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param threads number of threads that look up host names.
+     * @param ttl milliseconds to keep looked up host names.
+     * @param maxSize max number of addresses to cache.
+     * @param timeout max milliseconds to wait for a lookup.
+     * @param immediate true if the IP address is used instead of waiting for lookups.
+     */
+    HostNameResolver(int threads, long ttl, int maxSize, long timeout, boolean immediate) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.evictionSlack = Math.max(1, maxSize / 8);
+        this.timeout = timeout;
+        this.immediate = immediate;
+        threads = Math.max(1, threads);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_LOOKUPS), new ThreadFactory() {
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "Host Name Resolver - " +
+                                threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Too many pending lookups. Waiting threads will use the IP address
+                        ((Lookup) r).cancel(false);
+                    }
+                });
+    }
+
+    /**
+     * Returns the host name of the specified address or its IP address if the host name
+     * is not cached and was not looked up in time.
+     *
+     * @param address the address whose host name will be returned.
+     * @return the host name or the IP address of the address.
+     */
+    String getHostName(InetAddress address) {
+        String ip = address.getHostAddress();
+        long now = System.currentTimeMillis();
+        Lookup lookup = cache.get(ip);
+        if (lookup != null && (lookup.expiration <= now || lookup.isCancelled())) {
+            cache.remove(ip, lookup);
+            lookup = null;
+        }
+        if (lookup != null && lookup.isDone()) {
+            hits.incrementAndGet();
+            return lookup.getHostName(ip);
+        }
+        misses.incrementAndGet();
+        if (lookup == null) {
+            Lookup newLookup = new Lookup(address, now + ttl);
+            lookup = cache.putIfAbsent(ip, newLookup);
+            if (lookup == null) {
+                lookup = newLookup;
+                evict(now);
+                executor.execute(lookup);
+            }
+        }
+        if (immediate || timeout <= 0) {
+            return ip;
+        }
+        try {
+            return lookup.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e) {
+            // The lookup was cancelled or failed
+        }
+        return ip;
+    }
+
+    /**
+     * Trims the cache back to its max size once it has grown over the max size plus the
+     * eviction slack. Expired and cancelled entries are removed first, then other finished
+     * lookups. Running lookups are never removed since sessions may be waiting for them.
+     * Only one thread trims the cache at a time.
+     */
+    private void evict(long now) {
+        if (cache.size() <= maxSize + evictionSlack || !evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            for (Iterator<Lookup> it = cache.values().iterator(); it.hasNext();) {
+                Lookup lookup = it.next();
+                if (lookup.expiration <= now || lookup.isCancelled()) {
+                    it.remove();
+                }
+            }
+            for (Iterator<Lookup> it = cache.values().iterator();
+                    it.hasNext() && cache.size() > maxSize;) {
+                if (it.next().isDone()) {
+                    it.remove();
+                }
+            }
+        }
+        finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * Returns the number of addresses in the cache.
+     *
+     * @return the number of addresses in the cache.
+     */
+    int getCacheSize() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the number of host names that were found in the cache.
+     *
+     * @return the number of host names that were found in the cache.
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of host names that were not found in the cache.
+     *
+     * @return the number of host names that were not found in the cache.
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of times the IP address was used since a lookup did not finish
+     * in time.
+     *
+     * @return the number of lookups that did not finish in time.
+     */
+    long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Returns the number of finished lookups.
+     *
+     * @return the number of finished lookups.
+     */
+    long getLookups() {
+        return lookups.get();
+    }
+
+    /**
+     * Returns the average number of milliseconds that the finished lookups took.
+     *
+     * @return the average number of milliseconds that the finished lookups took.
+     */
+    long getAverageLookupTime() {
+        long count = lookups.get();
+        return count == 0 ? 0 : lookupTime.get() / count / 1000000L;
+    }
+
+    /**
+     * Lookup of the host name of an address. The lookup is kept in the cache while it is
+     * running so concurrent sessions from the same address wait for the same lookup.
+     */
+    private class Lookup extends FutureTask<String> {
+
+        private final long expiration;
+
+        Lookup(final InetAddress address, long expiration) {
+            super(new Callable<String>() {
+                public String call() {
+                    long start = System.nanoTime();
+                    try {
+                        return address.getHostName();
+                    }
+                    finally {
+                        lookupTime.addAndGet(System.nanoTime() - start);
+                        lookups.incrementAndGet();
+                    }
+                }
+            });
+            this.expiration = expiration;
+        }
+
+        String getHostName(String ip) {
+            try {
+                return get();
+            }
+            catch (Exception e) {
+                return ip;
+            }
+        }
+    }
+}
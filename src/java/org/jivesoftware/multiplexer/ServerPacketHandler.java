@@ -101,17 +101,7 @@ class ServerPacketHandler {
                     String streamID = wrapper.attributeValue("id");
                     if (wrapper.element("create") != null) {
                         //we got session create response
-                        Session session=Session.getSession(streamID);
-                        if(session!=null){
-                            handled = true;
-                            ClientSession cs=(ClientSession)session;
-                            cs.onSessionCreatedOnServer(ConnectionManager.getInstance().getServerSurrogate().getThreadPool());
-                            if (Log.isDebugEnabled()) {
-                                Log.debug("Session created on server with streamID: " + streamID);
-                            }
-                        }else{
-                            Log.warn("Can't get session with streamId=" + streamID);
-                        }
+                        handled = sessionCreated(streamID);
                     }
                 }
                 if (Log.isDebugEnabled() && !handled) {
@@ -159,13 +149,36 @@ class ServerPacketHandler {
         }
     }
 
+    /**
+     * Notifies the client session with the specified stream ID that the session was created
+     * in the server. Tasks of the client that were waiting for the session to be created
+     * will be executed.
+     *
+     * @param streamID the stream ID of the session that was created in the server.
+     * @return true if the session was found.
+     */
+    boolean sessionCreated(String streamID) {
+        Session session = Session.getSession(streamID);
+        if (session == null) {
+            Log.warn("Can't get session with streamId=" + streamID);
+            return false;
+        }
+        ClientSession cs = (ClientSession) session;
+        cs.onSessionCreatedOnServer(connectionManager.getServerSurrogate().getClientTaskExecutor());
+        if (Log.isDebugEnabled()) {
+            Log.debug("Session created on server with streamID: " + streamID);
+        }
+        return true;
+    }
+
     /**
      * Forwards wrapped stanza contained in the <tt>route</tt> element to the specified
      * client. The target client connection is specified in the <tt>route</tt> element by
      * the <tt>streamid</tt> attribute.<p>
      *
      * Wrapped stanzas that failed to be delivered to the target client are returned to
-     * the server.
+     * the server. The wrapped stanza may be a {@link org.jivesoftware.multiplexer.net.PassthroughElement}
+     * so its full DOM is only built when an IQ error has to be returned.
      *
      * @param route the route element containing the wrapped stanza to send to the target
      *        client.
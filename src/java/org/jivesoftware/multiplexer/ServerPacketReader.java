@@ -27,17 +27,28 @@ import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 
 import java.io.IOException;
-import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Reads and processes stanzas sent from the server. Each connection to the server will
- * have an instance of this class. Read packets will be processed using a thread pool.
- * By default, the thread pool will have 5 processing threads. Configure the property
- * <tt>xmpp.manager.incoming.threads</tt> to change the number of processing threads
- * per connection to the server. 
+ * have an instance of this class. Read packets will be processed using a thread pool
+ * that is shared by all the connections to the server. By default, the thread pool will
+ * have as many processing threads as available processors (and at least 2). Configure
+ * the property <tt>xmpp.manager.incoming.threads</tt> to change the number of processing
+ * threads.<p>
+ *
+ * Stanzas sent to a session are processed in order by at most one thread at a time. A
+ * thread processes up to 16 queued stanzas of the session before letting other sessions
+ * use the thread. Configure the property <tt>xmpp.manager.incoming.batch</tt> to change
+ * the number of stanzas.<p>
+ *
+ * Stanzas wrapped in <tt>route</tt> elements are not parsed into DOM elements but kept as
+ * text so they can be forwarded to clients without serializing them again. Set the property
+ * <tt>xmpp.manager.route.passthrough</tt> to false to always parse them.
  *
  * @author Gaston Dombiak
  */
@@ -45,34 +56,45 @@ class ServerPacketReader implements SocketStatistic {
 
     private boolean open = true;
     private XMPPPacketReader reader = null;
+    /**
+     * Reader that recognizes session control packets without creating DOM elements.
+     */
+    private SessionControlReader controlReader;
 
     /**
-     * Pool of threads that will process incoming stanzas from the server.
+     * Pool of threads that will process incoming stanzas from all the connections to
+     * the server.
      */
-    private ThreadPoolExecutor threadPool;
+    private static ThreadPoolExecutor threadPool;
+    /**
+     * Number of tasks of this connection that are waiting to be processed or are being
+     * processed by the thread pool.
+     */
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
     /**
      * Actual object responsible for handling incoming traffic.
      */
     private ServerPacketHandler packetsHandler;
+    /**
+     * Max number of stanzas of a session to process before processing other sessions.
+     */
+    private int maxBatch;
 
     public ServerPacketReader(XMPPPacketReader reader, SocketConnection connection,
                               String address) {
         this.reader = reader;
+        if (JiveGlobals.getBooleanProperty("xmpp.manager.route.passthrough", true)) {
+            // Keep stanzas wrapped in route elements as text since they are just forwarded to clients
+            reader.setPassthroughParent("route");
+        }
+        controlReader = new SessionControlReader(reader);
         packetsHandler = new ServerPacketHandler(connection, address);
         init();
     }
 
     private void init() {
-        // Create a pool of threads that will process incoming packets.
-        int maxThreads = JiveGlobals.getIntProperty("xmpp.manager.incoming.threads", 5);
-        if (maxThreads < 1) {
-            // Ensure that the max number of threads in the pool is at least 1
-            maxThreads = 1;
-        }
-        threadPool =
-                new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(),
-                        new ThreadPoolExecutor.CallerRunsPolicy());
+        maxBatch = Math.max(1, JiveGlobals.getIntProperty("xmpp.manager.incoming.batch", 16));
+        getThreadPool();
 
         // Create a thread that will read and store DOM Elements.
         Thread thread = new Thread("Server Packet Reader") {
@@ -81,9 +103,13 @@ class ServerPacketReader implements SocketStatistic {
                 while (open) {
                     Element doc;
                     try {
-                        doc = reader.parseDocument().getRootElement();
+                        doc = controlReader.read();
 
-                        if (doc == null) {
+                        if (controlReader.getAction() != SessionControlReader.NONE) {
+                            processSessionControl(controlReader.getAction(),
+                                    controlReader.getStreamID());
+                        }
+                        else if (doc == null) {
                             // Stop reading the stream since the remote server has sent an end of
                             // stream element and probably closed the connection.
                             shutdown();
@@ -93,12 +119,13 @@ class ServerPacketReader implements SocketStatistic {
                             // be processed in the correct order.
                             Session session = getSession(doc);
                             if( session != null ) {
-                                Queue<Element> sessionQueue = session.getStanzaQueue();
-                                sessionQueue.add(doc);
-                                threadPool.execute(new ProcessSessionQueueTask(packetsHandler,session));
+                                if (session.getStanzaQueue().add(doc)) {
+                                    // Queue was idle so schedule a task that will process it
+                                    dispatch(new ProcessSessionQueueTask(packetsHandler,session));
+                                }
                             } else {
                                 // Queue task that process incoming stanzas not related to a specific streamID
-                                threadPool.execute(new ProcessStanzaTask(packetsHandler, doc));
+                                dispatch(new ProcessStanzaTask(packetsHandler, doc));
                             }
                         }
                     }
@@ -117,13 +144,92 @@ class ServerPacketReader implements SocketStatistic {
         thread.start();
     }
 
+    /**
+     * Returns the thread pool shared by all the connections to the server. The pool is
+     * created the first time it is needed.
+     *
+     * @return the thread pool shared by all the connections to the server.
+     */
+    private static synchronized ThreadPoolExecutor getThreadPool() {
+        if (threadPool == null) {
+            // Create a pool of threads that will process incoming packets.
+            int maxThreads = JiveGlobals.getIntProperty("xmpp.manager.incoming.threads",
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+            if (maxThreads < 1) {
+                // Ensure that the max number of threads in the pool is at least 1
+                maxThreads = 1;
+            }
+            threadPool =
+                    new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                                final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                                public Thread newThread(Runnable r) {
+                                    Thread thread = new Thread(r, "Server Packet Handler - " +
+                                            threadNumber.getAndIncrement());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            },
+                            new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+        return threadPool;
+    }
+
+    /**
+     * Returns the number of tasks waiting to be processed by the shared thread pool. Tasks
+     * of all the connections to the server are included.
+     *
+     * @return the number of tasks waiting to be processed by the shared thread pool.
+     */
+    static int getPendingTasks() {
+        ThreadPoolExecutor pool = threadPool;
+        return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    /**
+     * Returns the number of tasks of this connection that are waiting to be processed or
+     * are being processed.
+     *
+     * @return the number of tasks of this connection that were not processed yet.
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    private void dispatch(Runnable task) {
+        queueDepth.incrementAndGet();
+        threadPool.execute(task);
+    }
+
     public long getLastActive() {
         return reader.getLastActive();
     }
 
     public void shutdown() {
+        // Queued stanzas are still processed by the shared thread pool
         open = false;
-        threadPool.shutdown();
+    }
+
+    /**
+     * Processes a session control packet that was recognized without creating DOM elements.
+     * Created sessions are notified right away. Sessions are closed after the stanzas that
+     * were queued for the session before the request to close it were processed.
+     *
+     * @param action the recognized control packet.
+     * @param streamID the stream ID of the session of the control packet.
+     */
+    private void processSessionControl(int action, String streamID) {
+        if (action == SessionControlReader.CREATED) {
+            packetsHandler.sessionCreated(streamID);
+        }
+        else {
+            Session session = Session.getSession(streamID);
+            if (session != null && session.getStanzaQueue().add(SessionControlReader.CLOSE_SESSION)) {
+                // Queue was idle so schedule a task that will process it
+                dispatch(new ProcessSessionQueueTask(packetsHandler, session));
+            }
+        }
     }
 
     /**
@@ -146,10 +252,28 @@ class ServerPacketReader implements SocketStatistic {
          }
     }
 
+    /**
+     * Task executed by the shared thread pool that keeps track of the number of tasks
+     * of this connection that were not processed yet.
+     */
+    private abstract class DispatchedTask implements Runnable {
+
+        public void run() {
+            try {
+                process();
+            }
+            finally {
+                queueDepth.decrementAndGet();
+            }
+        }
+
+        abstract void process();
+    }
+
     /**
      * Task that processes incoming stanzas from the server.
      */
-    private class ProcessStanzaTask implements Runnable {
+    private class ProcessStanzaTask extends DispatchedTask {
         /**
          * Incoming stanza to process.
          */
@@ -164,16 +288,18 @@ class ServerPacketReader implements SocketStatistic {
             this.stanza = stanza;
         }
 
-        public void run() {
+        @Override
+        void process() {
             handler.handle(stanza);
         }
     }
     
     /**
      * Task that processes a Session's stanza queue. This guarantees
-     * that stanzas are processed in the same order that they are received
+     * that stanzas are processed in the same order that they are received.
+     * Only one task is scheduled at a time for a session.
      */
-    private class ProcessSessionQueueTask implements Runnable {
+    private class ProcessSessionQueueTask extends DispatchedTask {
         /**
          * The session
          */
@@ -190,21 +316,35 @@ class ServerPacketReader implements SocketStatistic {
         }
         
         /**
-         * Process all the stanzas currently in the queue for this session
+         * Process the stanzas currently in the queue for this session. After processing
+         * the max number of stanzas the task is scheduled again so that other sessions
+         * can be processed.
          */
-        public void run() {
-            // Synchronize on the session here to ensure that all stanzas
-            // for a given session get processed in order. This can be sub-optimal
-            // since we might block if multiple threads are processing stanzas
-            // for the same client, but the handler.handle() call should be quick,
-            // and correctness seems more important here.
-            synchronized(session) {
-                Element stanza = session.getStanzaQueue().poll();
-                while( stanza != null ){
-                    handler.handle(stanza);
-                    stanza = session.getStanzaQueue().poll();
+        @Override
+        void process() {
+            StanzaQueue queue = session.getStanzaQueue();
+            int processed = 0;
+            do {
+                Element stanza;
+                while ((stanza = queue.poll()) != null) {
+                    try {
+                        if (stanza == SessionControlReader.CLOSE_SESSION) {
+                            session.close();
+                        }
+                        else {
+                            handler.handle(stanza);
+                        }
+                    }
+                    catch (Exception e) {
+                        Log.error("Error processing stanza: " + stanza.asXML(), e);
+                    }
+                    if (++processed >= maxBatch) {
+                        // Let other sessions use this thread. The queue is still scheduled
+                        dispatch(this);
+                        return;
+                    }
                 }
-            }
+            } while (queue.release());
         }
     }
 }
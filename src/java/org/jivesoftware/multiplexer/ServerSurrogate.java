@@ -21,6 +21,8 @@
 package org.jivesoftware.multiplexer;
 
 import org.dom4j.Element;
+import org.jivesoftware.multiplexer.net.SocketConnection;
+import org.jivesoftware.multiplexer.task.ClientTask;
 import org.jivesoftware.multiplexer.task.CloseSessionTask;
 import org.jivesoftware.multiplexer.task.DeliveryFailedTask;
 import org.jivesoftware.multiplexer.task.NewSessionTask;
@@ -46,7 +48,15 @@ import java.util.concurrent.atomic.AtomicInteger;
  *
  * Each connection to the server has its own {@link ServerPacketReader} to read incoming
  * traffic from the server. Incoming server traffic is then handled by
- * {@link ServerPacketHandler}.
+ * {@link ServerPacketHandler}.<p>
+ *
+ * By default any working thread may forward the traffic of a client session. When the
+ * system property <tt>xmpp.manager.routing.affinity</tt> is true the traffic of a client
+ * session is always forwarded through the same connection to the server so each connection
+ * queues the stanzas of its sessions in order. The connection is assigned to the session
+ * the first time it is needed (see {@link ConnectionSelector}). New connections do not take
+ * sessions from other connections. When a connection is lost only the sessions that were
+ * using that connection are moved to other connections.
  *
  * @author Gaston Dombiak
  */
@@ -86,11 +96,40 @@ public class ServerSurrogate {
      */
     Map<String, ConnectionWorkerThread> serverConnections =
             new ConcurrentHashMap<String, ConnectionWorkerThread>(0);
+    /**
+     * Flag indicating if the traffic of a client session is always forwarded through
+     * the same connection to the server.
+     */
+    private boolean sessionAffinity;
+    /**
+     * Selects the connection of sessions when session affinity is enabled.
+     */
+    private final ConnectionSelector<ConnectionWorkerThread> connectionSelector =
+            new ConnectionSelector<ConnectionWorkerThread>() {
+                @Override
+                protected boolean isValid(ConnectionWorkerThread workerThread) {
+                    return workerThread.isValid();
+                }
+
+                @Override
+                protected String getName(ConnectionWorkerThread workerThread) {
+                    return workerThread.getName();
+                }
+            };
+    /**
+     * Executor of client tasks that honours the session affinity.
+     */
+    private final Executor clientTaskExecutor = new Executor() {
+        public void execute(Runnable command) {
+            ServerSurrogate.this.execute((ClientTask) command);
+        }
+    };
 
     ServerSurrogate() {
     }
 
     void start() {
+        sessionAffinity = JiveGlobals.getBooleanProperty("xmpp.manager.routing.affinity", false);
         // Create empty thread pool
         createThreadPool();
         // Populate thread pool with threads that will include connections to the server
@@ -105,6 +144,9 @@ public class ServerSurrogate {
                         Thread.sleep(30000);
                         for (ConnectionWorkerThread thread : serverConnections.values()) {
                             thread.getConnection().deliverRawText(" ");
+                            if (Log.isDebugEnabled()) {
+                                logStatistics(thread);
+                            }
                         }
                     }
                     catch (InterruptedException e) {
@@ -121,6 +163,30 @@ public class ServerSurrogate {
         hearbeatThread.start();
     }
 
+    /**
+     * Logs the sizes of the batches of stanzas written to the server by the specified
+     * working thread and the number of tasks of the connection waiting to be processed.
+     *
+     * @param thread the working thread whose connection statistics will be logged.
+     */
+    private void logStatistics(ConnectionWorkerThread thread) {
+        ServerPacketReader reader = thread.getPacketReader();
+        if (reader != null) {
+            Log.debug("CM - " + thread.getName() + " incoming queue depth: " +
+                    reader.getQueueDepth() + " (all connections: " +
+                    ServerPacketReader.getPendingTasks() + ")");
+        }
+        SocketConnection connection = thread.getConnection();
+        long batches = connection.getBatchCount();
+        if (batches > 0) {
+            Log.debug("CM - " + thread.getName() + " wrote " + connection.getBatchedStanzas() +
+                    " stanzas in " + batches + " batches (average: " +
+                    connection.getBatchedStanzas() / batches + ", largest: " +
+                    connection.getLargestBatch() + ", bytes: " +
+                    connection.getBatchedBytes() + ")");
+        }
+    }
+
     /**
      * Closes existing connections to the server. A new thread pool will be created
      * but no connections will be created.  New connections will be created on demand.
@@ -159,6 +225,8 @@ public class ServerSurrogate {
      * @param address the remote address of the connection.
      */
     public void clientSessionCreated(final String streamID, final InetAddress address) {
+        // Always use the thread pool since the host name of the address may be looked up.
+        // Stanzas of the session are queued until the server created the session
         threadPool.execute(new NewSessionTask(streamID, address));
     }
 
@@ -169,7 +237,7 @@ public class ServerSurrogate {
      * @param streamID the stream ID assigned by the connection manager to the session.
      */
     public void clientSessionClosed(final String streamID) {
-        threadPool.execute(new CloseSessionTask(streamID));
+        execute(new CloseSessionTask(streamID));
     }
 
     /**
@@ -181,7 +249,7 @@ public class ServerSurrogate {
      *        longer available session.
      */
     public void deliveryFailed(Element stanza, String streamID) {
-        threadPool.execute(new DeliveryFailedTask(streamID, stanza));
+        execute(new DeliveryFailedTask(streamID, stanza));
     }
 
     /**
@@ -195,9 +263,56 @@ public class ServerSurrogate {
         RouteTask task = new RouteTask(streamID, stanza);
         ClientSession session = (ClientSession) Session.getSession(streamID);
         if (session == null || session.isSessionCreatedOnServer()) {
-            threadPool.execute(new RouteTask(streamID, stanza));
+            execute(task);
         } else {
-            session.pendClientTask(task, threadPool);
+            session.pendClientTask(task, clientTaskExecutor);
+        }
+    }
+
+    /**
+     * Executes the specified client task. When session affinity is enabled the task is
+     * executed by the calling thread using the connection assigned to the session. Since
+     * connections queue outgoing stanzas the calling thread will not wait for the stanza
+     * to be sent. If no connection to the server is available then the task will be
+     * executed by the thread pool that will try to create new connections.
+     *
+     * @param task the client task to execute.
+     */
+    private void execute(ClientTask task) {
+        if (sessionAffinity) {
+            ConnectionWorkerThread workerThread = getConnectionWorker(task.getStreamID());
+            if (workerThread != null) {
+                task.run(workerThread);
+                return;
+            }
+        }
+        threadPool.execute(task);
+    }
+
+    /**
+     * Returns the working thread whose connection to the server will be used for
+     * forwarding the traffic of the specified session or <tt>null</tt> if there are no
+     * valid connections. The session keeps using the connection assigned to it while the
+     * connection is valid. A new connection is assigned when the connection is lost.
+     *
+     * @param streamID the stream ID assigned by the connection manager to the session.
+     * @return the working thread whose connection will be used by the session.
+     */
+    private ConnectionWorkerThread getConnectionWorker(String streamID) {
+        Session session = Session.getSession(streamID);
+        if (!(session instanceof ClientSession)) {
+            // Unknown session so nothing can be assigned
+            return connectionSelector.select(streamID, null, serverConnections.values());
+        }
+        ClientSession clientSession = (ClientSession) session;
+        while (true) {
+            ConnectionWorkerThread assigned = clientSession.getWorkerThread();
+            ConnectionWorkerThread selected =
+                    connectionSelector.select(streamID, assigned, serverConnections.values());
+            if (selected == assigned || clientSession.assignWorkerThread(assigned, selected)) {
+                return selected;
+            }
+            // Another thread assigned a connection to the session. Use that connection
         }
     }
 
@@ -411,4 +526,14 @@ public class ServerSurrogate {
     AbstractExecutorService getThreadPool(){
         return threadPool;
     }
+
+    /**
+     * Returns the executor to use for executing client tasks that were queued until
+     * the session was created on the server.
+     *
+     * @return the executor to use for executing client tasks.
+     */
+    Executor getClientTaskExecutor() {
+        return clientTaskExecutor;
+    }
 }
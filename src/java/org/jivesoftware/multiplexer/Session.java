@@ -23,10 +23,8 @@ package org.jivesoftware.multiplexer;
 import org.dom4j.Element;
 
 import java.util.Date;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * The session represents a connection between the server and a client (c2s) or
@@ -73,25 +71,44 @@ public abstract class Session {
 
     private String serverName;
 
-    private Date startDate = new Date();
-    
-    private Queue<Element> stanzaQueue = new ConcurrentLinkedQueue<Element>();
+    private long startTime = System.currentTimeMillis();
 
     /**
-     * Map of existing sessions. A session is added just after the initial stream header
-     * was processed. Key: stream ID, value: the session.
+     * Queue of stanzas sent by the server to this session. The queue is created when
+     * the first stanza is received since many sessions are idle.
      */
-    private static Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    private volatile StanzaQueue stanzaQueue;
 
-    public static StreamIDFactory idFactory = new StreamIDFactory();
+    private static final AtomicReferenceFieldUpdater<Session, StanzaQueue> stanzaQueueUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Session.class, StanzaQueue.class, "stanzaQueue");
+
+    /**
+     * Registry of existing sessions. A session is added just after the initial stream header
+     * was processed. Key: stream ID, value: the session. The registry is created the first
+     * time it is used since it needs the stream ID factory of the connection manager.
+     */
+    private static volatile SessionRegistry<Session> sessions;
+
+    private static SessionRegistry<Session> getRegistry() {
+        SessionRegistry<Session> registry = sessions;
+        if (registry == null) {
+            synchronized (Session.class) {
+                if (sessions == null) {
+                    sessions = new SessionRegistry<Session>(StreamIDFactory.getInstance(),
+                            Math.max(16, Runtime.getRuntime().availableProcessors() * 4));
+                }
+                registry = sessions;
+            }
+        }
+        return registry;
+    }
 
     public static void addSession(String streamID, Session session) {
-        sessions.put(streamID, session);
+        getRegistry().put(streamID, session);
     }
 
     public static void removeSession(String streamID) {
-        StreamIDFactory.releaseId(streamID);
-        sessions.remove(streamID);
+        getRegistry().remove(streamID);
     }
 
         /**
@@ -101,7 +118,26 @@ public abstract class Session {
      * @return the session whose stream ID matches the specified stream ID.
      */
     public static Session getSession(String streamID) {
-        return sessions.get(streamID);
+        return getRegistry().get(streamID);
+    }
+
+    /**
+     * Returns the existing sessions. The returned list is a copy so sessions may be
+     * closed while iterating over the list.
+     *
+     * @return the existing sessions.
+     */
+    public static List<Session> getSessions() {
+        return getRegistry().getSessions();
+    }
+
+    /**
+     * Returns the number of sessions in each shard of the registry of sessions.
+     *
+     * @return the number of sessions in each shard of the registry of sessions.
+     */
+    public static int[] getSessionShardSizes() {
+        return getRegistry().getShardSizes();
     }
 
     /**
@@ -111,7 +147,7 @@ public abstract class Session {
      * connections to the server (on demand).
      */
     public static void closeAll() {
-        for (Session session : sessions.values()) {
+        for (Session session : getRegistry().getSessions()) {
             session.close(true);
         }
     }
@@ -172,14 +208,20 @@ public abstract class Session {
      * @return the session's creation date.
      */
     public Date getCreationDate() {
-        return startDate;
+        return new Date(startTime);
     }
     
     /**
      * @return the current stanza queue for this session
      */
-    public Queue<Element> getStanzaQueue() {
-        return stanzaQueue;
+    public StanzaQueue getStanzaQueue() {
+        StanzaQueue queue = stanzaQueue;
+        if (queue == null) {
+            // Sessions may receive stanzas from many connections to the server at the same time
+            stanzaQueueUpdater.compareAndSet(this, null, new StanzaQueue());
+            queue = stanzaQueue;
+        }
+        return queue;
     }
 
     /**
@@ -0,0 +1,176 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+/**
+ * Reads the packets sent by the server recognizing the session control packets while
+ * streaming. The server sends a control packet for every client session that is created
+ * or closed so these packets are a big share of the traffic during login storms (e.g.
+ * when clients reconnect after the server was restarted). The following packets are
+ * recognized without creating DOM elements:
+ * <ul>
+ *      <li><tt>&lt;iq type="result"&gt;&lt;session id="..."&gt;&lt;create/&gt;&lt;/session&gt;&lt;/iq&gt;</tt></li>
+ *      <li><tt>&lt;iq type="set"&gt;&lt;session id="..."&gt;&lt;close/&gt;&lt;/session&gt;&lt;/iq&gt;</tt></li>
+ * </ul>
+ *
+ * Any other packet, including control packets with additional content, is read into DOM
+ * elements like {@link XMPPPacketReader#parseElement()} does.
+ */
+class SessionControlReader {
+
+    /**
+     * The read packet was not a recognized control packet.
+     */
+    static final int NONE = 0;
+    /**
+     * The read packet was the result of creating a session in the server.
+     */
+    static final int CREATED = 1;
+    /**
+     * The read packet was a request to close a session.
+     */
+    static final int CLOSE = 2;
+
+    /**
+     * Element queued in the stanza queue of a session to close the session after the
+     * stanzas queued before the request to close the session were processed.
+     */
+    static final Element CLOSE_SESSION = DocumentHelper.createElement("close");
+
+    private final XMPPPacketReader reader;
+    private final XMPPPacketReader.StartTag iqTag = new XMPPPacketReader.StartTag();
+    private final XMPPPacketReader.StartTag sessionTag = new XMPPPacketReader.StartTag();
+    private final XMPPPacketReader.StartTag actionTag = new XMPPPacketReader.StartTag();
+
+    private int action = NONE;
+    private String streamID;
+
+    SessionControlReader(XMPPPacketReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next packet sent by the server. Returns <tt>null</tt> if a control packet
+     * was recognized. Use {@link #getAction()} and {@link #getStreamID()} to get the
+     * recognized control packet.
+     *
+     * @return the read packet, or <tt>null</tt> if a control packet was recognized or the
+     *         end of the stream was reached.
+     * @throws DocumentException if the read text is not a valid element.
+     * @throws IOException if an error occured while reading.
+     * @throws XmlPullParserException if an error occured while parsing.
+     */
+    Element read() throws DocumentException, IOException, XmlPullParserException {
+        action = NONE;
+        streamID = null;
+        XmlPullParser pp = reader.getXPPParser();
+        int type = pp.nextToken();
+        // Skip heartbeats sent between packets
+        while ((type == XmlPullParser.TEXT || type == XmlPullParser.IGNORABLE_WHITESPACE) &&
+                pp.isWhitespace()) {
+            type = pp.nextToken();
+        }
+        if (type != XmlPullParser.START_TAG || !"iq".equals(pp.getName())) {
+            return reader.resumeElement(null);
+        }
+        iqTag.capture(pp);
+        String iqType = iqTag.getAttributeValue("type");
+        String expected;
+        if ("result".equals(iqType)) {
+            expected = "create";
+        }
+        else if ("set".equals(iqType)) {
+            expected = "close";
+        }
+        else {
+            return reader.resumeElement(null);
+        }
+        if (pp.nextToken() != XmlPullParser.START_TAG || !"session".equals(pp.getName())) {
+            return resume(1, 0);
+        }
+        sessionTag.capture(pp);
+        if (sessionTag.getAttributeValue("id") == null) {
+            return resume(1, 0);
+        }
+        if (pp.nextToken() != XmlPullParser.START_TAG || !expected.equals(pp.getName())) {
+            return resume(2, 0);
+        }
+        actionTag.capture(pp);
+        // Check that the action, session and iq elements are closed with nothing else inside
+        for (int closed = 0; closed < 3; closed++) {
+            if (pp.nextToken() != XmlPullParser.END_TAG) {
+                return resume(3, closed);
+            }
+        }
+        action = "create".equals(expected) ? CREATED : CLOSE;
+        streamID = sessionTag.getAttributeValue("id");
+        reader.updateLastActive();
+        return null;
+    }
+
+    /**
+     * Returns the control packet that was recognized by the last read.
+     *
+     * @return CREATED or CLOSE if a control packet was recognized or NONE otherwise.
+     */
+    int getAction() {
+        return action;
+    }
+
+    /**
+     * Returns the stream ID of the session of the recognized control packet.
+     *
+     * @return the stream ID of the session of the recognized control packet.
+     */
+    String getStreamID() {
+        return streamID;
+    }
+
+    /**
+     * Creates the elements of the tags that were already read and continues reading the
+     * packet into DOM elements starting with the current token of the parser.
+     *
+     * @param tags number of start tags that were read (iq, session and action).
+     * @param closed number of read tags that were already closed.
+     * @return the read packet.
+     */
+    private Element resume(int tags, int closed)
+            throws DocumentException, IOException, XmlPullParserException {
+        Element[] elements = new Element[tags];
+        elements[0] = reader.createElement(iqTag);
+        if (tags > 1) {
+            elements[1] = reader.createElement(sessionTag);
+            elements[0].add(elements[1]);
+        }
+        if (tags > 2) {
+            elements[2] = reader.createElement(actionTag);
+            elements[1].add(elements[2]);
+        }
+        return reader.resumeElement(elements[tags - 1 - closed]);
+    }
+}
@@ -0,0 +1,273 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of sessions keyed by stream ID. Stream IDs are converted to <tt>long</tt> keys
+ * using {@link StreamIDFactory#getKey(String)} so stream IDs are not hashed nor compared
+ * to find a session. Only stream IDs created by the factory can be registered.<p>
+ *
+ * Sessions are split into shards by key. Each shard is a hash table whose buckets hold
+ * chains of immutable entries. Lookups never lock: they read the published table and walk
+ * a chain. Threads that add or remove sessions lock the shard and publish new chains, so
+ * only writers of the same shard contend.
+ */
+public class SessionRegistry<S> {
+
+    private final StreamIDFactory idFactory;
+    private final Shard[] shards;
+    private final int mask;
+
+    /**
+     * Creates a new registry of sessions whose stream IDs were created by the specified
+     * factory.
+     *
+     * @param idFactory the factory that created the stream IDs of the sessions.
+     * @param concurrency the expected number of threads using the registry at the same time.
+     */
+    public SessionRegistry(StreamIDFactory idFactory, int concurrency) {
+        this.idFactory = idFactory;
+        int size = 1;
+        while (size < concurrency) {
+            size <<= 1;
+        }
+        shards = new Shard[size];
+        for (int i = 0; i < size; i++) {
+            shards[i] = new Shard();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Registers a session with the specified stream ID.
+     *
+     * @param streamID the stream ID of the session.
+     * @param session the session to register.
+     * @throws IllegalArgumentException if the stream ID was not created by the factory.
+     */
+    public void put(String streamID, S session) {
+        long key = idFactory.getKey(streamID);
+        if (key < 0) {
+            throw new IllegalArgumentException("Unknown stream ID: " + streamID);
+        }
+        long hash = hash(key);
+        shards[(int) hash & mask].put(key, (int) (hash >>> 32), streamID, session);
+    }
+
+    /**
+     * Returns the session with the specified stream ID or <tt>null</tt> if none.
+     *
+     * @param streamID the stream ID of the session.
+     * @return the session with the specified stream ID or null if none.
+     */
+    @SuppressWarnings("unchecked")
+    public S get(String streamID) {
+        long key = idFactory.getKey(streamID);
+        if (key < 0) {
+            return null;
+        }
+        long hash = hash(key);
+        return (S) shards[(int) hash & mask].get(key, (int) (hash >>> 32), streamID);
+    }
+
+    /**
+     * Removes the session with the specified stream ID.
+     *
+     * @param streamID the stream ID of the session.
+     * @return the removed session or null if none.
+     */
+    @SuppressWarnings("unchecked")
+    public S remove(String streamID) {
+        long key = idFactory.getKey(streamID);
+        if (key < 0) {
+            return null;
+        }
+        long hash = hash(key);
+        return (S) shards[(int) hash & mask].remove(key, (int) (hash >>> 32), streamID);
+    }
+
+    /**
+     * Returns a copy of the registered sessions. Shards are copied one at a time so
+     * the registry is never locked as a whole.
+     *
+     * @return a copy of the registered sessions.
+     */
+    @SuppressWarnings("unchecked")
+    public List<S> getSessions() {
+        List<S> sessions = new ArrayList<S>(size());
+        for (Shard shard : shards) {
+            shard.copyTo((List<Object>) sessions);
+        }
+        return sessions;
+    }
+
+    /**
+     * Returns the number of registered sessions.
+     *
+     * @return the number of registered sessions.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of sessions in each shard.
+     *
+     * @return the number of sessions in each shard.
+     */
+    public int[] getShardSizes() {
+        int[] sizes = new int[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            sizes[i] = shards[i].size();
+        }
+        return sizes;
+    }
+
+    /**
+     * Spreads the bits of the key (finalization step of MurmurHash3).
+     */
+    private static long hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Hash table of sessions. Entries are never modified once they were published: writers
+     * replace the chain of a bucket with a new one and a resized table is published only
+     * after it was filled, so readers see either the old or the new state of a bucket.
+     */
+    private static class Shard {
+
+        private volatile AtomicReferenceArray<Entry> table = new AtomicReferenceArray<Entry>(16);
+        private volatile int size;
+
+        synchronized void put(long key, int hash, String streamID, Object session) {
+            AtomicReferenceArray<Entry> tab = table;
+            int index = hash & (tab.length() - 1);
+            Entry head = tab.get(index);
+            for (Entry e = head; e != null; e = e.next) {
+                if (e.key == key) {
+                    tab.set(index, copyWithout(head, e,
+                            new Entry(key, hash, streamID, session, e.next)));
+                    return;
+                }
+            }
+            tab.set(index, new Entry(key, hash, streamID, session, head));
+            size++;
+            if (size * 4 > tab.length() * 3) {
+                resize(tab);
+            }
+        }
+
+        Object get(long key, int hash, String streamID) {
+            AtomicReferenceArray<Entry> tab = table;
+            for (Entry e = tab.get(hash & (tab.length() - 1)); e != null; e = e.next) {
+                if (e.key == key) {
+                    return streamID.equals(e.streamID) ? e.session : null;
+                }
+            }
+            return null;
+        }
+
+        synchronized Object remove(long key, int hash, String streamID) {
+            AtomicReferenceArray<Entry> tab = table;
+            int index = hash & (tab.length() - 1);
+            Entry head = tab.get(index);
+            for (Entry e = head; e != null; e = e.next) {
+                if (e.key == key) {
+                    if (!streamID.equals(e.streamID)) {
+                        return null;
+                    }
+                    tab.set(index, copyWithout(head, e, e.next));
+                    size--;
+                    return e.session;
+                }
+            }
+            return null;
+        }
+
+        void copyTo(List<Object> list) {
+            AtomicReferenceArray<Entry> tab = table;
+            for (int i = 0; i < tab.length(); i++) {
+                for (Entry e = tab.get(i); e != null; e = e.next) {
+                    list.add(e.session);
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * Returns a chain with copies of the entries that precede the specified entry
+         * followed by the specified tail.
+         */
+        private static Entry copyWithout(Entry head, Entry entry, Entry tail) {
+            Entry chain = tail;
+            for (Entry e = head; e != entry; e = e.next) {
+                chain = new Entry(e.key, e.hash, e.streamID, e.session, chain);
+            }
+            return chain;
+        }
+
+        private void resize(AtomicReferenceArray<Entry> oldTable) {
+            AtomicReferenceArray<Entry> newTable =
+                    new AtomicReferenceArray<Entry>(oldTable.length() * 2);
+            int slotMask = newTable.length() - 1;
+            for (int i = 0; i < oldTable.length(); i++) {
+                for (Entry e = oldTable.get(i); e != null; e = e.next) {
+                    int index = e.hash & slotMask;
+                    newTable.set(index, new Entry(e.key, e.hash, e.streamID, e.session,
+                            newTable.get(index)));
+                }
+            }
+            table = newTable;
+        }
+    }
+
+    private static class Entry {
+
+        private final long key;
+        private final int hash;
+        private final String streamID;
+        private final Object session;
+        private final Entry next;
+
+        Entry(long key, int hash, String streamID, Object session, Entry next) {
+            this.key = key;
+            this.hash = hash;
+            this.streamID = streamID;
+            this.session = session;
+            this.next = next;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.dom4j.Element;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Queue of stanzas sent by the server to a session. Stanzas have to be processed in the
+ * same order that they were received so at most one thread may process the queue at any
+ * time. Instead of locking, the queue keeps track of whether a task was scheduled for
+ * processing the queue. Only the thread that adds a stanza to an idle queue schedules a
+ * task and the scheduled task processes every queued stanza until the queue is empty.<p>
+ *
+ * Processing tasks should use the following pattern:
+ * <pre>
+ * do {
+ *     while ((stanza = queue.poll()) != null) {
+ *         // Process the stanza
+ *     }
+ * } while (queue.release());
+ * </pre>
+ */
+public class StanzaQueue {
+
+    private final Queue<Element> stanzas = new ConcurrentLinkedQueue<Element>();
+    /**
+     * Flag indicating if a task was scheduled for processing the queued stanzas. A field
+     * updater is used instead of an AtomicBoolean to save an object per session.
+     */
+    private volatile int scheduled;
+
+    private static final AtomicIntegerFieldUpdater<StanzaQueue> scheduledUpdater =
+            AtomicIntegerFieldUpdater.newUpdater(StanzaQueue.class, "scheduled");
+
+    /**
+     * Adds a stanza to the queue. Returns true if the caller has to schedule a task for
+     * processing the queue. A task has to be scheduled when the queue was idle.
+     *
+     * @param stanza the stanza to add to the queue.
+     * @return true if the caller has to schedule a task for processing the queue.
+     */
+    public boolean add(Element stanza) {
+        stanzas.add(stanza);
+        return scheduledUpdater.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Returns the next stanza to process or <tt>null</tt> if the queue is empty. Only the
+     * scheduled task may invoke this method.
+     *
+     * @return the next stanza to process or null if the queue is empty.
+     */
+    public Element poll() {
+        return stanzas.poll();
+    }
+
+    /**
+     * Marks the queue as idle after the scheduled task processed all the queued stanzas.
+     * Returns true if stanzas were added while the queue was being released and the task
+     * has to keep processing the queue.
+     *
+     * @return true if the task has to keep processing the queue.
+     */
+    public boolean release() {
+        scheduled = 0;
+        return !stanzas.isEmpty() && scheduledUpdater.compareAndSet(this, 0, 1);
+    }
+
+    /**
+     * Returns true if there are no stanzas waiting to be processed.
+     *
+     * @return true if there are no stanzas waiting to be processed.
+     */
+    public boolean isEmpty() {
+        return stanzas.isEmpty();
+    }
+}
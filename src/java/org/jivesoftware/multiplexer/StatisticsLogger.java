@@ -0,0 +1,81 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.jivesoftware.multiplexer.net.ConnectionHandler;
+import org.jivesoftware.multiplexer.net.NIOConnection;
+import org.jivesoftware.multiplexer.net.SizeClassBufferAllocator;
+import org.jivesoftware.util.Log;
+import org.jivesoftware.util.StringUtils;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.TimerWheel;
+
+import java.util.TimerTask;
+
+/**
+ * Task that logs the statistics of the client connections, caches and task engine of the
+ * connection manager when debug is enabled. Statistics of the connections to the server
+ * are logged by {@link ServerSurrogate} when heartbeats are sent.
+ */
+class StatisticsLogger extends TimerTask {
+
+    /**
+     * Milliseconds between statistics.
+     */
+    static final long PERIOD = 30000;
+
+    @Override
+    public void run() {
+        if (!Log.isDebugEnabled()) {
+            return;
+        }
+        try {
+            Log.debug("CM - Sessions with compacted parser buffers: " +
+                    ConnectionHandler.getCompactedSessions());
+            Log.debug("CM - Client write requests: " + NIOConnection.getWriteRequests() +
+                    ", coalesced writes: " + NIOConnection.getCoalescedWrites());
+            SizeClassBufferAllocator allocator =
+                    ConnectionManager.getInstance().getBufferAllocator();
+            if (allocator != null) {
+                Log.debug("CM - Pooled buffers hits: " + allocator.getHits() + ", misses: " +
+                        allocator.getMisses() + ", outstanding: " + allocator.getOutstanding() +
+                        ", pooled bytes: " + allocator.getPooledBytes());
+            }
+            // Do not create the resolver if no host name was looked up
+            HostNameResolver resolver = HostNameResolver.getExistingInstance();
+            if (resolver != null) {
+                Log.debug("CM - Host name cache hits: " + resolver.getHits() + ", misses: " +
+                        resolver.getMisses() + ", timeouts: " + resolver.getTimeouts() +
+                        ", lookups: " + resolver.getLookups() + " (average: " +
+                        resolver.getAverageLookupTime() + " ms)");
+            }
+            Log.debug("CM - JID validation cache hits: " + StringUtils.getJIDCacheHits() +
+                    ", misses: " + StringUtils.getJIDCacheMisses());
+            TaskEngine taskEngine = TaskEngine.getInstance();
+            TimerWheel timerWheel = taskEngine.getTimerWheel();
+            Log.debug("CM - Task engine queue: " + taskEngine.getQueueSize() + ", active: " +
+                    taskEngine.getActiveCount() + ", lag: " + taskEngine.getAverageLag() +
+                    " ms (max: " + taskEngine.getMaxLag() + " ms), pending timeouts: " +
+                    timerWheel.getPendingTimeouts() + ", timeout lag: " +
+                    timerWheel.getAverageLag() + " ms (max: " + timerWheel.getMaxLag() + " ms)");
+        }
+        catch (Exception e) {
+            Log.error(e);
+        }
+    }
+}
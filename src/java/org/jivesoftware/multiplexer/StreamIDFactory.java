@@ -21,36 +21,131 @@
 package org.jivesoftware.multiplexer;
 
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A basic stream ID factory that produces id's using java.util.Random
- * and a simple hex representation of a random int prefixed by the connection
- * manager name.<p>
+ * Stream ID factory that produces unique IDs without keeping track of the IDs in use.
+ * A stream ID is composed of the connection manager name, a separator, a random salt of
+ * 4 characters and the value of a counter. The counter is shared by all the factories
+ * and it is incremented for each new stream ID so IDs created by this connection manager
+ * are unique. The counter starts at a random value so that a restarted connection manager
+ * does not create the IDs of sessions that the server may still hold. Since the name of
+ * the connection manager is included, IDs are also unique among connection managers.
+ * The salt makes IDs harder to guess. The salt and the counter are encoded in base 36.
+ * The separator is not a base 36 digit so the IDs of connection managers whose names are
+ * prefixes of other names (e.g. <tt>cm</tt> and <tt>cm1</tt>) never collide.<p>
  *
- * Each connection manager has to provide unique stream IDs.
+ * Use {@link #getInstance()} to get the factory of the sessions of the running connection
+ * manager.<p>
+ *
+ * Use {@link #getKey(String)} to get the value of the counter of a stream ID. The value
+ * is unique among the stream IDs created by this connection manager and can be used for
+ * looking up sessions without hashing stream IDs.
  *
  * @author Gaston Dombiak
  */
 public class StreamIDFactory {
 
-    private static final ConcurrentHashMap<String, Boolean> usingStreamIDs = new ConcurrentHashMap<String, Boolean>();
+    private static final char SEPARATOR = '-';
+    private static final int SALT_LENGTH = 4;
+    private static final int SALT_RANGE = 36 * 36 * 36 * 36;
 
-    String managerName = ConnectionManager.getInstance().getName();
+    /**
+     * Counter shared by all the factories. It starts at a random value below 2^48 so
+     * keys still have plenty of room before reaching the max of 13 digits.
+     */
+    private static final AtomicLong counter = new AtomicLong(new Random().nextLong() >>> 16);
 
-    private Random rand = new Random();
+    private static volatile StreamIDFactory instance;
 
-    public String createStreamID() {
-        String streamID;
-        do {
-            streamID = managerName + Integer.toHexString(rand.nextInt());
-        } while(usingStreamIDs.putIfAbsent(streamID, Boolean.TRUE) == null);
-        return streamID;
+    private final String prefix;
+
+    /**
+     * Returns the factory of the stream IDs of the client sessions. The factory is created
+     * the first time it is used, once the name of the connection manager is known.
+     *
+     * @return the factory of the stream IDs of the client sessions.
+     * @throws IllegalStateException if the connection manager was not created yet.
+     */
+    public static StreamIDFactory getInstance() {
+        StreamIDFactory factory = instance;
+        if (factory == null) {
+            synchronized (StreamIDFactory.class) {
+                if (instance == null) {
+                    ConnectionManager manager = ConnectionManager.getInstance();
+                    if (manager == null || manager.getName() == null) {
+                        throw new IllegalStateException("Name of the connection manager is unknown");
+                    }
+                    instance = new StreamIDFactory(manager.getName());
+                }
+                factory = instance;
+            }
+        }
+        return factory;
     }
 
-    public static void releaseId(String streamId){
-        usingStreamIDs.remove(streamId);
+    /**
+     * Creates a factory of stream IDs that start with the specified prefix.
+     *
+     * @param prefix the prefix of the stream IDs (e.g. the connection manager name).
+     */
+    public StreamIDFactory(String prefix) {
+        if (prefix == null) {
+            throw new NullPointerException("Prefix cannot be null");
+        }
+        this.prefix = prefix;
     }
 
+    public String createStreamID() {
+        long key = counter.incrementAndGet();
+        int salt = ThreadLocalRandom.current().nextInt(SALT_RANGE);
+        StringBuilder sb = new StringBuilder(prefix.length() + 1 + SALT_LENGTH + 13);
+        sb.append(prefix).append(SEPARATOR);
+        for (int i = 0; i < SALT_LENGTH; i++) {
+            sb.append(Character.forDigit(salt % 36, 36));
+            salt /= 36;
+        }
+        sb.append(Long.toString(key, 36));
+        return sb.toString();
+    }
+
+    /**
+     * Returns the value of the counter used for creating the specified stream ID or -1
+     * if the stream ID was not created by a factory with the same prefix. Note that
+     * stream IDs created by other connection managers may return a valid key so keys
+     * should only be used for stream IDs created by this connection manager.
+     *
+     * @param streamID the stream ID created by this factory.
+     * @return the value of the counter used for creating the stream ID or -1 if none.
+     */
+    public long getKey(String streamID) {
+        int start = prefix.length() + 1 + SALT_LENGTH;
+        int length = streamID.length();
+        // Keys use at most 13 digits
+        if (length <= start || length > start + 13 || !streamID.startsWith(prefix) ||
+                streamID.charAt(prefix.length()) != SEPARATOR) {
+            return -1;
+        }
+        long key = 0;
+        for (int i = start; i < length; i++) {
+            char ch = streamID.charAt(i);
+            int digit;
+            if (ch >= '0' && ch <= '9') {
+                digit = ch - '0';
+            }
+            else if (ch >= 'a' && ch <= 'z') {
+                digit = ch - 'a' + 10;
+            }
+            else {
+                return -1;
+            }
+            if (key > (Long.MAX_VALUE - digit) / 36) {
+                // Value is too big to be a key
+                return -1;
+            }
+            key = key * 36 + digit;
+        }
+        return key > 0 ? key : -1;
+    }
 }
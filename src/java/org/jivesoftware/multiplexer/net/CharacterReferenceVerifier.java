@@ -0,0 +1,141 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+/**
+ * Recognizes numeric character references (<code>&amp;#[0-9]+;</code> and
+ * <code>&amp;#x[0-9a-fA-F]+;</code>) one char at a time and verifies that the referenced
+ * code point is a legal XML character. Framers feed every char they read to the verifier
+ * so references are checked while stanzas are being framed and no stanza has to be
+ * scanned again once it is complete.<p>
+ *
+ * Text that only looks like the beginning of a reference (e.g. <tt>&amp;#;</tt>) is
+ * ignored just like {@link XMLLightweightParser#hasIllegalCharacterReferences(String)} does.
+ */
+class CharacterReferenceVerifier {
+
+    // No reference is being read
+    private static final int NONE = 0;
+    // A '&' was found
+    private static final int AMP = 1;
+    // A '&#' was found
+    private static final int HASH = 2;
+    // Reading the digits of a decimal reference
+    private static final int DEC = 3;
+    // A '&#x' was found
+    private static final int HEX_START = 4;
+    // Reading the digits of an hexadecimal reference
+    private static final int HEX = 5;
+
+    // Value used for references that exceed the max code point
+    private static final int OUT_OF_RANGE = 0x110000;
+
+    private int status = NONE;
+    private int value;
+
+    /**
+     * Feeds the next char to the verifier.
+     *
+     * @param ch the next char read by the framer. Non-ASCII bytes may be passed as is.
+     * @return false if the char completed a reference to an illegal XML character.
+     */
+    boolean verify(int ch) {
+        if (status == NONE) {
+            if (ch == '&') {
+                status = AMP;
+            }
+            return true;
+        }
+        if (ch == '&') {
+            status = AMP;
+            return true;
+        }
+        switch (status) {
+            case AMP:
+                status = ch == '#' ? HASH : NONE;
+                break;
+            case HASH:
+                if (ch >= '0' && ch <= '9') {
+                    status = DEC;
+                    value = ch - '0';
+                }
+                else if (ch == 'x' || ch == 'X') {
+                    status = HEX_START;
+                    value = 0;
+                }
+                else {
+                    status = NONE;
+                }
+                break;
+            case DEC:
+                if (ch >= '0' && ch <= '9') {
+                    addDigit(ch - '0', 10);
+                }
+                else {
+                    return endReference(ch);
+                }
+                break;
+            case HEX_START:
+            case HEX:
+                int digit = hexDigit(ch);
+                if (digit >= 0) {
+                    status = HEX;
+                    addDigit(digit, 16);
+                }
+                else if (status == HEX) {
+                    return endReference(ch);
+                }
+                else {
+                    status = NONE;
+                }
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Forgets any partially read reference. Used when a new stanza starts.
+     */
+    void reset() {
+        status = NONE;
+    }
+
+    private void addDigit(int digit, int radix) {
+        if (value < OUT_OF_RANGE) {
+            value = Math.min(value * radix + digit, OUT_OF_RANGE);
+        }
+    }
+
+    private boolean endReference(int ch) {
+        status = NONE;
+        return ch != ';' || XMLLightweightParser.isLegalXmlCharacter(value);
+    }
+
+    private static int hexDigit(int ch) {
+        if (ch >= '0' && ch <= '9') {
+            return ch - '0';
+        }
+        if (ch >= 'a' && ch <= 'f') {
+            return ch - 'a' + 10;
+        }
+        if (ch >= 'A' && ch <= 'F') {
+            return ch - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -23,6 +23,7 @@ package org.jivesoftware.multiplexer.net;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.mina.common.IdleStatus;
 import org.apache.mina.common.IoHandlerAdapter;
@@ -33,6 +34,7 @@ import org.jivesoftware.multiplexer.ConnectionManager;
 import org.jivesoftware.multiplexer.PacketRouter;
 import org.jivesoftware.multiplexer.StreamError;
 import org.jivesoftware.multiplexer.spi.ServerRouter;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -57,6 +59,11 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     protected static PacketRouter router = new ServerRouter();
     protected static String serverName = ConnectionManager.getInstance().getServerName();
     private static Map<Integer, XmlPullParser> parsers = new ConcurrentHashMap<Integer, XmlPullParser>();
+    /**
+     * Number of sessions whose stanza framer released its buffers because the
+     * connection was idle.
+     */
+    private static final AtomicInteger compactedSessions = new AtomicInteger(0);
     /**
      * Reuse the same factory for all the connections.
      */
@@ -75,14 +82,30 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
+        // Use the byte level framer when enabled so that read data is only decoded once per stanza
+        // Use the validating framer when enabled so that stanzas are not parsed again before being routed
+        StanzaFramer parser;
+        if (JiveGlobals.getBooleanProperty("xmpp.parser.validate.enabled", false)) {
+            parser = new ValidatingStanzaFramer();
+        }
+        else if (JiveGlobals.getBooleanProperty("xmpp.parser.utf8.enabled", false)) {
+            parser = new UTF8StanzaFramer();
+        }
+        else {
+            parser = new XMLLightweightParser(CHARSET);
+        }
         session.setAttribute(XML_PARSER, parser);
         // Create a new NIOConnection for the new session
         NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
         session.setAttribute(HANDLER, createStanzaHandler(connection));
-        // Set the max time a connection can be idle before closing it
+        // Set the max time a connection can be idle before closing it. Connections that
+        // are idle for less time get their stanza framer compacted so use the smaller time
         int idleTime = getMaxIdleTime();
+        int compactTime = getCompactIdleTime();
+        if (compactTime > 0 && (idleTime <= 0 || compactTime < idleTime)) {
+            idleTime = compactTime;
+        }
         if (idleTime > 0) {
             session.setIdleTime(IdleStatus.READER_IDLE, idleTime);
         }
@@ -90,6 +113,10 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 
     @Override
 	public void sessionClosed(IoSession session) throws Exception {
+        StanzaFramer parser = (StanzaFramer) session.getAttribute(XML_PARSER);
+        if (parser != null && parser.isCompacted()) {
+            compactedSessions.decrementAndGet();
+        }
         // Get the connection for this session
         Connection connection = (Connection) session.getAttribute(CONNECTION);
         // Inform the connection that it was closed
@@ -98,6 +125,18 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 
     @Override
 	public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
+        // Idle events are fired every time the compaction time elapses so check
+        // whether the connection has been idle long enough to be closed
+        int idleTime = getMaxIdleTime();
+        if (idleTime <= 0 ||
+                System.currentTimeMillis() - session.getLastReadTime() < idleTime * 1000L) {
+            // Release the buffers of the framer until the client sends data again
+            StanzaFramer parser = (StanzaFramer) session.getAttribute(XML_PARSER);
+            if (parser.compact()) {
+                compactedSessions.incrementAndGet();
+            }
+            return;
+        }
         // Get the connection for this session
         Connection connection = (Connection) session.getAttribute(CONNECTION);
         // Close idle connection
@@ -107,6 +146,24 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         connection.close();
     }
 
+    /**
+     * Notification that the stanza framer of a session is about to read data after
+     * having been compacted.
+     */
+    static void framerInflated() {
+        compactedSessions.decrementAndGet();
+    }
+
+    /**
+     * Returns the number of sessions whose stanza framer released its buffers because
+     * the connection was idle.
+     *
+     * @return the number of sessions whose stanza framer released its buffers.
+     */
+    public static int getCompactedSessions() {
+        return compactedSessions.get();
+    }
+
     @Override
 	public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
         if (cause instanceof IOException) {
@@ -152,7 +209,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 
         // Let the stanza handler process the received stanza
         try {
-            handler.process( (String) message, parser);
+            if (message instanceof StanzaHeader) {
+                handler.process((StanzaHeader) message, parser);
+            }
+            else {
+                handler.process( (String) message, parser);
+            }
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             Connection connection = (Connection) session.getAttribute(CONNECTION);
@@ -171,4 +233,16 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
      * @return the max number of seconds a connection can be idle.
      */
     abstract int getMaxIdleTime();
+
+    /**
+     * Returns the number of seconds a connection has to be idle before the buffers of its
+     * stanza framer are released. The buffers are allocated again when the client sends
+     * more data. A value of zero or less disables releasing the buffers.
+     *
+     * @return the number of seconds a connection has to be idle before its buffers are released.
+     */
+    int getCompactIdleTime() {
+        // Return 1 minute
+        return JiveGlobals.getIntProperty("xmpp.parser.compact.idle", 60 * 1000) / 1000;
+    }
 }
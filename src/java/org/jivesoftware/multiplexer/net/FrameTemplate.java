@@ -0,0 +1,185 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Template of a stanza whose constant parts were encoded in UTF-8 in advance. Stanzas
+ * are created by copying the encoded constant parts and encoding the variable parts in
+ * between directly into the resulting byte array. Variable parts are escaped since they
+ * are used as attribute values except for the payload of templates that have a payload.
+ * The payload is always the last variable part and is copied as is (e.g. the wrapped
+ * stanza of a <tt>route</tt> element).<p>
+ *
+ * Example: <tt>new FrameTemplate(true, "&lt;route streamid='", "'&gt;", "&lt;/route&gt;")</tt>
+ * creates route elements with two variable parts: the stream ID and the wrapped stanza.
+ */
+public class FrameTemplate {
+
+    private final byte[][] parts;
+    private final int partsLength;
+    private final boolean payload;
+
+    /**
+     * Creates a new template with the specified constant parts. The stanza will have a
+     * variable part between each constant part.
+     *
+     * @param payload true if the last variable part is a payload that should not be escaped.
+     * @param parts the constant parts of the stanza.
+     */
+    public FrameTemplate(boolean payload, String... parts) {
+        this.payload = payload;
+        this.parts = new byte[parts.length][];
+        int length = 0;
+        for (int i = 0; i < parts.length; i++) {
+            try {
+                this.parts[i] = parts[i].getBytes("UTF-8");
+            }
+            catch (UnsupportedEncodingException e) {
+                // Should never happen
+                throw new IllegalStateException(e);
+            }
+            length += this.parts[i].length;
+        }
+        this.partsLength = length;
+    }
+
+    /**
+     * Returns the UTF-8 encoded stanza that includes the specified variable parts.
+     *
+     * @param values the variable parts of the stanza.
+     * @return the UTF-8 encoded stanza.
+     * @throws IllegalArgumentException if the number of variable parts does not match
+     *         the number of constant parts of the template.
+     */
+    public byte[] build(String... values) {
+        if (values.length != parts.length - 1) {
+            throw new IllegalArgumentException("Template requires " + (parts.length - 1) +
+                    " values but found " + values.length);
+        }
+        int length = partsLength;
+        for (int i = 0; i < values.length; i++) {
+            length += encodedLength(values[i], isEscaped(i));
+        }
+        byte[] frame = new byte[length];
+        int offset = 0;
+        for (int i = 0; i < values.length; i++) {
+            System.arraycopy(parts[i], 0, frame, offset, parts[i].length);
+            offset += parts[i].length;
+            offset = encode(values[i], isEscaped(i), frame, offset);
+        }
+        byte[] last = parts[values.length];
+        System.arraycopy(last, 0, frame, offset, last.length);
+        return frame;
+    }
+
+    private boolean isEscaped(int index) {
+        return !payload || index < parts.length - 2;
+    }
+
+    /**
+     * Returns the number of bytes of the UTF-8 encoded and possibly escaped text.
+     */
+    private static int encodedLength(String text, boolean escape) {
+        int length = 0;
+        for (int i = 0, size = text.length(); i < size; i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x80) {
+                String entity = escape ? getEntity(ch) : null;
+                length += entity == null ? 1 : entity.length();
+            }
+            else if (ch < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(ch) && i + 1 < size &&
+                    Character.isLowSurrogate(text.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                length++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the possibly escaped text into the specified array. Unpaired surrogates are
+     * encoded as <tt>?</tt> like {@link String#getBytes(String)} does.
+     *
+     * @return the offset after the encoded text.
+     */
+    private static int encode(String text, boolean escape, byte[] dst, int offset) {
+        for (int i = 0, size = text.length(); i < size; i++) {
+            char ch = text.charAt(i);
+            if (ch < 0x80) {
+                String entity = escape ? getEntity(ch) : null;
+                if (entity == null) {
+                    dst[offset++] = (byte) ch;
+                }
+                else {
+                    for (int j = 0; j < entity.length(); j++) {
+                        dst[offset++] = (byte) entity.charAt(j);
+                    }
+                }
+            }
+            else if (ch < 0x800) {
+                dst[offset++] = (byte) (0xC0 | (ch >> 6));
+                dst[offset++] = (byte) (0x80 | (ch & 0x3F));
+            }
+            else if (Character.isHighSurrogate(ch) && i + 1 < size &&
+                    Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(ch, text.charAt(++i));
+                dst[offset++] = (byte) (0xF0 | (codePoint >> 18));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                dst[offset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                dst[offset++] = '?';
+            }
+            else {
+                dst[offset++] = (byte) (0xE0 | (ch >> 12));
+                dst[offset++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                dst[offset++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        return offset;
+    }
+
+    private static String getEntity(char ch) {
+        switch (ch) {
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '&':
+                return "&amp;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&apos;";
+            default:
+                return null;
+        }
+    }
+}
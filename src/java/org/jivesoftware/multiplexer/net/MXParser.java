@@ -20,6 +20,7 @@
 
 package org.jivesoftware.multiplexer.net;
 
+import org.jivesoftware.util.CoarseClock;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParser;
 
@@ -279,7 +280,7 @@ public class MXParser extends org.xmlpull.mxp1.MXParser {
                         if (eventType == XmlPullParser.END_TAG &&
                                 (ch == ' ' || ch == '\n' || ch == '\t')) {
                             // ** ADDED CODE (INCLUDING IF STATEMENT)
-                            lastHeartbeat = System.currentTimeMillis();;
+                            lastHeartbeat = CoarseClock.currentTimeMillis();
                         }
                         if(ch == ']') {
                             if(seenBracket) {
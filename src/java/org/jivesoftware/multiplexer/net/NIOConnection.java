@@ -20,7 +20,6 @@
 
 package org.jivesoftware.multiplexer.net;
 
-import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoFilterChain;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.CompressionFilter;
@@ -31,6 +30,7 @@ import org.jivesoftware.multiplexer.Connection;
 import org.jivesoftware.multiplexer.ConnectionCloseListener;
 import org.jivesoftware.multiplexer.PacketDeliverer;
 import org.jivesoftware.multiplexer.Session;
+import org.jivesoftware.util.IntProperty;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 import org.xmlpull.v1.XmlPullParserException;
@@ -45,6 +45,7 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.security.KeyStore;
 
 /**
@@ -65,9 +66,39 @@ public class NIOConnection implements Connection {
      * Reuse the same factory for all the connections.
      */
     private static XmlPullParserFactory factory = null;
+    /**
+     * Milliseconds to wait for the ACK of synchronous deliveries.
+     */
+    private static final IntProperty ACK_TIMEOUT = new IntProperty("connection.ack.timeout", 2000);
+    /**
+     * Encoders are not thread safe so each thread uses its own encoder instead of
+     * having an encoder per connection.
+     */
+    private static final ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return Charset.forName(CHARSET).newEncoder();
+        }
+    };
+    /**
+     * Encoders of raw text replace unmappable chars with <tt>?</tt> like
+     * {@link String#getBytes(String)} does.
+     */
+    private static final ThreadLocal<CharsetEncoder> rawEncoders = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return Charset.forName(CHARSET).newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    };
 
     private Session session;
     private IoSession ioSession;
+    /**
+     * Coalesces stanzas written while a previous write is in progress.
+     */
+    private final WriteCoalescer writer;
 
     private ConnectionCloseListener closeListener;
 
@@ -91,7 +122,6 @@ public class NIOConnection implements Connection {
      * Compression policy currently in use for this connection.
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
-    private CharsetEncoder encoder;
 
     static {
         try {
@@ -106,7 +136,7 @@ public class NIOConnection implements Connection {
     public NIOConnection(IoSession session, PacketDeliverer packetDeliverer) {
         this.ioSession = session;
         this.backupDeliverer = packetDeliverer;
-        encoder = Charset.forName(CHARSET).newEncoder();
+        this.writer = new WriteCoalescer(session);
     }
 
     public boolean validate() {
@@ -225,18 +255,10 @@ public class NIOConnection implements Connection {
             }
         }
         else {
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
-
             boolean errorDelivering = false;
             try {
-                buffer.putString(stanza, encoder);
-                if (flashClient) {
-                    buffer.put((byte) '\0');
-                }
-                buffer.flip();
                 //System.out.println("SENT: " + doc.asXML());
-                ioSession.write(buffer);
+                writer.write(stanza, encoders.get(), flashClient);
             }
             catch (Exception e) {
                 Log.debug("Error delivering packet" + "\n" + this.toString(), e);
@@ -258,6 +280,28 @@ public class NIOConnection implements Connection {
         }
     }
 
+    public void deliver(Element stanza) {
+        if (isClosed()) {
+            backupDeliverer.deliver(stanza);
+        }
+        else {
+            boolean errorDelivering = false;
+            try {
+                writer.write(stanza, flashClient);
+            }
+            catch (Exception e) {
+                Log.debug("Error delivering packet" + "\n" + this.toString(), e);
+                errorDelivering = true;
+            }
+            if (errorDelivering) {
+                close();
+                // Retry sending the packet again. Most probably if the packet is a
+                // Message it will be stored offline
+                backupDeliverer.deliver(stanza);
+            }
+        }
+    }
+
     public void deliverRawText(String text) {
         // Deliver the packet in asynchronous mode
         deliverRawText(text, true);
@@ -265,25 +309,15 @@ public class NIOConnection implements Connection {
 
     public void deliverRawText(String text, boolean asynchronous) {
         if (!isClosed()) {
-            ByteBuffer buffer = ByteBuffer.allocate(text.length());
-            buffer.setAutoExpand(true);
-
             boolean errorDelivering = false;
             try {
-                //Charset charset = Charset.forName(CHARSET);
-                //buffer.putString(text, charset.newEncoder());
-                buffer.put(text.getBytes(CHARSET));
-                if (flashClient) {
-                    buffer.put((byte) '\0');
-                }
-                buffer.flip();
                 if (asynchronous) {
-                    ioSession.write(buffer);
+                    writer.write(text, rawEncoders.get(), flashClient);
                 }
                 else {
                     // Send stanza and wait for ACK (using a 2 seconds default timeout)
-                    boolean ok =
-                            ioSession.write(buffer).join(JiveGlobals.getIntProperty("connection.ack.timeout", 2000));
+                    boolean ok = writer.writeNow(text, rawEncoders.get(), flashClient)
+                            .join(ACK_TIMEOUT.get());
                     if (!ok) {
                         Log.warn("No ACK was received when sending stanza to: " + this.toString());
                     }
@@ -342,21 +376,31 @@ public class NIOConnection implements Connection {
             }
         }
 
-        ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
-        ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
-        if (!clientMode) {
-            // Indicate the client that the server is ready to negotiate TLS
-            deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
+        synchronized (writer) {
+            // Pending text has to be written before encryption is enabled
+            writer.flush();
+            ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
+            ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
+            if (!clientMode) {
+                // Indicate the client that the server is ready to negotiate TLS. The text
+                // is not coalesced since it is the only text that is not encrypted
+                writer.writeNow("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>",
+                        rawEncoders.get(), flashClient);
+            }
         }
     }
 
     public void startCompression() {
-        IoFilterChain chain = ioSession.getFilterChain();
-        String baseFilter = "org.apache.mina.common.ExecutorThreadModel";
-        if (chain.contains("tls")) {
-            baseFilter = "tls";
+        synchronized (writer) {
+            // Pending text has to be written before compression is enabled
+            writer.flush();
+            IoFilterChain chain = ioSession.getFilterChain();
+            String baseFilter = "org.apache.mina.common.ExecutorThreadModel";
+            if (chain.contains("tls")) {
+                baseFilter = "tls";
+            }
+            chain.addAfter(baseFilter, "compression", new CompressionFilter(CompressionFilter.COMPRESSION_MAX));
         }
-        chain.addAfter(baseFilter, "compression", new CompressionFilter(CompressionFilter.COMPRESSION_MAX));
     }
 
     public boolean isFlashClient() {
@@ -408,6 +452,25 @@ public class NIOConnection implements Connection {
         this.tlsPolicy = tlsPolicy;
     }
 
+    /**
+     * Returns the number of write requests created for all client connections.
+     *
+     * @return the number of write requests created for all client connections.
+     */
+    public static long getWriteRequests() {
+        return WriteCoalescer.getWriteRequests();
+    }
+
+    /**
+     * Returns the number of writes to client connections that were coalesced with
+     * other writes instead of creating a write request.
+     *
+     * @return the number of writes that were coalesced with other writes.
+     */
+    public static long getCoalescedWrites() {
+        return WriteCoalescer.getCoalescedWrites();
+    }
+
     @Override
 	public String toString() {
         return super.toString() + " MINA Session: " + ioSession;
@@ -0,0 +1,78 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.io.XMPPPacketReader;
+import org.dom4j.tree.DefaultElement;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+
+/**
+ * Element whose content was not parsed into DOM nodes but kept as XML text. Only the
+ * name and the attributes of the element are available as DOM. This element is used
+ * for stanzas wrapped in <tt>route</tt> elements sent by the server since most of them
+ * are just forwarded to clients as text.<p>
+ *
+ * {@link #asXML()} returns the kept text so no serialization is required. The full DOM
+ * is only built when the element is copied or when {@link #toElement()} is invoked.
+ */
+public class PassthroughElement extends DefaultElement {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String xml;
+
+    public PassthroughElement(QName qname, String xml) {
+        super(qname);
+        this.xml = xml;
+    }
+
+    /**
+     * Returns a new element with the full DOM of this element.
+     *
+     * @return a new element with the full DOM of this element.
+     * @throws Exception if the kept text is not valid XML.
+     */
+    public Element toElement() throws Exception {
+        return new XMPPPacketReader().read(new StringReader(xml)).getRootElement();
+    }
+
+    @Override
+    public String asXML() {
+        return xml;
+    }
+
+    @Override
+    public void write(Writer writer) throws IOException {
+        writer.write(xml);
+    }
+
+    @Override
+    public Element createCopy() {
+        try {
+            return (Element) toElement().detach();
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Error parsing element: " + xml, e);
+        }
+    }
+}
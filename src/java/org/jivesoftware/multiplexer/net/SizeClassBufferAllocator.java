@@ -0,0 +1,362 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.ByteBufferAllocator;
+import org.apache.mina.common.support.BaseByteBuffer;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MINA buffer allocator that pools released buffers by size class. Size classes are
+ * powers of two between {@link #MIN_SIZE} and the max pooled size. Requested capacities
+ * are rounded up to their size class and bigger buffers are never pooled. Heap and direct
+ * buffers are kept in different pools.<p>
+ *
+ * Released buffers of small size classes are first kept in a small cache of the releasing
+ * thread. Other buffers are kept in a shared pool of the size class. Buffers are only kept
+ * in the shared pools while their bytes do not exceed the max pooled bytes. Thread caches
+ * are not included in the max pooled bytes since threads may die with cached buffers.<p>
+ *
+ * Buffers that are not released are reclaimed by the garbage collector like buffers of
+ * {@link org.apache.mina.common.SimpleByteBufferAllocator}. The number of outstanding
+ * buffers helps tracking code that does not release its buffers.<p>
+ *
+ * Buffers that were duplicated, sliced or that are not pooled (see
+ * {@link ByteBuffer#setPooled(boolean)}) are not returned to the pool when released since
+ * their content may still be in use.
+ */
+public class SizeClassBufferAllocator implements ByteBufferAllocator {
+
+    /**
+     * Size of the smallest size class.
+     */
+    public static final int MIN_SIZE = 512;
+    private static final int MIN_SHIFT = 9;
+    /**
+     * Number of buffers of each size class that each thread may cache.
+     */
+    private static final int THREAD_CACHE_SIZE = 8;
+    /**
+     * Number of size classes that threads may cache (i.e. up to 4 KB).
+     */
+    private static final int THREAD_CACHE_CLASSES = 4;
+
+    private final int maxPooledSize;
+    private final long maxPooledBytes;
+    // Pooled buffers by size class. Index 0 holds heap buffers and index 1 direct buffers
+    private final Pool[][] pools;
+    private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache(Math.min(THREAD_CACHE_CLASSES, pools[0].length));
+        }
+    };
+
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong outstanding = new AtomicLong(0);
+
+    /**
+     * Creates a new allocator.
+     *
+     * @param maxPooledSize the capacity of the biggest buffers to pool.
+     * @param maxPooledBytes the max number of bytes kept by the shared pools.
+     */
+    public SizeClassBufferAllocator(int maxPooledSize, long maxPooledBytes) {
+        int classes = 1;
+        while ((MIN_SIZE << (classes - 1)) < maxPooledSize) {
+            classes++;
+        }
+        this.maxPooledSize = MIN_SIZE << (classes - 1);
+        this.maxPooledBytes = maxPooledBytes;
+        pools = new Pool[2][classes];
+        for (int i = 0; i < classes; i++) {
+            pools[0][i] = new Pool();
+            pools[1][i] = new Pool();
+        }
+    }
+
+    public ByteBuffer allocate(int capacity, boolean direct) {
+        java.nio.ByteBuffer buf = take(capacity, direct);
+        buf.limit(capacity);
+        outstanding.incrementAndGet();
+        return new PooledBuffer(buf, true);
+    }
+
+    public ByteBuffer wrap(java.nio.ByteBuffer nioBuffer) {
+        return new PooledBuffer(nioBuffer, false);
+    }
+
+    public void dispose() {
+        for (Pool[] classes : pools) {
+            for (Pool pool : classes) {
+                pool.clear();
+            }
+        }
+        pooledBytes.set(0);
+    }
+
+    /**
+     * Returns the number of allocations that were served with pooled buffers.
+     *
+     * @return the number of allocations that were served with pooled buffers.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of allocations that required creating a new buffer.
+     *
+     * @return the number of allocations that required creating a new buffer.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of allocated buffers that were not released yet.
+     *
+     * @return the number of allocated buffers that were not released yet.
+     */
+    public long getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Returns the number of bytes kept by the shared pools.
+     *
+     * @return the number of bytes kept by the shared pools.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns the size class of the specified capacity or -1 if buffers of the
+     * specified capacity are not pooled.
+     */
+    private int sizeClass(int capacity) {
+        if (capacity > maxPooledSize) {
+            return -1;
+        }
+        if (capacity <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT;
+    }
+
+    private java.nio.ByteBuffer take(int capacity, boolean direct) {
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0) {
+            misses.incrementAndGet();
+            return newBuffer(capacity, direct);
+        }
+        java.nio.ByteBuffer buf = null;
+        if (sizeClass < THREAD_CACHE_CLASSES) {
+            buf = caches.get().poll(sizeClass, direct);
+        }
+        if (buf == null) {
+            buf = pools[direct ? 1 : 0][sizeClass].poll();
+            if (buf == null) {
+                misses.incrementAndGet();
+                return newBuffer(MIN_SIZE << sizeClass, direct);
+            }
+            pooledBytes.addAndGet(-buf.capacity());
+        }
+        hits.incrementAndGet();
+        return buf;
+    }
+
+    private void recycle(java.nio.ByteBuffer buf) {
+        int capacity = buf.capacity();
+        int sizeClass = sizeClass(capacity);
+        if (sizeClass < 0 || capacity != MIN_SIZE << sizeClass) {
+            // Only buffers created for a size class are pooled
+            return;
+        }
+        buf.clear();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        if (sizeClass < THREAD_CACHE_CLASSES && caches.get().offer(sizeClass, buf)) {
+            return;
+        }
+        if (pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+            pooledBytes.addAndGet(-capacity);
+            return;
+        }
+        pools[buf.isDirect() ? 1 : 0][sizeClass].offer(buf);
+    }
+
+    private static java.nio.ByteBuffer newBuffer(int capacity, boolean direct) {
+        return direct ? java.nio.ByteBuffer.allocateDirect(capacity) :
+                java.nio.ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Shared pool of the released buffers of a size class.
+     */
+    private static class Pool extends ConcurrentLinkedQueue<java.nio.ByteBuffer> {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Small stacks of buffers by size class that are only used by one thread.
+     */
+    private static class ThreadCache {
+
+        private final java.nio.ByteBuffer[][][] buffers;
+        private final int[][] counts;
+
+        ThreadCache(int classes) {
+            buffers = new java.nio.ByteBuffer[2][classes][THREAD_CACHE_SIZE];
+            counts = new int[2][classes];
+        }
+
+        java.nio.ByteBuffer poll(int sizeClass, boolean direct) {
+            int type = direct ? 1 : 0;
+            int count = counts[type][sizeClass];
+            if (count == 0) {
+                return null;
+            }
+            counts[type][sizeClass] = --count;
+            java.nio.ByteBuffer buf = buffers[type][sizeClass][count];
+            buffers[type][sizeClass][count] = null;
+            return buf;
+        }
+
+        boolean offer(int sizeClass, java.nio.ByteBuffer buf) {
+            int type = buf.isDirect() ? 1 : 0;
+            int count = counts[type][sizeClass];
+            if (count == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            buffers[type][sizeClass][count] = buf;
+            counts[type][sizeClass] = count + 1;
+            return true;
+        }
+    }
+
+    /**
+     * Buffer whose underlying NIO buffer is returned to the pool when the buffer is
+     * released as many times as it was acquired.
+     */
+    private class PooledBuffer extends BaseByteBuffer {
+
+        private java.nio.ByteBuffer buf;
+        private final AtomicInteger refCount = new AtomicInteger(1);
+        private volatile boolean pooled;
+        // True if the buffer was allocated by the allocator and counts as outstanding
+        private final boolean allocated;
+
+        PooledBuffer(java.nio.ByteBuffer buf, boolean allocated) {
+            this.buf = buf;
+            this.allocated = allocated;
+            this.pooled = allocated;
+        }
+
+        @Override
+        public void acquire() {
+            if (refCount.getAndIncrement() <= 0) {
+                refCount.decrementAndGet();
+                throw new IllegalStateException("Already released buffer.");
+            }
+        }
+
+        @Override
+        public void release() {
+            int count = refCount.decrementAndGet();
+            if (count > 0) {
+                return;
+            }
+            if (count < 0) {
+                refCount.incrementAndGet();
+                throw new IllegalStateException("Already released buffer.  You released the buffer too many times.");
+            }
+            if (allocated) {
+                outstanding.decrementAndGet();
+            }
+            if (pooled) {
+                recycle(buf);
+            }
+        }
+
+        @Override
+        public java.nio.ByteBuffer buf() {
+            return buf;
+        }
+
+        @Override
+        public boolean isPooled() {
+            return pooled;
+        }
+
+        @Override
+        public void setPooled(boolean pooled) {
+            this.pooled = pooled && allocated;
+        }
+
+        @Override
+        protected void capacity0(int requestedCapacity) {
+            java.nio.ByteBuffer oldBuf = buf;
+            java.nio.ByteBuffer newBuf = take(requestedCapacity, oldBuf.isDirect());
+            newBuf.clear();
+            oldBuf.clear();
+            newBuf.put(oldBuf);
+            buf = newBuf;
+            if (pooled) {
+                recycle(oldBuf);
+            }
+        }
+
+        @Override
+        public ByteBuffer duplicate() {
+            // The content is shared with the duplicate so it cannot be reused
+            pooled = false;
+            return new PooledBuffer(buf.duplicate(), false);
+        }
+
+        @Override
+        public ByteBuffer slice() {
+            pooled = false;
+            return new PooledBuffer(buf.slice(), false);
+        }
+
+        @Override
+        public ByteBuffer asReadOnlyBuffer() {
+            pooled = false;
+            return new PooledBuffer(buf.asReadOnlyBuffer(), false);
+        }
+
+        @Override
+        public byte[] array() {
+            return buf.array();
+        }
+
+        @Override
+        public int arrayOffset() {
+            return buf.arrayOffset();
+        }
+    }
+}
@@ -25,6 +25,7 @@ import com.jcraft.jzlib.ZOutputStream;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.*;
+import org.jivesoftware.util.IntProperty;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Log;
@@ -36,19 +37,38 @@ import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An object to track the state of a XMPP client-server session. Currently this class
  * contains the socket channel connecting the client and server.<p>
  *
  * This class was copied from Openfire. PacketInterceptors were removed. Session concept was
- * removed. ConnectionCloseListeners were removed.
+ * removed. ConnectionCloseListeners were removed.<p>
+ *
+ * Once {@link #startQueuedWrites(String)} is invoked, delivered stanzas are added to an
+ * outbound queue and the calling thread returns immediately. A dedicated writer thread
+ * drains the queue and writes all the queued stanzas before flushing the socket only once.
+ * Use the system properties <tt>xmpp.manager.batch.stanzas</tt> and
+ * <tt>xmpp.manager.batch.size</tt> to limit the number of stanzas and bytes written
+ * before flushing. By default up to 256 stanzas or 65536 bytes are written. Queued
+ * stanzas are kept UTF-8 encoded so stanzas that were already encoded by the caller
+ * (see {@link #deliver(byte[])}) are not encoded again. At most
+ * <tt>xmpp.manager.queue.capacity</tt> stanzas (10000 by default) are queued. Threads
+ * delivering stanzas to a full queue wait for the writer thread so a slow server still
+ * slows down the threads that send traffic to it.
  *
  * @author Gaston Dombiak
  */
@@ -58,10 +78,16 @@ public class SocketConnection implements Connection {
      * The utf-8 charset for decoding and encoding XMPP packet streams.
      */
     public static final String CHARSET = "UTF-8";
+    private static final byte[] HEARTBEAT = {' '};
     /**
      * Reuse the same factory for all the connections.
      */
     private static XmlPullParserFactory factory = null;
+    /**
+     * Max milliseconds that a write may take before the socket is considered dead.
+     */
+    private static final IntProperty SENDING_LIMIT =
+            new IntProperty("xmpp.session.sending-limit", 60000);
 
     private static Map<SocketConnection, String> instances =
             new ConcurrentHashMap<SocketConnection, String>();
@@ -84,8 +110,37 @@ public class SocketConnection implements Connection {
     private SocketStatistic socketStatistic;
 
     private Writer writer;
-    private AtomicBoolean writing = new AtomicBoolean(false);
-    //private AtomicLong sent = new AtomicLong(0);
+    /**
+     * Buffered stream used by the writer. Queued stanzas are written to this stream.
+     */
+    private OutputStream output;
+    /**
+     * Lock held while writing to the socket.
+     */
+    private final Lock writeLock = new ReentrantLock();
+    /**
+     * Stanzas and text waiting to be written by the writer thread or null if writes are
+     * not being queued.
+     */
+    private volatile BlockingQueue<QueuedData> outbound;
+    private Thread writerThread;
+    /**
+     * True once the writer thread stopped taking data from the outbound queue. Data
+     * queued afterwards has to be handled by the thread that queued it.
+     */
+    private volatile boolean writerStopped = false;
+    /**
+     * Max number of queued stanzas and bytes to write before flushing the socket.
+     */
+    private int maxBatchStanzas;
+    private int maxBatchSize;
+    /**
+     * Statistics of the batches written by the writer thread.
+     */
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedStanzas = new AtomicLong();
+    private final AtomicLong batchedBytes = new AtomicLong();
+    private volatile int largestBatch;
 
     /**
      * Deliverer to use when the connection is closed or was closed when delivering
@@ -146,10 +201,10 @@ public class SocketConnection implements Connection {
         this.socket = socket;
         // DANIELE: Modify socket to use channel
         if (socket.getChannel() != null) {
-            writer = Channels.newWriter(socket.getChannel(), CHARSET);
+            setOutputStream(Channels.newOutputStream(socket.getChannel()));
         }
         else {
-            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), CHARSET));
+            setOutputStream(socket.getOutputStream());
         }
         this.backupDeliverer = backupDeliverer;
 
@@ -179,10 +234,15 @@ public class SocketConnection implements Connection {
             // Start handshake
             tlsStreamHandler.start();
             // Use new wrapped writers
-            writer = new BufferedWriter(new OutputStreamWriter(tlsStreamHandler.getOutputStream(), CHARSET));
+            setOutputStream(tlsStreamHandler.getOutputStream());
         }
     }
 
+    private void setOutputStream(OutputStream out) throws IOException {
+        output = new BufferedOutputStream(out);
+        writer = new BufferedWriter(new OutputStreamWriter(output, CHARSET));
+    }
+
     public void startCompression() {
         compressed = true;
 
@@ -190,12 +250,12 @@ public class SocketConnection implements Connection {
             if (tlsStreamHandler == null) {
                 ZOutputStream out = new ZOutputStream(socket.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
                 out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                setOutputStream(out);
             }
             else {
                 ZOutputStream out = new ZOutputStream(tlsStreamHandler.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
                 out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                setOutputStream(out);
             }
         } catch (IOException e) {
             // TODO Would be nice to still be able to throw the exception and not catch it here
@@ -208,10 +268,15 @@ public class SocketConnection implements Connection {
         if (isClosed()) {
             return false;
         }
-        boolean allowedToWrite = false;
+        BlockingQueue<QueuedData> queue = outbound;
+        if (queue != null) {
+            // Send a heartbeat. The writer thread will close the connection if sending fails.
+            // No heartbeat is needed if the queue is full since the writer thread is busy
+            queue.offer(new QueuedData(HEARTBEAT, false));
+            return !isClosed();
+        }
+        writeLock.lock();
         try {
-            requestWriting();
-            allowedToWrite = true;
             // Register that we started sending data on the connection
             writeStarted();
             writer.write(" ");
@@ -224,9 +289,7 @@ public class SocketConnection implements Connection {
         finally {
             // Register that we finished sending data on the connection
             writeFinished();
-            if (allowedToWrite) {
-                releaseWriting();
-            }
+            writeLock.unlock();
         }
         return !isClosed();
     }
@@ -384,16 +447,34 @@ public class SocketConnection implements Connection {
     }
 
     public void close() {
+        close(true);
+    }
+
+    /**
+     * Closes the connection. Queued stanzas that could not be written are sent to the
+     * backup deliverer.
+     *
+     * @param sendQueued true if the queued stanzas should be written before closing. False
+     *        when writing to the socket already failed.
+     */
+    private void close(boolean sendQueued) {
         boolean wasClosed = false;
+        List<QueuedData> unsent = null;
         synchronized (this) {
             if (!isClosed()) {
                 try {
-                    boolean allowedToWrite = false;
+                    writeLock.lock();
+                    List<QueuedData> batch = null;
                     try {
-                        requestWriting();
-                        allowedToWrite = true;
                         // Register that we started sending data on the connection
                         writeStarted();
+                        if (outbound != null && sendQueued) {
+                            // Send the stanzas that are still waiting in the queue
+                            batch = new ArrayList<QueuedData>();
+                            outbound.drainTo(batch);
+                            writeBatch(batch);
+                            batch = null;
+                        }
                         writer.write("</stream:stream>");
                         if (flashClient) {
                             writer.write('\0');
@@ -401,14 +482,13 @@ public class SocketConnection implements Connection {
                         writer.flush();
                     }
                     catch (IOException e) {
-                        // Do nothing
+                        // The drained stanzas that were not written are sent to the backup
+                        unsent = batch;
                     }
                     finally {
                         // Register that we finished sending data on the connection
                         writeFinished();
-                        if (allowedToWrite) {
-                            releaseWriting();
-                        }
+                        writeLock.unlock();
                     }
                 }
                 catch (Exception e) {
@@ -419,6 +499,9 @@ public class SocketConnection implements Connection {
                 wasClosed = true;
             }
         }
+        if (unsent != null) {
+            deliverUnsentToBackup(unsent);
+        }
         if (wasClosed) {
             notifyCloseListeners();
         }
@@ -450,7 +533,7 @@ public class SocketConnection implements Connection {
         // Check that the sending operation is still active
         long writeTimestamp = writeStarted;
         if (writeTimestamp > -1 && System.currentTimeMillis() - writeTimestamp >
-                JiveGlobals.getIntProperty("xmpp.session.sending-limit", 60000)) {
+                SENDING_LIMIT.get()) {
             // Close the socket
             if (Log.isDebugEnabled()) {
                 Log.debug("Closing connection: " + this + " that started sending data at: " +
@@ -496,6 +579,10 @@ public class SocketConnection implements Connection {
 
     private void closeConnection() {
         release();
+        if (writerThread != null && writerThread != Thread.currentThread()) {
+            // Wake up the writer thread so it can stop
+            writerThread.interrupt();
+        }
         try {
             if (tlsStreamHandler == null) {
                 socket.close();
@@ -514,23 +601,18 @@ public class SocketConnection implements Connection {
     }
 
     public void deliver(String stanza) {
+        BlockingQueue<QueuedData> queue = outbound;
         if (isClosed()) {
-            XMPPPacketReader xmppReader = new XMPPPacketReader();
-            xmppReader.setXPPFactory(factory);
-            try {
-                Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
-                backupDeliverer.deliver(doc);
-            } catch (Exception e) {
-                Log.error("Error parsing stanza: " + stanza, e);
-            }
+            deliverToBackup(stanza);
+        }
+        else if (queue != null) {
+            // The writer thread will send the stanza
+            enqueue(queue, new QueuedData(encode(stanza), true));
         }
         else {
             boolean errorDelivering = false;
-            boolean allowedToWrite = false;
+            writeLock.lock();
             try {
-                requestWriting();
-                //System.out.println(new Date(System.currentTimeMillis()) + ", " + hashCode() + ", " + sent.incrementAndGet());
-                allowedToWrite = true;
                 writer.write(stanza);
                 if (flashClient) {
                     writer.write('\0');
@@ -542,34 +624,36 @@ public class SocketConnection implements Connection {
                 errorDelivering = true;
             }
             finally {
-                if (allowedToWrite) {
-                    releaseWriting();
-                }
+                writeLock.unlock();
             }
             if (errorDelivering) {
                 close();
                 // Retry sending the packet again. Most probably if the packet is a
                 // Message it will be stored offline
-                XMPPPacketReader xmppReader = new XMPPPacketReader();
-                xmppReader.setXPPFactory(factory);
-                try {
-                    Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
-                    backupDeliverer.deliver(doc);
-                } catch (Exception e) {
-                    Log.error("Error parsing stanza: " + stanza, e);
-                }
+                deliverToBackup(stanza);
             }
         }
     }
 
+    public void deliver(Element stanza) {
+        if (isClosed()) {
+            backupDeliverer.deliver(stanza);
+        }
+        else {
+            deliver(stanza.asXML());
+        }
+    }
+
     public void deliverRawText(String text) {
-        if (!isClosed()) {
+        BlockingQueue<QueuedData> queue = outbound;
+        if (!isClosed() && queue != null) {
+            // The writer thread will send the text
+            enqueue(queue, new QueuedData(encode(text), false));
+        }
+        else if (!isClosed()) {
             boolean errorDelivering = false;
-            boolean allowedToWrite = false;
+            writeLock.lock();
             try {
-                requestWriting();
-                //System.out.println(new Date(System.currentTimeMillis()) + ", " + hashCode() + ", " + sent.incrementAndGet());
-                allowedToWrite = true;
                 // Register that we started sending data on the connection
                 writeStarted();
                 writer.write(text);
@@ -585,9 +669,7 @@ public class SocketConnection implements Connection {
             finally {
                 // Register that we finished sending data on the connection
                 writeFinished();
-                if (allowedToWrite) {
-                    releaseWriting();
-                }
+                writeLock.unlock();
             }
             if (errorDelivering) {
                 close();
@@ -595,6 +677,241 @@ public class SocketConnection implements Connection {
         }
     }
 
+    /**
+     * Delivers a UTF-8 encoded stanza. If writes are being queued then the encoded stanza
+     * is added to the queue as is. Otherwise, the stanza is decoded and delivered like
+     * any other stanza.
+     *
+     * @param stanza the UTF-8 encoded stanza to deliver.
+     */
+    public void deliver(byte[] stanza) {
+        BlockingQueue<QueuedData> queue = outbound;
+        if (!isClosed() && queue != null) {
+            // The writer thread will send the stanza
+            enqueue(queue, new QueuedData(stanza, true));
+        }
+        else {
+            deliver(decode(stanza));
+        }
+    }
+
+    /**
+     * Adds data to the outbound queue. If the queue is full then the calling thread waits
+     * until the writer thread takes data from the queue. The connection may be closed and
+     * the writer thread may stop after the caller checked that the connection was open.
+     * Data left in the queue once the writer thread stopped is sent to the backup deliverer
+     * so that stanzas are never lost.
+     *
+     * @param queue the outbound queue.
+     * @param data the data to add to the queue.
+     */
+    private void enqueue(BlockingQueue<QueuedData> queue, QueuedData data) {
+        boolean queued = false;
+        try {
+            while (!(queued = queue.offer(data, 1, TimeUnit.SECONDS)) && !writerStopped) {
+                // The writer thread is still writing to a slow server. Keep waiting
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<QueuedData> unsent = new ArrayList<QueuedData>();
+        if (!queued) {
+            unsent.add(data);
+        }
+        // The writer thread sets the flag before taking what is left in the queue so either
+        // the writer thread or this thread will find the added data
+        if (!queued || writerStopped) {
+            deliverUnsentToBackup(unsent);
+        }
+    }
+
+    private static byte[] encode(String text) {
+        try {
+            return text.getBytes(CHARSET);
+        }
+        catch (UnsupportedEncodingException e) {
+            // Should never happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(byte[] data) {
+        try {
+            return new String(data, CHARSET);
+        }
+        catch (UnsupportedEncodingException e) {
+            // Should never happen
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts queueing the stanzas and text to send. From now on threads delivering stanzas
+     * will not wait for the socket to be written. Instead, a dedicated thread will take the
+     * queued stanzas and write them in batches flushing the socket once per batch. This
+     * method should be invoked once the stream was negotiated (i.e. TLS and compression
+     * are no longer being established).
+     *
+     * @param name the name of the connection to use for naming the writer thread.
+     */
+    public void startQueuedWrites(String name) {
+        if (outbound != null) {
+            return;
+        }
+        maxBatchStanzas = Math.max(1, JiveGlobals.getIntProperty("xmpp.manager.batch.stanzas", 256));
+        maxBatchSize = Math.max(1, JiveGlobals.getIntProperty("xmpp.manager.batch.size", 65536));
+        outbound = new LinkedBlockingQueue<QueuedData>(
+                Math.max(1, JiveGlobals.getIntProperty("xmpp.manager.queue.capacity", 10000)));
+        writerThread = new Thread("Server Link Writer " + name) {
+            @Override
+            public void run() {
+                writeQueuedData();
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Writes queued stanzas and text until the connection is closed. Stanzas that were
+     * not sent when the connection was closed are sent to the backup deliverer.
+     */
+    private void writeQueuedData() {
+        List<QueuedData> batch = new ArrayList<QueuedData>(maxBatchStanzas);
+        boolean errorDelivering = false;
+        while (!isClosed() && !errorDelivering) {
+            QueuedData first;
+            try {
+                first = outbound.poll(1, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+            batch.add(first);
+            writeLock.lock();
+            try {
+                if (isClosed()) {
+                    break;
+                }
+                // Take the rest of the queued stanzas so they are sent with a single flush
+                int size = first.data.length;
+                QueuedData next;
+                while (batch.size() < maxBatchStanzas && size < maxBatchSize &&
+                        (next = outbound.poll()) != null) {
+                    batch.add(next);
+                    size += next.data.length;
+                }
+                // Register that we started sending data on the connection
+                writeStarted();
+                writeBatch(batch);
+                output.flush();
+                batchWritten(batch.size(), size);
+                batch.clear();
+            }
+            catch (Exception e) {
+                Log.debug("Error delivering packet" + "\n" + this.toString(), e);
+                errorDelivering = true;
+            }
+            finally {
+                // Register that we finished sending data on the connection
+                writeFinished();
+                writeLock.unlock();
+            }
+        }
+        if (errorDelivering) {
+            // Stanzas still in the queue are sent to the backup deliverer below
+            close(false);
+        }
+        writerStopped = true;
+        deliverUnsentToBackup(batch);
+    }
+
+    /**
+     * Sends the queued stanzas that were not written to the backup deliverer. Most
+     * probably if the packet is a Message it will be stored offline.
+     *
+     * @param unsent stanzas that were taken from the queue but not written.
+     */
+    private void deliverUnsentToBackup(List<QueuedData> unsent) {
+        outbound.drainTo(unsent);
+        for (QueuedData text : unsent) {
+            if (text.stanza) {
+                deliverToBackup(decode(text.data));
+            }
+        }
+    }
+
+    private void batchWritten(int stanzas, int size) {
+        batchCount.incrementAndGet();
+        batchedStanzas.addAndGet(stanzas);
+        batchedBytes.addAndGet(size);
+        if (stanzas > largestBatch) {
+            largestBatch = stanzas;
+        }
+    }
+
+    /**
+     * Returns the number of times that the writer thread flushed queued stanzas to the
+     * socket. Each flush sent a batch of stanzas.
+     *
+     * @return the number of batches written to the socket.
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the total number of stanzas and text written in batches by the writer thread.
+     * The average batch size is this number divided by {@link #getBatchCount()}.
+     *
+     * @return the total number of stanzas and text written in batches.
+     */
+    public long getBatchedStanzas() {
+        return batchedStanzas.get();
+    }
+
+    /**
+     * Returns the total number of bytes written in batches by the writer thread.
+     *
+     * @return the total number of bytes written in batches.
+     */
+    public long getBatchedBytes() {
+        return batchedBytes.get();
+    }
+
+    /**
+     * Returns the largest number of stanzas and text written in one batch.
+     *
+     * @return the largest number of stanzas and text written in one batch.
+     */
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+
+    private void writeBatch(List<QueuedData> batch) throws IOException {
+        for (QueuedData text : batch) {
+            output.write(text.data);
+            if (flashClient) {
+                output.write(0);
+            }
+        }
+    }
+
+    private void deliverToBackup(String stanza) {
+        XMPPPacketReader xmppReader = new XMPPPacketReader();
+        xmppReader.setXPPFactory(factory);
+        try {
+            Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
+            backupDeliverer.deliver(doc);
+        } catch (Exception e) {
+            Log.error("Error parsing stanza: " + stanza, e);
+        }
+    }
+
     /**
      * Notifies all close listeners that the connection has been closed.
      * Used by subclasses to properly finish closing the connection.
@@ -612,29 +929,6 @@ public class SocketConnection implements Connection {
         }
     }
 
-    private void requestWriting() throws Exception {
-        for (;;) {
-            if (writing.compareAndSet(false, true)) {
-                // We are now in writing mode and only we can write to the socket
-                return;
-            }
-            else {
-                // Check health of the socket
-                if (checkHealth()) {
-                    // Connection was closed then stop
-                    throw new Exception("Probable dead connection was closed");
-                }
-                else {
-                    Thread.sleep(1);
-                }
-            }
-        }
-    }
-
-    private void releaseWriting() {
-        writing.compareAndSet(true, false);
-    }
-
     @Override
 	public String toString() {
         return super.toString() + " socket: " + socket;
@@ -643,4 +937,21 @@ public class SocketConnection implements Connection {
     public void setSocketStatistic(SocketStatistic socketStatistic) {
         this.socketStatistic = socketStatistic;
     }
+
+    /**
+     * UTF-8 encoded stanza or text waiting to be written by the writer thread.
+     */
+    private static class QueuedData {
+        private final byte[] data;
+        /**
+         * True if the text is a stanza that should be sent to the backup deliverer if
+         * the connection is closed before sending it.
+         */
+        private final boolean stanza;
+
+        QueuedData(byte[] data, boolean stanza) {
+            this.data = data;
+            this.stanza = stanza;
+        }
+    }
 }
\ No newline at end of file
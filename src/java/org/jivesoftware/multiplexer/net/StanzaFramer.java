@@ -0,0 +1,70 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Splits the bytes read from a client connection into complete XML stanzas. Each
+ * MINA session keeps its own framer that is used by {@link XMPPDecoder} to find the
+ * stanzas that are ready to be processed.
+ */
+interface StanzaFramer {
+
+    /**
+     * Consumes the data available in the specified buffer and looks for complete
+     * stanzas. Incomplete stanzas are kept by the framer until more data is read.
+     *
+     * @param byteBuffer the buffer with the data read from the connection.
+     * @throws Exception if the read data is not valid XML or if the max allowed
+     *         size of a stanza was exceeded.
+     */
+    void read(ByteBuffer byteBuffer) throws Exception;
+
+    /**
+     * Returns true if the framer has found at least one complete stanza.
+     *
+     * @return true if the framer has found at least one complete stanza.
+     */
+    boolean areThereMsgs();
+
+    /**
+     * Returns the complete stanzas found so far. Returned stanzas are removed
+     * from the framer.
+     *
+     * @return the complete stanzas found so far.
+     */
+    String[] getMsgs();
+
+    /**
+     * Releases the buffers of the framer when the connection is idle. Buffers are only
+     * released when the framer is not holding an incomplete stanza or stanzas that were
+     * not consumed yet. Released buffers are allocated again by the next read.
+     *
+     * @return true if the buffers were released.
+     */
+    boolean compact();
+
+    /**
+     * Returns true if the buffers of the framer were released and were not allocated
+     * again yet.
+     *
+     * @return true if the buffers of the framer were released.
+     */
+    boolean isCompacted();
+}
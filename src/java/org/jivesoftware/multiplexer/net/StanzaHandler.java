@@ -103,35 +103,7 @@ abstract class StanzaHandler {
     }
 
     public void process(String stanza, XmlPullParser parser) throws Exception {
-
-        boolean initialStream = stanza.startsWith("<stream:stream") || stanza.startsWith("<flash:stream");
-        if (!sessionCreated || initialStream) {
-            if (!initialStream) {
-                // Allow requests for flash socket policy files directly on the client listener port
-                if (stanza.startsWith("<policy-file-request/>")) {
-                    connection.deliverRawText(FlashCrossDomainServlet.getCrossDomainString() + '\0');
-                    return;
-                }
-                else {
-                    // Ignore <?xml version="1.0"?>
-                    return;
-                }
-            }
-            // Found an stream:stream tag...
-            if (!sessionCreated) {
-                sessionCreated = true;
-                parser.setInput(new StringReader(stanza));
-                createSession(parser);
-            } else if (startedTLS) {
-                startedTLS = false;
-                tlsNegotiated();
-            } else if (startedSASL && session.getStatus() == Session.STATUS_AUTHENTICATED) {
-                startedSASL = false;
-                saslSuccessful();
-            } else if (waitingCompressionACK) {
-                waitingCompressionACK = false;
-                compressionSuccessful();
-            }
+        if (processStreamHeader(stanza, parser)) {
             return;
         }
 
@@ -161,6 +133,91 @@ abstract class StanzaHandler {
             session.close();
             return;
         }
+        processStanza(stanza, tag);
+    }
+
+    /**
+     * Processes a stanza that was already validated by {@link ValidatingStanzaFramer}. The
+     * stanza is not parsed again since its header already includes the information needed
+     * to route it. The parser is only used for parsing the initial stream header.
+     *
+     * @param stanza the validated stanza and its header.
+     * @param parser the parser to use for parsing the initial stream header.
+     * @throws Exception if an error occured while processing the stanza.
+     */
+    public void process(StanzaHeader stanza, XmlPullParser parser) throws Exception {
+        String xml = stanza.getXML();
+        if (processStreamHeader(xml, parser)) {
+            return;
+        }
+
+        String tag = stanza.getName();
+        if (tag == null) {
+            // Verify if end of stream was requested or ignore <?xml version="1.0"?> stanzas
+            if (xml.equals("</stream:stream>")) {
+                session.close();
+            }
+            return;
+        }
+        boolean valid;
+        try {
+            valid = validateRecipient(tag, stanza.getTo(), stanza.getId());
+        } catch (IllegalArgumentException e) {
+            // Specify TO address was incorrect so do not process this stanza
+            return;
+        }
+
+        if (!valid) {
+            session.close();
+            return;
+        }
+        processStanza(xml, tag);
+    }
+
+    /**
+     * Processes the initial stream header and the stream headers sent after TLS, SASL or
+     * compression were negotiated. Stanzas sent before the session was created are ignored.
+     *
+     * @param stanza the received stanza.
+     * @param parser the parser to use for parsing the initial stream header.
+     * @return true if the stanza was processed.
+     * @throws Exception if an error occured while creating the session.
+     */
+    private boolean processStreamHeader(String stanza, XmlPullParser parser) throws Exception {
+        boolean initialStream = stanza.startsWith("<stream:stream") || stanza.startsWith("<flash:stream");
+        if (!sessionCreated || initialStream) {
+            if (!initialStream) {
+                // Allow requests for flash socket policy files directly on the client listener port
+                if (stanza.startsWith("<policy-file-request/>")) {
+                    connection.deliverRawText(FlashCrossDomainServlet.getCrossDomainString() + '\0');
+                    return true;
+                }
+                else {
+                    // Ignore <?xml version="1.0"?>
+                    return true;
+                }
+            }
+            // Found an stream:stream tag...
+            if (!sessionCreated) {
+                sessionCreated = true;
+                parser.setInput(new StringReader(stanza));
+                createSession(parser);
+            } else if (startedTLS) {
+                startedTLS = false;
+                tlsNegotiated();
+            } else if (startedSASL && session.getStatus() == Session.STATUS_AUTHENTICATED) {
+                startedSASL = false;
+                saslSuccessful();
+            } else if (waitingCompressionACK) {
+                waitingCompressionACK = false;
+                compressionSuccessful();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void processStanza(String stanza, String tag) {
         if ("starttls".equals(tag)) {
             // Negotiate TLS
             if (negotiateTLS()) {
@@ -196,37 +253,9 @@ abstract class StanzaHandler {
             return false;
         }
         if (eventType == XmlPullParser.START_TAG) {
-            String to = parser.getAttributeValue("", "to");
-            if (to != null) {
-                // Validate the to address
-                if (!StringUtils.validateJID(to)) {
-                    StringBuilder reply = new StringBuilder();
-                    String stanzaType;
-                    if (parser.getName().equals("message")) {
-                        stanzaType ="message";
-                    }
-                    else if (parser.getName().equals("iq")) {
-                        stanzaType ="iq";
-                    }
-                    else if (parser.getName().equals("presence")) {
-                        stanzaType ="presence";
-                    }
-                    else {
-                        return false;
-                    }
-                    reply.append("<").append(stanzaType).append(" type='error'");
-                    String id = parser.getAttributeValue("", "id");
-                    if (id != null) {
-                        reply.append(" id='").append(id).append("'");
-                    }
-                    reply.append(">");
-                    reply.append("<error type='modify'><jid-malformed xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>");
-                    reply.append("</error>");
-                    reply.append("</").append(stanzaType).append(">");
-
-                    connection.deliverRawText(reply.toString());
-                    throw new IllegalArgumentException("Illegal TO address");
-                }
+            if (!validateRecipient(parser.getName(), parser.getAttributeValue("", "to"),
+                    parser.getAttributeValue("", "id"))) {
+                return false;
             }
         }
         try {
@@ -241,6 +270,51 @@ abstract class StanzaHandler {
         return true;
     }
 
+    /**
+     * Validates the TO address of a stanza. If the address is not valid and the stanza is a
+     * message, iq or presence then a jid-malformed error is sent to the client.
+     *
+     * @param tag the name of the root element of the stanza.
+     * @param to the TO address of the stanza or null if none.
+     * @param id the ID of the stanza or null if none.
+     * @return false if the address is not valid and the stanza is not a message, iq or presence.
+     * @throws IllegalArgumentException if the address is not valid and an error was sent to
+     *         the client.
+     */
+    private boolean validateRecipient(String tag, String to, String id) {
+        if (to != null) {
+            // Validate the to address
+            if (!StringUtils.validateJID(to)) {
+                StringBuilder reply = new StringBuilder();
+                String stanzaType;
+                if (tag.equals("message")) {
+                    stanzaType ="message";
+                }
+                else if (tag.equals("iq")) {
+                    stanzaType ="iq";
+                }
+                else if (tag.equals("presence")) {
+                    stanzaType ="presence";
+                }
+                else {
+                    return false;
+                }
+                reply.append("<").append(stanzaType).append(" type='error'");
+                if (id != null) {
+                    reply.append(" id='").append(id).append("'");
+                }
+                reply.append(">");
+                reply.append("<error type='modify'><jid-malformed xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>");
+                reply.append("</error>");
+                reply.append("</").append(stanzaType).append(">");
+
+                connection.deliverRawText(reply.toString());
+                throw new IllegalArgumentException("Illegal TO address");
+            }
+        }
+        return true;
+    }
+
     private void route(String stanza) {
         // Ensure that connection was secured if TLS was required
         if (connection.getTlsPolicy() == Connection.TLSPolicy.required &&
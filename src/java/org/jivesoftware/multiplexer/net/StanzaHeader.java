@@ -0,0 +1,96 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+/**
+ * Stanza that was found and validated by {@link ValidatingStanzaFramer}. Besides the
+ * text of the stanza it holds the name of the root element and the values of the
+ * <tt>to</tt>, <tt>id</tt> and <tt>type</tt> attributes of the root element so that
+ * the stanza can be routed without parsing it again.
+ */
+class StanzaHeader {
+
+    private final String xml;
+    private final String name;
+    private final String to;
+    private final String id;
+    private final String type;
+
+    StanzaHeader(String xml, String name, String to, String id, String type) {
+        this.xml = xml;
+        this.name = name;
+        this.to = to;
+        this.id = id;
+        this.type = type;
+    }
+
+    /**
+     * Returns the text of the stanza.
+     *
+     * @return the text of the stanza.
+     */
+    public String getXML() {
+        return xml;
+    }
+
+    /**
+     * Returns the local name of the root element (e.g. message, iq, presence) or
+     * <tt>null</tt> if the stanza is not an element (e.g. the xml declaration or the
+     * closing stream tag).
+     *
+     * @return the local name of the root element.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the unescaped value of the <tt>to</tt> attribute of the root element or
+     * <tt>null</tt> if none was specified.
+     *
+     * @return the value of the <tt>to</tt> attribute of the root element.
+     */
+    public String getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the unescaped value of the <tt>id</tt> attribute of the root element or
+     * <tt>null</tt> if none was specified.
+     *
+     * @return the value of the <tt>id</tt> attribute of the root element.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Returns the unescaped value of the <tt>type</tt> attribute of the root element or
+     * <tt>null</tt> if none was specified.
+     *
+     * @return the value of the <tt>type</tt> attribute of the root element.
+     */
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return xml;
+    }
+}
@@ -0,0 +1,452 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Attribute;
+import org.dom4j.CDATA;
+import org.dom4j.Comment;
+import org.dom4j.Element;
+import org.dom4j.Entity;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.ProcessingInstruction;
+import org.dom4j.Text;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serializes dom4j elements without creating intermediate strings. Elements are written
+ * either as UTF-8 directly into a MINA buffer or as chars into a StringBuilder. The
+ * result is the same text that {@link Element#asXML()} returns: attributes are quoted
+ * with <tt>"</tt>, empty elements are closed with <tt>/&gt;</tt> and namespaces are
+ * declared the same way <tt>XMLWriter</tt> declares them.<p>
+ *
+ * The text kept by {@link PassthroughElement}s is written as is. Unpaired surrogates
+ * are written as <tt>?</tt> like {@link String#getBytes(String)} does.
+ */
+public class StanzaSerializer {
+
+    private StanzaSerializer() {
+    }
+
+    /**
+     * Writes the UTF-8 encoded element to the specified buffer. The buffer is expanded
+     * if the element does not fit in the buffer.
+     *
+     * @param element the element to write.
+     * @param buffer the buffer where the element will be written.
+     */
+    public static void write(Element element, ByteBuffer buffer) {
+        boolean autoExpand = buffer.isAutoExpand();
+        buffer.setAutoExpand(true);
+        write(element, null, new ByteOutput(buffer));
+        buffer.setAutoExpand(autoExpand);
+    }
+
+    /**
+     * Appends the element to the specified builder.
+     *
+     * @param element the element to append.
+     * @param builder the builder where the element will be appended.
+     */
+    public static void append(Element element, StringBuilder builder) {
+        write(element, null, new CharOutput(builder));
+    }
+
+    /**
+     * Appends the element to the specified builder declaring the specified default
+     * namespace in the element instead of the namespace of the element. Only the
+     * declaration is changed so children are written just like if the element had
+     * not been changed. This is used for setting the namespace of stanzas sent to BOSH
+     * clients (see XEP-0206).
+     *
+     * @param element the element to append.
+     * @param namespace the default namespace to declare in the element.
+     * @param builder the builder where the element will be appended.
+     */
+    public static void append(Element element, String namespace, StringBuilder builder) {
+        write(element, namespace, new CharOutput(builder));
+    }
+
+    private static void write(Element element, String rootNamespace, Output out) {
+        if (element instanceof PassthroughElement) {
+            String xml = element.asXML();
+            if (rootNamespace == null) {
+                out.append(xml);
+            }
+            else {
+                writePassthrough(xml, element.getQualifiedName().length() + 1, rootNamespace, out);
+            }
+            return;
+        }
+        List<Namespace> stack = new ArrayList<Namespace>();
+        stack.add(Namespace.NO_NAMESPACE);
+        writeElement(element, rootNamespace, stack, out);
+    }
+
+    /**
+     * Writes the text of a passthrough element declaring the specified default namespace
+     * after the element name. A default namespace declared by the start tag of the text is
+     * dropped so the element declares a single default namespace like DOM elements do.
+     *
+     * @param xml the text of the passthrough element.
+     * @param nameEnd the offset where the name of the element ends.
+     * @param rootNamespace the default namespace to declare.
+     * @param out the output where the text will be written.
+     */
+    private static void writePassthrough(String xml, int nameEnd, String rootNamespace,
+            Output out) {
+        out.append(xml.substring(0, nameEnd));
+        writeNamespace(out, "", rootNamespace);
+        int copied = nameEnd;
+        int length = xml.length();
+        int i = nameEnd;
+        while (i < length) {
+            char ch = xml.charAt(i);
+            if (ch == '>' || ch == '/') {
+                // End of the start tag
+                break;
+            }
+            if (isWhitespace(ch)) {
+                i++;
+                continue;
+            }
+            int attrStart = i;
+            while (i < length && xml.charAt(i) != '=' && !isWhitespace(xml.charAt(i))) {
+                i++;
+            }
+            boolean defaultNamespace = i - attrStart == 5 && xml.startsWith("xmlns", attrStart);
+            while (i < length && xml.charAt(i) != '"' && xml.charAt(i) != '\'') {
+                i++;
+            }
+            int valueEnd = i < length ? xml.indexOf(xml.charAt(i), i + 1) : -1;
+            if (valueEnd < 0) {
+                // Not a valid start tag. Write the rest as is
+                break;
+            }
+            i = valueEnd + 1;
+            if (defaultNamespace) {
+                // Drop the declaration and the whitespace before it
+                int declarationStart = attrStart;
+                while (declarationStart > copied && isWhitespace(xml.charAt(declarationStart - 1))) {
+                    declarationStart--;
+                }
+                out.append(xml.substring(copied, declarationStart));
+                copied = i;
+            }
+        }
+        out.append(xml.substring(copied));
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+    }
+
+    private static void writeElement(Element element, String rootNamespace, List<Namespace> stack,
+            Output out) {
+        int size = element.nodeCount();
+        String qualifiedName = element.getQualifiedName();
+        out.append('<');
+        out.append(qualifiedName);
+
+        int declared = stack.size();
+        Namespace namespace = element.getNamespace();
+        if (rootNamespace != null) {
+            writeNamespace(out, "", rootNamespace);
+        }
+        if (rootNamespace != null && isDefaultNamespace(namespace)) {
+            // Replace the declaration but keep the context of the element namespace
+            if (isNamespaceDeclaration(namespace, stack)) {
+                stack.add(namespace);
+            }
+        }
+        else {
+            declareNamespace(namespace, stack, out);
+        }
+        for (int i = 0; i < size; i++) {
+            Node node = element.node(i);
+            if (node instanceof Namespace) {
+                declareNamespace((Namespace) node, stack, out);
+            }
+        }
+        writeAttributes(element, stack, out);
+
+        if (size == 0) {
+            out.append("/>");
+        }
+        else {
+            out.append('>');
+            for (int i = 0; i < size; i++) {
+                writeNode(element.node(i), stack, out);
+            }
+            out.append("</");
+            out.append(qualifiedName);
+            out.append('>');
+        }
+        while (stack.size() > declared) {
+            stack.remove(stack.size() - 1);
+        }
+    }
+
+    private static void writeNode(Node node, List<Namespace> stack, Output out) {
+        if (node instanceof Element) {
+            if (node instanceof PassthroughElement) {
+                out.append(((Element) node).asXML());
+            }
+            else {
+                writeElement((Element) node, null, stack, out);
+            }
+        }
+        else if (node instanceof CDATA) {
+            out.append("<![CDATA[");
+            out.append(node.getText());
+            out.append("]]>");
+        }
+        else if (node instanceof Text) {
+            out.appendEscaped(node.getText(), false);
+        }
+        else if (node instanceof Entity) {
+            out.append('&');
+            out.append(node.getName());
+            out.append(';');
+        }
+        else if (node instanceof Comment) {
+            out.append("<!--");
+            out.append(node.getText());
+            out.append("-->");
+        }
+        else if (node instanceof ProcessingInstruction) {
+            ProcessingInstruction pi = (ProcessingInstruction) node;
+            out.append("<?");
+            out.append(pi.getName());
+            out.append(' ');
+            out.append(pi.getText());
+            out.append("?>");
+        }
+    }
+
+    private static void writeAttributes(Element element, List<Namespace> stack, Output out) {
+        for (int i = 0, size = element.attributeCount(); i < size; i++) {
+            Attribute attribute = element.attribute(i);
+            Namespace ns = attribute.getNamespace();
+            if (ns != null && ns != Namespace.NO_NAMESPACE && ns != Namespace.XML_NAMESPACE) {
+                Namespace current = getNamespace(ns.getPrefix(), stack);
+                if (current == null || !ns.getURI().equals(current.getURI())) {
+                    writeNamespace(out, ns.getPrefix(), ns.getURI());
+                    stack.add(ns);
+                }
+            }
+            String name = attribute.getName();
+            if (name.startsWith("xmlns:")) {
+                // Namespace declarations are only written if the prefix is not bound
+                String prefix = name.substring(6);
+                if (getNamespace(prefix, stack) == null) {
+                    Namespace declaration = Namespace.get(prefix, attribute.getValue());
+                    writeNamespace(out, prefix, declaration.getURI());
+                    stack.add(declaration);
+                }
+            }
+            else if (!name.equals("xmlns")) {
+                // Default namespace declarations are never written since the empty
+                // namespace is always declared
+                out.append(' ');
+                out.append(attribute.getQualifiedName());
+                out.append("=\"");
+                out.appendEscaped(attribute.getValue(), true);
+                out.append('"');
+            }
+        }
+    }
+
+    private static void declareNamespace(Namespace ns, List<Namespace> stack, Output out) {
+        if (isNamespaceDeclaration(ns, stack)) {
+            stack.add(ns);
+            writeNamespace(out, ns.getPrefix(), ns.getURI());
+        }
+    }
+
+    /**
+     * Returns true if the namespace is not the namespace that is currently bound to the
+     * prefix of the namespace.
+     */
+    private static boolean isNamespaceDeclaration(Namespace ns, List<Namespace> stack) {
+        if (ns == null || ns == Namespace.XML_NAMESPACE || ns.getURI() == null) {
+            return false;
+        }
+        Namespace current = getNamespace(ns.getPrefix(), stack);
+        return current == null || (current != ns && !ns.getURI().equals(current.getURI()));
+    }
+
+    private static boolean isDefaultNamespace(Namespace ns) {
+        return ns == null || ns.getPrefix() == null || ns.getPrefix().length() == 0;
+    }
+
+    private static Namespace getNamespace(String prefix, List<Namespace> stack) {
+        if (prefix == null) {
+            prefix = "";
+        }
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            Namespace ns = stack.get(i);
+            String nsPrefix = ns.getPrefix() == null ? "" : ns.getPrefix();
+            if (prefix.equals(nsPrefix)) {
+                return ns;
+            }
+        }
+        return null;
+    }
+
+    private static void writeNamespace(Output out, String prefix, String uri) {
+        if (prefix != null && prefix.length() > 0) {
+            out.append(" xmlns:");
+            out.append(prefix);
+            out.append("=\"");
+        }
+        else {
+            out.append(" xmlns=\"");
+        }
+        out.append(uri);
+        out.append('"');
+    }
+
+    /**
+     * Returns the entity that replaces the specified char or <tt>null</tt> if the char
+     * is written as is. Whitespace is never replaced and other control chars are written
+     * as character references.
+     */
+    private static String getEntity(char ch, boolean attribute) {
+        switch (ch) {
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '&':
+                return "&amp;";
+            case '"':
+                return attribute ? "&quot;" : null;
+            case '\t':
+            case '\n':
+            case '\r':
+                return null;
+            default:
+                return ch < 32 ? "&#" + (int) ch + ";" : null;
+        }
+    }
+
+    /**
+     * Destination of the serialized element.
+     */
+    private static abstract class Output {
+
+        abstract void append(char ch);
+
+        abstract void append(String text);
+
+        void appendEscaped(String text, boolean attribute) {
+            int start = 0;
+            for (int i = 0, size = text.length(); i < size; i++) {
+                char ch = text.charAt(i);
+                if (ch > '>') {
+                    continue;
+                }
+                String entity = getEntity(ch, attribute);
+                if (entity != null) {
+                    if (i > start) {
+                        append(text.substring(start, i));
+                    }
+                    append(entity);
+                    start = i + 1;
+                }
+            }
+            if (start == 0) {
+                append(text);
+            }
+            else if (start < text.length()) {
+                append(text.substring(start));
+            }
+        }
+    }
+
+    private static class CharOutput extends Output {
+
+        private final StringBuilder builder;
+
+        CharOutput(StringBuilder builder) {
+            this.builder = builder;
+        }
+
+        @Override
+        void append(char ch) {
+            builder.append(ch);
+        }
+
+        @Override
+        void append(String text) {
+            builder.append(text);
+        }
+    }
+
+    private static class ByteOutput extends Output {
+
+        private final ByteBuffer buffer;
+
+        ByteOutput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        void append(char ch) {
+            // Only ASCII chars are appended
+            buffer.put((byte) ch);
+        }
+
+        @Override
+        void append(String text) {
+            int size = text.length();
+            // Make room for the worst case so the buffer is expanded at most once
+            buffer.expand(size * 3);
+            for (int i = 0; i < size; i++) {
+                char ch = text.charAt(i);
+                if (ch < 0x80) {
+                    buffer.put((byte) ch);
+                }
+                else if (ch < 0x800) {
+                    buffer.put((byte) (0xC0 | (ch >> 6)));
+                    buffer.put((byte) (0x80 | (ch & 0x3F)));
+                }
+                else if (Character.isHighSurrogate(ch) && i + 1 < size &&
+                        Character.isLowSurrogate(text.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(ch, text.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                }
+                else if (ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE) {
+                    buffer.put((byte) '?');
+                }
+                else {
+                    buffer.put((byte) (0xE0 | (ch >> 12)));
+                    buffer.put((byte) (0x80 | ((ch >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (ch & 0x3F)));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import java.nio.charset.Charset;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Stanza framer that works directly on UTF-8 encoded bytes. It runs the same state
+ * machine as {@link XMLLightweightParser} but instead of decoding every read to chars it
+ * copies the read bytes into a reusable buffer and records the boundaries of the complete
+ * stanzas as offsets into that buffer. Bytes are only decoded to chars once, when
+ * {@link #getMsgs()} is invoked.<p>
+ *
+ * All the chars that drive the state machine are ASCII and UTF-8 never uses ASCII values
+ * inside multi-byte sequences so the bytes of non-ASCII chars are handled as any other
+ * text. Multi-byte sequences are only inspected to reject encoded surrogates that
+ * are not properly paired.
+ */
+class UTF8StanzaFramer implements StanzaFramer {
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 512;
+
+    // Shared empty arrays used by compacted framers
+    static final byte[] EMPTY_BYTES = new byte[0];
+    static final int[] EMPTY_INTS = new int[0];
+
+    // Bytes that rappresent CDATA section start
+    private static final byte[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
+    // Bytes that rappresent CDATA section end
+    private static final byte[] CDATA_END = {']', ']', '>'};
+
+    private static final byte[] STREAM_HEAD = "stream:stream>".getBytes(UTF8);
+    private static final byte[] FLASH_HEAD = "flash:stream>".getBytes(UTF8);
+    private static final byte[] XML_HEAD = "?xml>".getBytes(UTF8);
+    private static final byte[] STREAM_CLOSE_HEAD = "/stream:stream>".getBytes(UTF8);
+    private static final byte[] FLASH_CLOSE_HEAD = "/flash:stream>".getBytes(UTF8);
+    static final String STREAM_CLOSE = "</stream:stream>";
+
+    // Buffer with all data retrieved and not consumed yet
+    protected byte[] buffer = new byte[INITIAL_CAPACITY];
+    // Number of valid bytes in the buffer
+    protected int count = 0;
+    // Indicate the starting point in the buffer for the next message.
+    protected int startLastMsg = 0;
+
+    // Current robot status
+    private int status = XMLLightweightParser.INIT;
+    // Index to looking for a CDATA section start or end.
+    private int cdataOffset = 0;
+    // Number of bytes that machs with the head tag. If the tailCount is equal to
+    // the head length so a close tag is found.
+    private int tailCount = 0;
+    // Flag used to discover tag in the form <tag />.
+    private boolean insideRootTag = false;
+    // Bytes of the head tag
+    private byte[] head = new byte[16];
+    private int headLength = 0;
+    private int depth = 0;
+
+    // Start and end offsets of the complete stanzas found. A start offset of -1
+    // represents the closing stream tag.
+    private int[] msgs = new int[8];
+    private int msgsCount = 0;
+
+    // Verifies character references while the stanza is being read
+    private final CharacterReferenceVerifier charRefVerifier = new CharacterReferenceVerifier();
+
+    // Number of continuation bytes still expected for the current multi-byte char
+    private int pendingBytes = 0;
+    // True while waiting for the second byte of a multi-byte char that started with 0xED
+    private boolean checkSurrogate = false;
+    // True if the last decoded char was a high surrogate
+    private boolean isHighSurrogate = false;
+    // True while the buffers of the framer are released
+    private boolean compacted = false;
+
+    public boolean areThereMsgs() {
+        return msgsCount > 0;
+    }
+
+    public String[] getMsgs() {
+        String[] res = new String[msgsCount];
+        for (int i = 0; i < msgsCount; i++) {
+            int start = msgs[i * 2];
+            res[i] = start < 0 ? STREAM_CLOSE :
+                    new String(buffer, start, msgs[i * 2 + 1] - start, UTF8);
+        }
+        clearMsgs();
+        return res;
+    }
+
+    public boolean compact() {
+        if (compacted || msgsCount > 0 || startLastMsg < count || pendingBytes > 0 ||
+                !isBetweenStanzas()) {
+            return false;
+        }
+        buffer = EMPTY_BYTES;
+        count = 0;
+        startLastMsg = 0;
+        head = EMPTY_BYTES;
+        msgs = EMPTY_INTS;
+        releaseBuffers();
+        compacted = true;
+        return true;
+    }
+
+    public boolean isCompacted() {
+        return compacted;
+    }
+
+    /**
+     * Returns true if the robot is not reading a stanza.
+     *
+     * @return true if the robot is not reading a stanza.
+     */
+    protected boolean isBetweenStanzas() {
+        return status == XMLLightweightParser.INIT;
+    }
+
+    /**
+     * Notification that the framer is being compacted. Subclasses should replace their
+     * buffers with shared empty arrays.
+     */
+    protected void releaseBuffers() {
+    }
+
+    /**
+     * Notification that a compacted framer is about to read again. Subclasses should
+     * allocate the buffers that were released.
+     */
+    protected void allocateBuffers() {
+    }
+
+    /**
+     * Discards the complete stanzas found so far and the bytes they were using.
+     */
+    protected void clearMsgs() {
+        msgsCount = 0;
+        invalidateBuffer();
+    }
+
+    /**
+     * Returns the number of complete stanzas that were found and not consumed yet.
+     *
+     * @return the number of complete stanzas that were found.
+     */
+    int getMsgsCount() {
+        return msgsCount;
+    }
+
+    /**
+     * Returns the buffer that holds the bytes of the found stanzas. The buffer is reused
+     * so offsets are only valid until the next read or until the stanzas are consumed.
+     *
+     * @return the buffer that holds the bytes of the found stanzas.
+     */
+    byte[] getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * Returns the offset in the buffer where the specified stanza starts or -1 if the
+     * stanza is the closing stream tag.
+     *
+     * @param index the index of the stanza.
+     * @return the offset in the buffer where the specified stanza starts.
+     */
+    int getMsgStart(int index) {
+        return msgs[index * 2];
+    }
+
+    /**
+     * Returns the offset in the buffer where the specified stanza ends (exclusive).
+     *
+     * @param index the index of the stanza.
+     * @return the offset in the buffer where the specified stanza ends.
+     */
+    int getMsgEnd(int index) {
+        return msgs[index * 2 + 1];
+    }
+
+    /*
+    * Discards the bytes of the stanzas that were already consumed.
+    */
+    private void invalidateBuffer() {
+        int from = startLastMsg;
+        for (int i = 0; i < msgsCount; i++) {
+            if (msgs[i * 2] >= 0) {
+                // Keep the stanzas that were not consumed yet
+                from = msgs[i * 2];
+                break;
+            }
+        }
+        if (from > 0) {
+            int remaining = count - from;
+            if (buffer.length > INITIAL_CAPACITY * 4 && remaining <= INITIAL_CAPACITY) {
+                // Release the memory used by big stanzas
+                byte[] newBuffer = new byte[INITIAL_CAPACITY];
+                System.arraycopy(buffer, from, newBuffer, 0, remaining);
+                buffer = newBuffer;
+            }
+            else {
+                System.arraycopy(buffer, from, buffer, 0, remaining);
+            }
+            count = remaining;
+            startLastMsg -= from;
+            for (int i = 0; i < msgsCount; i++) {
+                if (msgs[i * 2] >= 0) {
+                    msgs[i * 2] -= from;
+                    msgs[i * 2 + 1] -= from;
+                }
+            }
+            bufferShifted(from);
+        }
+    }
+
+    /**
+     * Notification that the bytes in the buffer were moved to the left because consumed
+     * stanzas were discarded. Subclasses that keep offsets into the buffer must adjust them.
+     *
+     * @param delta number of positions that the bytes were moved.
+     */
+    protected void bufferShifted(int delta) {
+    }
+
+    /**
+     * Adds a complete stanza to the list of found stanzas.
+     *
+     * @param start the offset in the buffer where the stanza starts or -1 for the closing
+     *        stream tag.
+     * @param end the offset in the buffer where the stanza ends (exclusive).
+     */
+    protected void addMsg(int start, int end) {
+        if (msgsCount * 2 == msgs.length) {
+            int[] newMsgs = new int[msgs.length * 2];
+            System.arraycopy(msgs, 0, newMsgs, 0, msgs.length);
+            msgs = newMsgs;
+        }
+        msgs[msgsCount * 2] = start;
+        msgs[msgsCount * 2 + 1] = end;
+        msgsCount++;
+    }
+
+    /*
+    * Method that add a message to the list and reinit parser.
+    */
+    private void foundMsg(int start, int end) {
+        addMsg(start, end);
+        // Reinit the robot
+        status = XMLLightweightParser.INIT;
+        tailCount = 0;
+        cdataOffset = 0;
+        headLength = 0;
+        insideRootTag = false;
+        depth = 0;
+        charRefVerifier.reset();
+    }
+
+    private boolean headEquals(byte[] value) {
+        if (headLength != value.length) {
+            return false;
+        }
+        for (int i = 0; i < headLength; i++) {
+            if (head[i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendHead(byte b) {
+        if (headLength == head.length) {
+            byte[] newHead = new byte[head.length * 2];
+            System.arraycopy(head, 0, newHead, 0, headLength);
+            head = newHead;
+        }
+        head[headLength++] = b;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            byte[] newBuffer = new byte[Math.max(capacity, buffer.length * 2)];
+            System.arraycopy(buffer, 0, newBuffer, 0, count);
+            buffer = newBuffer;
+        }
+    }
+
+    /*
+    * Main reading method
+    */
+    public void read(ByteBuffer byteBuffer) throws Exception {
+        if (compacted) {
+            buffer = new byte[INITIAL_CAPACITY];
+            head = new byte[16];
+            msgs = new int[8];
+            allocateBuffers();
+            compacted = false;
+        }
+        invalidateBuffer();
+        // Check that the buffer is not bigger than 1 Megabyte. For security reasons
+        // we will abort parsing when 1 Mega of queued bytes was found.
+        if (count - startLastMsg > XMLLightweightParser.getMaxBufferSize()) {
+            throw new Exception("Stopped parsing never ending stanza");
+        }
+        int readBytes = byteBuffer.remaining();
+        // Just return if nothing was read
+        if (readBytes == 0) {
+            return;
+        }
+        ensureCapacity(count + readBytes);
+        int offset = count;
+        byteBuffer.get(buffer, offset, readBytes);
+        count += readBytes;
+        scan(offset);
+    }
+
+    /**
+     * Runs the robot over the bytes that were just read.
+     *
+     * @param offset the offset in the buffer of the first byte that was just read.
+     * @throws Exception if the read data is not valid XML.
+     */
+    protected void scan(int offset) throws Exception {
+        byte ch;
+        for (int i = offset; i < count; i++) {
+            ch = buffer[i];
+            verifyChar(ch);
+            if (status != XMLLightweightParser.INIT && !charRefVerifier.verify(ch)) {
+                throw new XMLNotWellFormedException("Illegal character reference found in: " +
+                        new String(buffer, startLastMsg, i + 1 - startLastMsg, UTF8));
+            }
+
+            if (status == XMLLightweightParser.TAIL) {
+                // Looking for the close tag
+                if (depth < 1 && ch == head[tailCount]) {
+                    tailCount++;
+                    if (tailCount == headLength) {
+                        // Close stanza found!
+                        int end = i + 1;
+                        foundMsg(startLastMsg, end);
+                        startLastMsg = end;
+                    }
+                } else {
+                    tailCount = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.PRETAIL) {
+                if (ch == CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                    status = XMLLightweightParser.INSIDE;
+                }
+                if (ch == '/') {
+                    status = XMLLightweightParser.TAIL;
+                    depth--;
+                }
+                else if (ch == '!') {
+                    // This is a <! (comment) so ignore it
+                    status = XMLLightweightParser.INSIDE;
+                }
+                else {
+                    depth++;
+                }
+            } else if (status == XMLLightweightParser.VERIFY_CLOSE_TAG) {
+                if (ch == '>') {
+                    depth--;
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (depth < 1) {
+                        // Found a tag in the form <tag />
+                        int end = i + 1;
+                        foundMsg(startLastMsg, end);
+                        startLastMsg = end;
+                    }
+                } else if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                } else {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_PARAM_VALUE) {
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE;
+                }
+            } else if (status == XMLLightweightParser.INSIDE_CDATA) {
+                if (ch == CDATA_END[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_END.length) {
+                        status = XMLLightweightParser.OUTSIDE;
+                        cdataOffset = 0;
+                    }
+                } else {
+                    cdataOffset = 0;
+                }
+            } else if (status == XMLLightweightParser.INSIDE) {
+                if (ch == CDATA_START[cdataOffset]) {
+                    cdataOffset++;
+                    if (cdataOffset == CDATA_START.length) {
+                        status = XMLLightweightParser.INSIDE_CDATA;
+                        cdataOffset = 0;
+                        continue;
+                    }
+                } else {
+                    cdataOffset = 0;
+                }
+                if (ch == '"') {
+                    status = XMLLightweightParser.INSIDE_PARAM_VALUE;
+                } else if (ch == '>') {
+                    status = XMLLightweightParser.OUTSIDE;
+                    if (insideRootTag &&
+                            (headEquals(STREAM_HEAD) || headEquals(XML_HEAD) || headEquals(FLASH_HEAD))) {
+                        // Found closing stream:stream
+                        int end = i + 1;
+                        // Skip LF, CR and other "weird" characters that could appear
+                        while (startLastMsg < end && '<' != buffer[startLastMsg]) {
+                            startLastMsg++;
+                        }
+                        foundMsg(startLastMsg, end);
+                        startLastMsg = end;
+                    }
+                    insideRootTag = false;
+                } else if (ch == '/') {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                }
+            } else if (status == XMLLightweightParser.HEAD) {
+                if (ch == ' ' || ch == '>') {
+                    // Append > to head to allow searching </tag>
+                    appendHead((byte) '>');
+                    if (ch == '>')
+                        status = XMLLightweightParser.OUTSIDE;
+                    else
+                        status = XMLLightweightParser.INSIDE;
+                    insideRootTag = true;
+                    continue;
+                }
+                else if (ch == '/' && headLength > 0) {
+                    status = XMLLightweightParser.VERIFY_CLOSE_TAG;
+                    depth--;
+                }
+                appendHead(ch);
+
+            } else if (status == XMLLightweightParser.INIT) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.HEAD;
+                    depth = 1;
+                }
+                else {
+                    startLastMsg++;
+                }
+            } else if (status == XMLLightweightParser.OUTSIDE) {
+                if (ch == '<') {
+                    status = XMLLightweightParser.PRETAIL;
+                    cdataOffset = 1;
+                }
+            }
+        }
+        if (headLength > 0 && (headEquals(STREAM_CLOSE_HEAD) || headEquals(FLASH_CLOSE_HEAD))) {
+            // Found closing stream:stream
+            foundMsg(-1, -1);
+            startLastMsg = count;
+        }
+    }
+
+    /**
+     * Verifies that the specified byte is allowed in XML. Control chars other than tab, line
+     * feed, carriage return and NULL are rejected as well as unpaired surrogates.
+     *
+     * @param ch the byte to verify.
+     * @throws Exception if the byte is not allowed in XML.
+     */
+    protected void verifyChar(byte ch) throws Exception {
+        if (ch >= 0) {
+            if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && ch != 0x0) {
+                //Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+                //We need to allow the NULL character, however, for Flash XMLSocket clients to work.
+                throw new XMLNotWellFormedException("Character is invalid in: " + (char) ch);
+            }
+            if (isHighSurrogate) {
+                // Trigger error. Found high surrogate not followed by low surrogate
+                throw new Exception("Found high surrogate not followed by low surrogate");
+            }
+            pendingBytes = 0;
+        }
+        else {
+            verifyMultiByteChar(ch);
+        }
+    }
+
+    /**
+     * Verifies a byte of a multi-byte UTF-8 sequence. Surrogates encoded as 3 bytes
+     * sequences (i.e. 0xED 0xA0-0xBF 0xXX) must appear as a high surrogate followed by a
+     * low surrogate. Other malformed sequences are replaced when the stanza is decoded.
+     *
+     * @param ch the non-ASCII byte to verify.
+     * @throws Exception if the byte belongs to an unpaired surrogate.
+     */
+    private void verifyMultiByteChar(byte ch) throws Exception {
+        if (pendingBytes > 0 && (ch & 0xC0) == 0x80) {
+            // Continuation byte
+            pendingBytes--;
+            if (checkSurrogate) {
+                checkSurrogate = false;
+                if ((ch & 0xFF) >= 0xB0) {
+                    if (!isHighSurrogate) {
+                        // Trigger error. Found low surrogate char without a preceding high surrogate
+                        throw new Exception("Found low surrogate char without a preceding high surrogate");
+                    }
+                    // Everything is fine. Clean up traces for surrogates
+                    isHighSurrogate = false;
+                }
+                else if ((ch & 0xFF) >= 0xA0) {
+                    if (isHighSurrogate) {
+                        throw new Exception("Found high surrogate not followed by low surrogate");
+                    }
+                    isHighSurrogate = true;
+                }
+                else if (isHighSurrogate) {
+                    throw new Exception("Found high surrogate not followed by low surrogate");
+                }
+            }
+            return;
+        }
+        // Leading byte of a new char
+        if (isHighSurrogate && (ch & 0xFF) != 0xED) {
+            // Trigger error. Found high surrogate not followed by low surrogate
+            throw new Exception("Found high surrogate not followed by low surrogate");
+        }
+        checkSurrogate = false;
+        if ((ch & 0xE0) == 0xC0) {
+            pendingBytes = 1;
+        }
+        else if ((ch & 0xF0) == 0xE0) {
+            pendingBytes = 2;
+            checkSurrogate = (ch & 0xFF) == 0xED;
+        }
+        else if ((ch & 0xF8) == 0xF0) {
+            pendingBytes = 3;
+        }
+        else {
+            // Malformed byte. It will be replaced when decoding the stanza
+            pendingBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,864 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+/**
+ * Byte level framer that validates stanzas in the same pass that finds their boundaries.
+ * Stanzas are checked to be well-formed: start and end tags have to match, attribute
+ * values have to be quoted and unique, and entity and character references have to be
+ * valid. Like the namespace aware parser that used to validate stanzas, prefixes of
+ * element and attribute names have to be bound by a namespace declaration of the
+ * element or of one of its ancestors in the same stanza.<p>
+ *
+ * The name of the root element and the <tt>to</tt>, <tt>id</tt> and <tt>type</tt>
+ * attributes are recorded while scanning so that {@link #getStanzas()} can return a
+ * {@link StanzaHeader} for each stanza and stanzas can be routed without being parsed
+ * again.<p>
+ *
+ * The initial stream header, the xml declaration and the closing stream tag are returned
+ * as stanzas just like {@link XMLLightweightParser} does.
+ */
+class ValidatingStanzaFramer extends UTF8StanzaFramer {
+
+    // ---- INTERNAL STATUS -------
+    // Outside of any stanza
+    private static final int INIT = 0;
+    // A '<' was found
+    private static final int LT = 1;
+    // Reading the name of a start tag
+    private static final int START_NAME = 2;
+    // Inside a start tag waiting for an attribute or the end of the tag
+    private static final int IN_TAG = 3;
+    // An attribute value was read so whitespace or the end of the tag is expected
+    private static final int AFTER_ATTR = 4;
+    // Reading the name of an attribute
+    private static final int ATTR_NAME = 5;
+    // Waiting for the '=' of an attribute
+    private static final int ATTR_EQ = 6;
+    // Waiting for the opening quote of an attribute value
+    private static final int ATTR_VALUE_START = 7;
+    // Inside an attribute value
+    private static final int ATTR_VALUE = 8;
+    // A '/' was found inside a start tag so '>' is expected
+    private static final int EMPTY_CLOSE = 9;
+    // Reading text inside an element
+    private static final int TEXT = 10;
+    // Reading the name of an end tag
+    private static final int END_NAME = 11;
+    // The name of an end tag was read so '>' is expected
+    private static final int END_TAG_WS = 12;
+    // A '&' was found
+    private static final int REF = 13;
+    // Reading the name of an entity reference
+    private static final int ENTITY = 14;
+    // A '&#' was found
+    private static final int CHARREF_START = 15;
+    // Reading the digits of a decimal character reference
+    private static final int DEC_REF = 16;
+    // Reading the digits of an hexadecimal character reference
+    private static final int HEX_REF = 17;
+    // A '<!' was found
+    private static final int BANG = 18;
+    // A '<!-' was found
+    private static final int COMMENT_START = 19;
+    // Inside a comment
+    private static final int COMMENT = 20;
+    // Reading the '<![CDATA[' that opens a CDATA section
+    private static final int CDATA_OPEN = 21;
+    // Inside a CDATA section
+    private static final int CDATA = 22;
+    // Inside a processing instruction or xml declaration
+    private static final int PI = 23;
+
+    private static final byte[] CDATA_OPEN_CHARS = {'[', 'C', 'D', 'A', 'T', 'A', '['};
+    private static final byte[] STREAM_NAME = {'s', 't', 'r', 'e', 'a', 'm', ':', 's', 't', 'r', 'e', 'a', 'm'};
+    private static final byte[] FLASH_NAME = {'f', 'l', 'a', 's', 'h', ':', 's', 't', 'r', 'e', 'a', 'm'};
+    private static final byte[] TO_NAME = {'t', 'o'};
+    private static final byte[] ID_NAME = {'i', 'd'};
+    private static final byte[] TYPE_NAME = {'t', 'y', 'p', 'e'};
+    private static final byte[] XML_PREFIX = {'x', 'm', 'l'};
+    private static final byte[] XMLNS_PREFIX = {'x', 'm', 'l', 'n', 's'};
+    private static final String[] ENTITIES = {"amp", "lt", "gt", "quot", "apos"};
+    private static final char[] ENTITY_CHARS = {'&', '<', '>', '"', '\''};
+
+    // Number of ints used by the header of each stanza: name, to, id and type ranges
+    private static final int HEADER_SIZE = 8;
+
+    // Current robot status
+    private int status = INIT;
+    // Status to return to after a reference was read
+    private int refReturnStatus;
+    // Number of open elements of the current stanza
+    private int depth = 0;
+    // Offsets relative to the stanza start and lengths of the names of the open elements
+    private int[] openNames = new int[16];
+    // Number of namespace prefixes that were declared when each open element was opened
+    private int[] nsMarks = new int[8];
+    // Offsets relative to the stanza start and lengths of the prefixes declared by the open elements
+    private int[] nsPrefixes = new int[16];
+    private int nsCount = 0;
+    // Offset where the name or attribute value being read starts
+    private int tokenStart;
+    // Offset where the name of the entity reference being read starts
+    private int refStart;
+    // Offset where the name of the current attribute starts and ends
+    private int attrNameStart;
+    private int attrNameEnd;
+    // Offsets relative to the stanza start and lengths of the attribute names of the current tag
+    private int[] attrNames = new int[16];
+    private int attrCount = 0;
+    // True if the end tag of the initial stream is being read
+    private boolean closingStream = false;
+    // Quote char used by the current attribute value
+    private byte quote;
+    // Value of the character reference being read
+    private int refValue;
+    private int refDigits;
+    // Number of matched bytes of a sequence such as ']]>', '-->' or '<![CDATA['
+    private int matched;
+    // Header of the current stanza. Offsets are relative to the stanza start
+    private final int[] header = new int[HEADER_SIZE];
+    // Headers of the complete stanzas found
+    private int[] headers = new int[HEADER_SIZE * 4];
+
+    ValidatingStanzaFramer() {
+        resetHeader();
+    }
+
+    /**
+     * Returns the complete stanzas found so far along with their headers. Returned
+     * stanzas are removed from the framer.
+     *
+     * @return the complete stanzas found so far along with their headers.
+     */
+    public StanzaHeader[] getStanzas() {
+        int msgsCount = getMsgsCount();
+        StanzaHeader[] res = new StanzaHeader[msgsCount];
+        for (int i = 0; i < msgsCount; i++) {
+            int start = getMsgStart(i);
+            if (start < 0) {
+                res[i] = new StanzaHeader(STREAM_CLOSE, null, null, null, null);
+                continue;
+            }
+            int h = i * HEADER_SIZE;
+            String name = decode(start, headers[h], headers[h + 1]);
+            if (name != null) {
+                int colon = name.indexOf(':');
+                if (colon > -1) {
+                    name = name.substring(colon + 1);
+                }
+            }
+            res[i] = new StanzaHeader(new String(buffer, start, getMsgEnd(i) - start, UTF8), name,
+                    unescape(decode(start, headers[h + 2], headers[h + 3])),
+                    unescape(decode(start, headers[h + 4], headers[h + 5])),
+                    unescape(decode(start, headers[h + 6], headers[h + 7])));
+        }
+        clearMsgs();
+        return res;
+    }
+
+    private String decode(int base, int start, int end) {
+        if (start < 0) {
+            return null;
+        }
+        return new String(buffer, base + start, end - start, UTF8);
+    }
+
+    @Override
+    protected boolean isBetweenStanzas() {
+        return status == INIT;
+    }
+
+    @Override
+    protected void releaseBuffers() {
+        openNames = EMPTY_INTS;
+        nsMarks = EMPTY_INTS;
+        nsPrefixes = EMPTY_INTS;
+        attrNames = EMPTY_INTS;
+        headers = EMPTY_INTS;
+    }
+
+    @Override
+    protected void allocateBuffers() {
+        openNames = new int[16];
+        nsMarks = new int[8];
+        nsPrefixes = new int[16];
+        attrNames = new int[16];
+        headers = new int[HEADER_SIZE * 4];
+    }
+
+    @Override
+    protected void bufferShifted(int delta) {
+        tokenStart -= delta;
+        refStart -= delta;
+        attrNameStart -= delta;
+        attrNameEnd -= delta;
+    }
+
+    @Override
+    protected void scan(int offset) throws Exception {
+        byte ch;
+        for (int i = offset; i < count; i++) {
+            ch = buffer[i];
+            verifyChar(ch);
+            switch (status) {
+                case INIT:
+                    if (ch == '<') {
+                        status = LT;
+                    }
+                    else if (isWhitespace(ch) || ch == 0) {
+                        // Skip heartbeats and the NULL char sent by flash clients
+                        startLastMsg = i + 1;
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Text found outside of stanza");
+                    }
+                    break;
+                case LT:
+                    if (ch == '/') {
+                        status = END_NAME;
+                        tokenStart = i + 1;
+                    }
+                    else if (ch == '!') {
+                        status = BANG;
+                    }
+                    else if (ch == '?') {
+                        status = PI;
+                        matched = 0;
+                    }
+                    else if (isNameStartChar(ch)) {
+                        status = START_NAME;
+                        tokenStart = i;
+                        attrCount = 0;
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Invalid element name");
+                    }
+                    break;
+                case START_NAME:
+                    if (!isNameChar(ch)) {
+                        if (depth == 0) {
+                            header[0] = tokenStart - startLastMsg;
+                            header[1] = i - startLastMsg;
+                        }
+                        pushName(tokenStart, i);
+                        inTag(ch, i);
+                    }
+                    break;
+                case IN_TAG:
+                    if (isNameStartChar(ch)) {
+                        status = ATTR_NAME;
+                        tokenStart = i;
+                    }
+                    else {
+                        inTag(ch, i);
+                    }
+                    break;
+                case AFTER_ATTR:
+                    if (isWhitespace(ch)) {
+                        status = IN_TAG;
+                    }
+                    else if (ch == '/' || ch == '>') {
+                        inTag(ch, i);
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Whitespace is required between attributes");
+                    }
+                    break;
+                case ATTR_NAME:
+                    if (!isNameChar(ch)) {
+                        attrNameStart = tokenStart;
+                        attrNameEnd = i;
+                        addAttributeName();
+                        if (ch == '=') {
+                            status = ATTR_VALUE_START;
+                        }
+                        else if (isWhitespace(ch)) {
+                            status = ATTR_EQ;
+                        }
+                        else {
+                            throw new XMLNotWellFormedException("Attribute without value");
+                        }
+                    }
+                    break;
+                case ATTR_EQ:
+                    if (ch == '=') {
+                        status = ATTR_VALUE_START;
+                    }
+                    else if (!isWhitespace(ch)) {
+                        throw new XMLNotWellFormedException("Attribute without value");
+                    }
+                    break;
+                case ATTR_VALUE_START:
+                    if (ch == '"' || ch == '\'') {
+                        quote = ch;
+                        tokenStart = i + 1;
+                        status = ATTR_VALUE;
+                    }
+                    else if (!isWhitespace(ch)) {
+                        throw new XMLNotWellFormedException("Attribute value is not quoted");
+                    }
+                    break;
+                case ATTR_VALUE:
+                    if (ch == quote) {
+                        if (depth == 1) {
+                            // Attribute of the root element
+                            recordAttribute(tokenStart, i);
+                        }
+                        status = AFTER_ATTR;
+                    }
+                    else if (ch == '<') {
+                        throw new XMLNotWellFormedException("Character '<' found in attribute value");
+                    }
+                    else if (ch == '&') {
+                        refReturnStatus = ATTR_VALUE;
+                        status = REF;
+                    }
+                    break;
+                case EMPTY_CLOSE:
+                    if (ch != '>') {
+                        throw new XMLNotWellFormedException("Character '>' expected after '/'");
+                    }
+                    // Element in the form <tag/>
+                    popName();
+                    endElement(i);
+                    break;
+                case TEXT:
+                    if (ch == '<') {
+                        status = LT;
+                    }
+                    else if (ch == '&') {
+                        refReturnStatus = TEXT;
+                        status = REF;
+                    }
+                    break;
+                case END_NAME:
+                    if (!isNameChar(ch)) {
+                        if (i == tokenStart) {
+                            throw new XMLNotWellFormedException("Invalid end tag name");
+                        }
+                        closeName(tokenStart, i);
+                        if (ch == '>') {
+                            endElement(i);
+                        }
+                        else if (isWhitespace(ch)) {
+                            status = END_TAG_WS;
+                        }
+                        else {
+                            throw new XMLNotWellFormedException("Invalid end tag name");
+                        }
+                    }
+                    break;
+                case END_TAG_WS:
+                    if (ch == '>') {
+                        endElement(i);
+                    }
+                    else if (!isWhitespace(ch)) {
+                        throw new XMLNotWellFormedException("Character '>' expected in end tag");
+                    }
+                    break;
+                case REF:
+                    if (ch == '#') {
+                        status = CHARREF_START;
+                    }
+                    else if (isNameStartChar(ch)) {
+                        status = ENTITY;
+                        refStart = i;
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Invalid reference");
+                    }
+                    break;
+                case ENTITY:
+                    if (ch == ';') {
+                        if (!isPredefinedEntity(refStart, i)) {
+                            throw new XMLNotWellFormedException("Undefined entity found: " +
+                                    new String(buffer, refStart, i - refStart, UTF8));
+                        }
+                        status = refReturnStatus;
+                    }
+                    else if (!isNameChar(ch)) {
+                        throw new XMLNotWellFormedException("Invalid reference");
+                    }
+                    break;
+                case CHARREF_START:
+                    refValue = 0;
+                    refDigits = 0;
+                    if (ch == 'x') {
+                        status = HEX_REF;
+                    }
+                    else if (ch >= '0' && ch <= '9') {
+                        status = DEC_REF;
+                        addRefDigit(ch - '0', 10);
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Invalid character reference");
+                    }
+                    break;
+                case DEC_REF:
+                    if (ch >= '0' && ch <= '9') {
+                        addRefDigit(ch - '0', 10);
+                    }
+                    else {
+                        endCharRef(ch, i);
+                    }
+                    break;
+                case HEX_REF:
+                    if (ch >= '0' && ch <= '9') {
+                        addRefDigit(ch - '0', 16);
+                    }
+                    else if (ch >= 'a' && ch <= 'f') {
+                        addRefDigit(ch - 'a' + 10, 16);
+                    }
+                    else if (ch >= 'A' && ch <= 'F') {
+                        addRefDigit(ch - 'A' + 10, 16);
+                    }
+                    else {
+                        endCharRef(ch, i);
+                    }
+                    break;
+                case BANG:
+                    if (ch == '-') {
+                        status = COMMENT_START;
+                    }
+                    else if (ch == '[' && depth > 0) {
+                        status = CDATA_OPEN;
+                        matched = 1;
+                    }
+                    else {
+                        throw new XMLNotWellFormedException("Document type declarations are not allowed");
+                    }
+                    break;
+                case COMMENT_START:
+                    if (ch != '-') {
+                        throw new XMLNotWellFormedException("Invalid comment");
+                    }
+                    status = COMMENT;
+                    matched = 0;
+                    break;
+                case COMMENT:
+                    if (ch == '-') {
+                        matched++;
+                    }
+                    else if (ch == '>' && matched >= 2) {
+                        if (depth == 0) {
+                            // Ignore comments between stanzas
+                            status = INIT;
+                            startLastMsg = i + 1;
+                        }
+                        else {
+                            status = TEXT;
+                        }
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+                case CDATA_OPEN:
+                    if (ch != CDATA_OPEN_CHARS[matched]) {
+                        throw new XMLNotWellFormedException("Invalid CDATA section");
+                    }
+                    matched++;
+                    if (matched == CDATA_OPEN_CHARS.length) {
+                        status = CDATA;
+                        matched = 0;
+                    }
+                    break;
+                case CDATA:
+                    if (ch == ']') {
+                        matched++;
+                    }
+                    else if (ch == '>' && matched >= 2) {
+                        status = TEXT;
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+                case PI:
+                    if (ch == '?') {
+                        matched = 1;
+                    }
+                    else if (ch == '>' && matched == 1) {
+                        if (depth == 0) {
+                            // Found the xml declaration
+                            foundMsg(i + 1);
+                        }
+                        else {
+                            status = TEXT;
+                        }
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Handles a char found inside a start tag that is not part of an attribute.
+     */
+    private void inTag(byte ch, int i) throws XMLNotWellFormedException {
+        if (ch == '>' || ch == '/') {
+            verifyNamespaces();
+        }
+        if (ch == '>') {
+            if (depth == 1 && (nameEquals(0, STREAM_NAME) || nameEquals(0, FLASH_NAME))) {
+                // Found the initial stream header. Its end tag will be returned alone.
+                depth = 0;
+                foundMsg(i + 1);
+            }
+            else {
+                status = TEXT;
+            }
+        }
+        else if (ch == '/') {
+            status = EMPTY_CLOSE;
+        }
+        else if (isWhitespace(ch)) {
+            status = IN_TAG;
+        }
+        else {
+            throw new XMLNotWellFormedException("Invalid character found in tag");
+        }
+    }
+
+    /**
+     * An element was closed. If it was the root element then the stanza is complete.
+     */
+    private void endElement(int i) throws XMLNotWellFormedException {
+        if (closingStream) {
+            // Found closing stream:stream
+            closingStream = false;
+            addMsg(-1, -1);
+            addHeader();
+            startLastMsg = i + 1;
+            status = INIT;
+        }
+        else if (depth == 0) {
+            foundMsg(i + 1);
+        }
+        else {
+            status = TEXT;
+        }
+    }
+
+    private void foundMsg(int end) {
+        addMsg(startLastMsg, end);
+        addHeader();
+        startLastMsg = end;
+        status = INIT;
+        depth = 0;
+        nsCount = 0;
+        resetHeader();
+    }
+
+    private void addHeader() {
+        int index = (getMsgsCount() - 1) * HEADER_SIZE;
+        if (index + HEADER_SIZE > headers.length) {
+            int[] newHeaders = new int[headers.length * 2];
+            System.arraycopy(headers, 0, newHeaders, 0, headers.length);
+            headers = newHeaders;
+        }
+        System.arraycopy(header, 0, headers, index, HEADER_SIZE);
+    }
+
+    private void resetHeader() {
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            header[i] = -1;
+        }
+    }
+
+    private void pushName(int start, int end) {
+        if (depth * 2 == openNames.length) {
+            int[] newNames = new int[openNames.length * 2];
+            System.arraycopy(openNames, 0, newNames, 0, openNames.length);
+            openNames = newNames;
+        }
+        if (depth == nsMarks.length) {
+            int[] newMarks = new int[Math.max(8, nsMarks.length * 2)];
+            System.arraycopy(nsMarks, 0, newMarks, 0, nsMarks.length);
+            nsMarks = newMarks;
+        }
+        openNames[depth * 2] = start - startLastMsg;
+        openNames[depth * 2 + 1] = end - start;
+        nsMarks[depth] = nsCount;
+        depth++;
+    }
+
+    private void popName() {
+        depth--;
+        // Forget the prefixes declared by the closed element
+        nsCount = nsMarks[depth];
+    }
+
+    /**
+     * Verifies that the name of an end tag matches the name of the last open element.
+     */
+    private void closeName(int start, int end) throws XMLNotWellFormedException {
+        int length = end - start;
+        if (depth == 0) {
+            // Only the initial stream may be closed outside of a stanza
+            if (length == STREAM_NAME.length && matches(start, STREAM_NAME) ||
+                    length == FLASH_NAME.length && matches(start, FLASH_NAME)) {
+                closingStream = true;
+                return;
+            }
+            throw new XMLNotWellFormedException("End tag found without a start tag");
+        }
+        int nameStart = startLastMsg + openNames[(depth - 1) * 2];
+        int nameLength = openNames[(depth - 1) * 2 + 1];
+        if (length != nameLength) {
+            throw new XMLNotWellFormedException("End tag does not match start tag");
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer[start + i] != buffer[nameStart + i]) {
+                throw new XMLNotWellFormedException("End tag does not match start tag");
+            }
+        }
+        popName();
+    }
+
+    private boolean nameEquals(int index, byte[] name) {
+        return openNames[index * 2 + 1] == name.length &&
+                matches(startLastMsg + openNames[index * 2], name);
+    }
+
+    private boolean matches(int start, byte[] value) {
+        for (int i = 0; i < value.length; i++) {
+            if (buffer[start + i] != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Registers the name of the attribute that was just read and verifies that the
+     * same attribute was not included before in the same tag.
+     */
+    private void addAttributeName() throws XMLNotWellFormedException {
+        int length = attrNameEnd - attrNameStart;
+        for (int i = 0; i < attrCount; i++) {
+            if (attrNames[i * 2 + 1] == length) {
+                int other = startLastMsg + attrNames[i * 2];
+                boolean same = true;
+                for (int j = 0; j < length && same; j++) {
+                    same = buffer[attrNameStart + j] == buffer[other + j];
+                }
+                if (same) {
+                    throw new XMLNotWellFormedException("Duplicated attribute found: " +
+                            new String(buffer, attrNameStart, length, UTF8));
+                }
+            }
+        }
+        if (attrCount * 2 == attrNames.length) {
+            int[] newNames = new int[attrNames.length * 2];
+            System.arraycopy(attrNames, 0, newNames, 0, attrNames.length);
+            attrNames = newNames;
+        }
+        attrNames[attrCount * 2] = attrNameStart - startLastMsg;
+        attrNames[attrCount * 2 + 1] = length;
+        attrCount++;
+    }
+
+    /**
+     * Registers the namespace prefixes declared by the start tag that was just read and
+     * verifies that the prefixes of the element and of its attributes are bound.
+     */
+    private void verifyNamespaces() throws XMLNotWellFormedException {
+        for (int i = 0; i < attrCount; i++) {
+            int start = startLastMsg + attrNames[i * 2];
+            int length = attrNames[i * 2 + 1];
+            if (length > XMLNS_PREFIX.length && buffer[start + XMLNS_PREFIX.length] == ':' &&
+                    matches(start, XMLNS_PREFIX)) {
+                if (length == XMLNS_PREFIX.length + 1) {
+                    throw new XMLNotWellFormedException("Empty namespace prefix declared");
+                }
+                addPrefix(attrNames[i * 2] + XMLNS_PREFIX.length + 1,
+                        length - XMLNS_PREFIX.length - 1);
+            }
+        }
+        verifyPrefix(openNames[(depth - 1) * 2], openNames[(depth - 1) * 2 + 1], false);
+        for (int i = 0; i < attrCount; i++) {
+            verifyPrefix(attrNames[i * 2], attrNames[i * 2 + 1], true);
+        }
+    }
+
+    private void addPrefix(int offset, int length) {
+        if (nsCount * 2 == nsPrefixes.length) {
+            int[] newPrefixes = new int[Math.max(16, nsPrefixes.length * 2)];
+            System.arraycopy(nsPrefixes, 0, newPrefixes, 0, nsPrefixes.length);
+            nsPrefixes = newPrefixes;
+        }
+        nsPrefixes[nsCount * 2] = offset;
+        nsPrefixes[nsCount * 2 + 1] = length;
+        nsCount++;
+    }
+
+    /**
+     * Verifies that the prefix of an element or attribute name is predefined or was
+     * declared by an open element.
+     *
+     * @param offset offset of the name relative to the stanza start.
+     * @param length length of the name.
+     * @param attribute true if the name is the name of an attribute.
+     */
+    private void verifyPrefix(int offset, int length, boolean attribute)
+            throws XMLNotWellFormedException {
+        int start = startLastMsg + offset;
+        int colon = -1;
+        for (int i = 0; i < length && colon < 0; i++) {
+            if (buffer[start + i] == ':') {
+                colon = i;
+            }
+        }
+        if (colon < 0) {
+            return;
+        }
+        if (colon == XML_PREFIX.length && matches(start, XML_PREFIX)) {
+            return;
+        }
+        if (attribute && colon == XMLNS_PREFIX.length && matches(start, XMLNS_PREFIX)) {
+            return;
+        }
+        for (int i = nsCount - 1; i >= 0; i--) {
+            if (nsPrefixes[i * 2 + 1] == colon) {
+                int prefix = startLastMsg + nsPrefixes[i * 2];
+                boolean same = true;
+                for (int j = 0; j < colon && same; j++) {
+                    same = buffer[start + j] == buffer[prefix + j];
+                }
+                if (same) {
+                    return;
+                }
+            }
+        }
+        throw new XMLNotWellFormedException("Unbound namespace prefix found: " +
+                new String(buffer, start, length, UTF8));
+    }
+
+    /**
+     * Keeps the value of the attribute of the root element if it is used for routing.
+     */
+    private void recordAttribute(int start, int end) {
+        int length = attrNameEnd - attrNameStart;
+        int index;
+        if (length == 2 && matches(attrNameStart, TO_NAME)) {
+            index = 2;
+        }
+        else if (length == 2 && matches(attrNameStart, ID_NAME)) {
+            index = 4;
+        }
+        else if (length == 4 && matches(attrNameStart, TYPE_NAME)) {
+            index = 6;
+        }
+        else {
+            return;
+        }
+        header[index] = start - startLastMsg;
+        header[index + 1] = end - startLastMsg;
+    }
+
+    private boolean isPredefinedEntity(int start, int end) {
+        int length = end - start;
+        for (String entity : ENTITIES) {
+            if (entity.length() == length) {
+                boolean same = true;
+                for (int i = 0; i < length && same; i++) {
+                    same = buffer[start + i] == entity.charAt(i);
+                }
+                if (same) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addRefDigit(int digit, int radix) {
+        refDigits++;
+        if (refValue <= 0x10FFFF) {
+            refValue = refValue * radix + digit;
+        }
+    }
+
+    private void endCharRef(byte ch, int i) throws XMLNotWellFormedException {
+        if (ch != ';' || refDigits == 0) {
+            throw new XMLNotWellFormedException("Invalid character reference");
+        }
+        if (!XMLLightweightParser.isLegalXmlCharacter(refValue)) {
+            throw new XMLNotWellFormedException("Illegal character reference found in: " +
+                    new String(buffer, startLastMsg, i + 1 - startLastMsg, UTF8));
+        }
+        status = refReturnStatus;
+    }
+
+    private static boolean isWhitespace(byte ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+    }
+
+    private static boolean isNameStartChar(byte ch) {
+        return ch < 0 || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_' || ch == ':';
+    }
+
+    private static boolean isNameChar(byte ch) {
+        return isNameStartChar(ch) || (ch >= '0' && ch <= '9') || ch == '-' || ch == '.';
+    }
+
+    /**
+     * Replaces entity and character references found in an attribute value. References
+     * were already validated while scanning the stanza.
+     *
+     * @param value the attribute value as found in the stanza.
+     * @return the unescaped value.
+     */
+    static String unescape(String value) {
+        if (value == null || value.indexOf('&') < 0) {
+            return value;
+        }
+        StringBuilder sb = new StringBuilder(value.length());
+        int i = 0;
+        while (i < value.length()) {
+            char ch = value.charAt(i);
+            int end = ch == '&' ? value.indexOf(';', i) : -1;
+            if (end < 0) {
+                sb.append(ch);
+                i++;
+                continue;
+            }
+            String ref = value.substring(i + 1, end);
+            if (ref.startsWith("#x")) {
+                sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+            }
+            else if (ref.startsWith("#")) {
+                sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+            }
+            else {
+                for (int j = 0; j < ENTITIES.length; j++) {
+                    if (ENTITIES[j].equals(ref)) {
+                        sb.append(ENTITY_CHARS[j]);
+                    }
+                }
+            }
+            i = end + 1;
+        }
+        return sb.toString();
+    }
+}
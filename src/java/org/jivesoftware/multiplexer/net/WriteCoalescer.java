@@ -0,0 +1,229 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFuture;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.common.WriteFuture;
+import org.dom4j.Element;
+import org.jivesoftware.util.IntProperty;
+
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the text written to a client connection while a previous write is still in
+ * progress. The first text is written to the session right away. Text written while a
+ * write is in progress is encoded into a pending buffer that is written as a single write
+ * request once the previous writes were completed. Bursts of stanzas (e.g. roster pushes
+ * or presences of a room being joined) are then sent using a few write requests instead
+ * of a write request (and usually a syscall) per stanza.<p>
+ *
+ * The pending buffer is written right away when it reaches the max coalesced size defined
+ * by the <tt>xmpp.client.write.coalesce.size</tt> property. A max size of zero or less
+ * disables coalescing.<p>
+ *
+ * Write requests are created while holding the lock of the coalescer so the order of the
+ * written text is always kept. Filters that change how data is written (e.g. TLS or
+ * compression) must be added after {@link #flush()} was invoked.
+ */
+class WriteCoalescer implements IoFutureListener {
+
+    /**
+     * Max number of bytes to coalesce in a single write request.
+     */
+    private static final IntProperty MAX_SIZE =
+            new IntProperty("xmpp.client.write.coalesce.size", 65536);
+
+    /**
+     * Initial capacity of the buffers where stanzas are serialized.
+     */
+    private static final int STANZA_SIZE = 512;
+
+    private static final AtomicLong writeRequests = new AtomicLong(0);
+    private static final AtomicLong coalescedWrites = new AtomicLong(0);
+
+    private final IoSession ioSession;
+    /**
+     * Buffer with the encoded text waiting for the writes in progress to complete. The
+     * buffer is created when text is written while a write is in progress.
+     */
+    private ByteBuffer pending;
+    /**
+     * Number of write requests that were not completed yet.
+     */
+    private int inProgress;
+
+    WriteCoalescer(IoSession ioSession) {
+        this.ioSession = ioSession;
+    }
+
+    /**
+     * Writes the specified text to the session. The text is coalesced with other text
+     * written while a previous write is in progress.
+     *
+     * @param text the text to write.
+     * @param encoder the encoder to use for encoding the text.
+     * @param terminate true if a NULL char should be written after the text (i.e. flash clients).
+     * @throws CharacterCodingException if the text could not be encoded.
+     */
+    synchronized void write(String text, CharsetEncoder encoder, boolean terminate)
+            throws CharacterCodingException {
+        int maxSize = MAX_SIZE.get();
+        if (inProgress == 0 || maxSize <= 0) {
+            ByteBuffer buffer = allocate(text);
+            encode(buffer, text, encoder, terminate);
+            buffer.flip();
+            issue(buffer);
+            return;
+        }
+        if (pending != null && pending.position() >= maxSize) {
+            // Write the pending text so that write requests do not exceed the max size
+            flush();
+        }
+        if (pending == null) {
+            pending = allocate(text);
+        }
+        encode(pending, text, encoder, terminate);
+        coalescedWrites.incrementAndGet();
+    }
+
+    /**
+     * Writes the specified stanza to the session. The stanza is serialized as UTF-8 directly
+     * into the buffer of the write request or into the pending buffer so no intermediate
+     * text is created.
+     *
+     * @param stanza the stanza to write.
+     * @param terminate true if a NULL char should be written after the stanza (i.e. flash clients).
+     */
+    synchronized void write(Element stanza, boolean terminate) {
+        int maxSize = MAX_SIZE.get();
+        if (inProgress == 0 || maxSize <= 0) {
+            ByteBuffer buffer = allocate(STANZA_SIZE);
+            serialize(buffer, stanza, terminate);
+            buffer.flip();
+            issue(buffer);
+            return;
+        }
+        if (pending != null && pending.position() >= maxSize) {
+            // Write the pending text so that write requests do not exceed the max size
+            flush();
+        }
+        if (pending == null) {
+            pending = allocate(STANZA_SIZE);
+        }
+        serialize(pending, stanza, terminate);
+        coalescedWrites.incrementAndGet();
+    }
+
+    /**
+     * Writes the specified text to the session right away. Pending text is written first
+     * so the order of the written text is kept.
+     *
+     * @param text the text to write.
+     * @param encoder the encoder to use for encoding the text.
+     * @param terminate true if a NULL char should be written after the text (i.e. flash clients).
+     * @return the future of the write request of the specified text.
+     * @throws CharacterCodingException if the text could not be encoded.
+     */
+    synchronized WriteFuture writeNow(String text, CharsetEncoder encoder, boolean terminate)
+            throws CharacterCodingException {
+        flush();
+        ByteBuffer buffer = allocate(text);
+        encode(buffer, text, encoder, terminate);
+        buffer.flip();
+        return issue(buffer);
+    }
+
+    /**
+     * Writes the pending text to the session right away.
+     */
+    synchronized void flush() {
+        if (pending != null) {
+            ByteBuffer buffer = pending;
+            pending = null;
+            buffer.flip();
+            issue(buffer);
+        }
+    }
+
+    public void operationComplete(IoFuture future) {
+        synchronized (this) {
+            inProgress--;
+            if (inProgress == 0) {
+                flush();
+            }
+        }
+    }
+
+    private WriteFuture issue(ByteBuffer buffer) {
+        inProgress++;
+        writeRequests.incrementAndGet();
+        WriteFuture future = ioSession.write(buffer);
+        future.addListener(this);
+        return future;
+    }
+
+    private static ByteBuffer allocate(String text) {
+        return allocate(text.length() + 1);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        buffer.setAutoExpand(true);
+        return buffer;
+    }
+
+    private static void serialize(ByteBuffer buffer, Element stanza, boolean terminate) {
+        StanzaSerializer.write(stanza, buffer);
+        if (terminate) {
+            buffer.put((byte) '\0');
+        }
+    }
+
+    private static void encode(ByteBuffer buffer, String text, CharsetEncoder encoder,
+            boolean terminate) throws CharacterCodingException {
+        encoder.reset();
+        buffer.putString(text, encoder);
+        if (terminate) {
+            buffer.put((byte) '\0');
+        }
+    }
+
+    /**
+     * Returns the number of write requests created for all client connections.
+     *
+     * @return the number of write requests created for all client connections.
+     */
+    static long getWriteRequests() {
+        return writeRequests.get();
+    }
+
+    /**
+     * Returns the number of writes that were coalesced with other writes for all
+     * client connections.
+     *
+     * @return the number of writes that were coalesced with other writes.
+     */
+    static long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+}
@@ -25,14 +25,11 @@ import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.mina.common.ByteBuffer;
-import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.PropertyEventDispatcher;
-import org.jivesoftware.util.PropertyEventListener;
+import org.jivesoftware.util.IntProperty;
 
 /**
  * This is a Light-Weight XML Parser.
@@ -45,16 +42,18 @@ import org.jivesoftware.util.PropertyEventListener;
  * @author Daniele Piras
  * @author Gaston Dombiak
  */
-class XMLLightweightParser {
+class XMLLightweightParser implements StanzaFramer {
 
 	private static final Pattern XML_HAS_CHARREF = Pattern.compile("&#(0*([0-9]+)|[xX]0*([0-9a-fA-F]+));");
 
-    private static final String MAX_PROPERTY_NAME = "xmpp.parser.buffer.size";
-    private static int maxBufferSize;
+    // Max size of the buffer. If limit is reached then close connection
+    private static final IntProperty MAX_BUFFER_SIZE = new IntProperty("xmpp.parser.buffer.size", 1048576);
     // Chars that rappresent CDATA section start
     protected static char[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
     // Chars that rappresent CDATA section end
     protected static char[] CDATA_END = {']', ']', '>'};
+    // Shared empty buffer used by compacted parsers. Compacted parsers never write to it
+    private static final StringBuilder EMPTY_BUFFER = new StringBuilder(0);
 
     // Buffer with all data retrieved
     protected StringBuilder buffer = new StringBuilder();
@@ -97,43 +96,71 @@ class XMLLightweightParser {
     protected boolean insideRootTag = false;
     // Object conteining the head tag
     protected StringBuilder head = new StringBuilder(5);
-    // List with all finished messages found.
-    protected List<String> msgs = new ArrayList<String>();
+    // List with all finished messages found. Created when the first message is found.
+    protected List<String> msgs;
     private int depth = 0;
 
     protected boolean insideChildrenTag = false;
 
-    CharsetDecoder encoder;
+    // Verifies character references while the stanza is being read
+    private final CharacterReferenceVerifier charRefVerifier = new CharacterReferenceVerifier();
 
-    static {
-        // Set default max buffer size to 1MB. If limit is reached then close connection
-        maxBufferSize = JiveGlobals.getIntProperty(MAX_PROPERTY_NAME, 1048576);
-        // Listen for changes to this property
-        PropertyEventDispatcher.addListener(new PropertyListener());
-    }
+    // Decoders are not thread safe and are reset before each read so each thread
+    // keeps its own decoder instead of having a decoder per parser
+    private static final ThreadLocal<CharsetDecoder> decoders = new ThreadLocal<CharsetDecoder>();
+
+    private final Charset charset;
+    // True while the buffers of the parser are released
+    private boolean compacted = false;
 
     public XMLLightweightParser(String charset) {
-        encoder = Charset.forName(charset).newDecoder()
-			.onMalformedInput(CodingErrorAction.REPLACE)
-			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.charset = Charset.forName(charset);
+    }
+
+    /**
+     * Returns the decoder of the current thread for the charset of this parser.
+     *
+     * @return the decoder of the current thread for the charset of this parser.
+     */
+    private CharsetDecoder getDecoder() {
+        CharsetDecoder decoder = decoders.get();
+        if (decoder == null || !decoder.charset().equals(charset)) {
+            decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            decoders.set(decoder);
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns the max number of pending bytes or chars that a parser may hold before
+     * aborting the parsing of a never ending stanza.
+     *
+     * @return the max number of pending bytes or chars that a parser may hold.
+     */
+    static int getMaxBufferSize() {
+        return MAX_BUFFER_SIZE.get();
     }
 
     /*
     * true if the parser has found some complete xml message.
     */
     public boolean areThereMsgs() {
-        return (msgs.size() > 0);
+        return (msgs != null && msgs.size() > 0);
     }
 
     /*
     * @return an array with all messages found
     */
     public String[] getMsgs() {
-        String[] res = new String[msgs.size()];
+        String[] res = new String[msgs == null ? 0 : msgs.size()];
         for (int i = 0; i < res.length; i++) {
             res[i] = msgs.get(i);
         }
-        msgs.clear();
+        if (msgs != null) {
+            msgs.clear();
+        }
         invalidateBuffer();
         return res;
     }
@@ -152,15 +179,32 @@ class XMLLightweightParser {
     }
 
 
+    public boolean compact() {
+        if (compacted || status != XMLLightweightParser.INIT || areThereMsgs() ||
+                startLastMsg < buffer.length()) {
+            return false;
+        }
+        buffer = EMPTY_BUFFER;
+        head = EMPTY_BUFFER;
+        msgs = null;
+        startLastMsg = 0;
+        compacted = true;
+        return true;
+    }
+
+    public boolean isCompacted() {
+        return compacted;
+    }
+
     /*
     * Method that add a message to the list and reinit parser.
     */
     protected void foundMsg(String msg) throws XMLNotWellFormedException {
         // Add message to the complete message list
         if (msg != null) {
-        	if (hasIllegalCharacterReferences(msg)) {
-        		throw new XMLNotWellFormedException("Illegal character reference found in: " + msg);
-        	}
+            if (msgs == null) {
+                msgs = new ArrayList<String>();
+            }
             msgs.add(msg);
         }
         // Move the position into the buffer
@@ -171,21 +215,28 @@ class XMLLightweightParser {
         insideRootTag = false;
         insideChildrenTag = false;
         depth = 0;
+        charRefVerifier.reset();
     }
 
     /*
     * Main reading method
     */
     public void read(ByteBuffer byteBuffer) throws Exception {
+        if (compacted) {
+            buffer = new StringBuilder();
+            head = new StringBuilder(5);
+            compacted = false;
+        }
         invalidateBuffer();
         // Check that the buffer is not bigger than 1 Megabyte. For security reasons
         // we will abort parsing when 1 Mega of queued chars was found.
-        if (buffer.length() > maxBufferSize) {
+        if (buffer.length() > MAX_BUFFER_SIZE.get()) {
             throw new Exception("Stopped parsing never ending stanza");
         }
         CharBuffer charBuffer = CharBuffer.allocate(byteBuffer.capacity());
-        encoder.reset();
-        encoder.decode(byteBuffer.buf(), charBuffer, false);
+        CharsetDecoder decoder = getDecoder();
+        decoder.reset();
+        decoder.decode(byteBuffer.buf(), charBuffer, false);
         char[] buf = new char[charBuffer.position()];
         charBuffer.flip();charBuffer.get(buf);
         int readChar = buf.length;
@@ -224,6 +275,11 @@ class XMLLightweightParser {
                 // Trigger error. Found low surrogate char without a preceding high surrogate
                 throw new Exception("Found low surrogate char without a preceding high surrogate");
             }
+            if (status != XMLLightweightParser.INIT && !charRefVerifier.verify(ch)) {
+                int end = buffer.length() - readChar + (i + 1);
+                throw new XMLNotWellFormedException("Illegal character reference found in: " +
+                        buffer.substring(startLastMsg, end));
+            }
             if (status == XMLLightweightParser.TAIL) {
                 // Looking for the close tag
                 if (depth < 1 && ch == head.charAt(tailCount)) {
@@ -429,29 +485,4 @@ class XMLLightweightParser {
 				|| (value >= 0xE000 && value <= 0xFFFD) || (value >= 0x10000 && value <= 0x10FFFF);
 	}
 	
-    private static class PropertyListener implements PropertyEventListener {
-        public void propertySet(String property, Map<String, Object> params) {
-            if (MAX_PROPERTY_NAME.equals(property)) {
-                String value = (String) params.get("value");
-                if (value != null) {
-                    maxBufferSize = Integer.parseInt(value);
-                }
-            }
-        }
-
-        public void propertyDeleted(String property, Map<String, Object> params) {
-            if (MAX_PROPERTY_NAME.equals(property)) {
-                // Use default value when none was specified
-                maxBufferSize = 1048576;
-            }
-        }
-
-        public void xmlPropertySet(String property, Map<String, Object> params) {
-            // Do nothing
-        }
-
-        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
-            // Do nothing
-        }
-    }
 }
@@ -36,12 +36,24 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
     @Override
 	protected boolean doDecode(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
             throws Exception {
-        // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        // Get the stanza framer from the IoSession
+        StanzaFramer parser = (StanzaFramer) session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (parser.isCompacted()) {
+            // The framer will allocate its buffers again
+            ConnectionHandler.framerInflated();
+        }
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
-        if (parser.areThereMsgs()) {
+        if (parser instanceof ValidatingStanzaFramer) {
+            // Pass the headers of the validated stanzas so they are not parsed again
+            if (parser.areThereMsgs()) {
+                for (StanzaHeader stanza : ((ValidatingStanzaFramer) parser).getStanzas()) {
+                    out.write(stanza);
+                }
+            }
+        }
+        else if (parser.areThereMsgs()) {
             for (String stanza : parser.getMsgs()) {
                 out.write(stanza);
             }
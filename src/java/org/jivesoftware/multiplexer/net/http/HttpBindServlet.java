@@ -21,7 +21,7 @@ package org.jivesoftware.multiplexer.net.http;
 
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlPullParserException;
-import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.BooleanProperty;
 import org.jivesoftware.util.Log;
 import org.jivesoftware.multiplexer.net.MXParser;
 import org.dom4j.io.XMPPPacketReader;
@@ -59,6 +59,11 @@ public class HttpBindServlet extends HttpServlet {
 
     private static XmlPullParserFactory factory;
 
+    private static final BooleanProperty DEBUG_ENABLED =
+            new BooleanProperty("log.debug.enabled", false);
+    private static final BooleanProperty NO_CACHE_ENABLED =
+            new BooleanProperty("xmpp.httpbind.client.no-cache.enabled", true);
+
     static {
         try {
             factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
@@ -170,7 +175,8 @@ public class HttpBindServlet extends HttpServlet {
         }
         synchronized (session) {
             try {
-                respond(response, session.getResponse((Long) request.getAttribute("request")),
+                respond(response,
+                        session.getResponse((HttpConnection) request.getAttribute("request-connection")),
                         request.getMethod());
             }
             catch (HttpBindException e) {
@@ -184,7 +190,7 @@ public class HttpBindServlet extends HttpServlet {
                            BoshBindingError bindingError, HttpSession session)
             throws IOException
     {
-    	if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+    	if (DEBUG_ENABLED.get()) {
     	    System.out.println(new Date()+": HTTP ERR("+session.getStreamID() + "): " + bindingError.getErrorType().getType() + ", " + bindingError.getCondition() + ".");
     	}
         try {
@@ -216,7 +222,7 @@ public class HttpBindServlet extends HttpServlet {
                                       HttpServletResponse response, Element rootNode)
             throws IOException
     {
-    	if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+    	if (DEBUG_ENABLED.get()) {
             System.out.println(new Date()+": HTTP RECV(" + sid + "): " + rootNode.asXML());
         }
         long rid = getLongAttribue(rootNode.attributeValue("rid"), -1);
@@ -272,9 +278,9 @@ public class HttpBindServlet extends HttpServlet {
             	session.resetInactivityTimeout();
                 connection.setContinuation(ContinuationSupport.getContinuation(request));
                 request.setAttribute("request-session", connection.getSession());
-                request.setAttribute("request", connection.getRequestId());
+                request.setAttribute("request-connection", connection);
                 try {
-                    respond(response, session.getResponse(connection.getRequestId()),
+                    respond(response, session.getResponse(connection),
                             request.getMethod());
                 }
                 catch (HttpBindException e) {
@@ -291,7 +297,7 @@ public class HttpBindServlet extends HttpServlet {
 
         Element features = response.addElement("stream:features");
         for (Element feature : session.getAvailableStreamFeaturesElements()) {
-        	if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+        	if (DEBUG_ENABLED.get()) {
                 System.out.println(new Date()+": Adding stream feature " + feature.asXML());
             }
             features.add(feature);
@@ -314,7 +320,7 @@ public class HttpBindServlet extends HttpServlet {
             HttpConnection connection = new HttpConnection(rid, request.isSecure());
             InetAddress address = InetAddress.getByName(request.getRemoteAddr());
             connection.setSession(sessionManager.createSession(address, rootNode, connection));
-            if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+            if (DEBUG_ENABLED.get()) {
                 System.out.println(new Date()+": HTTP RECV(" + connection.getSession().getStreamID() + "): " + rootNode.asXML());
             }
             respond(response, connection, request.getMethod());
@@ -347,7 +353,7 @@ public class HttpBindServlet extends HttpServlet {
         response.setCharacterEncoding("utf-8");
 
         if ("GET".equals(method)) {
-        	if (JiveGlobals.getBooleanProperty("xmpp.httpbind.client.no-cache.enabled", true)) {
+        	if (NO_CACHE_ENABLED.get()) {
                 // Prevent caching of responses
                 response.addHeader("Cache-Control", "no-store");
                 response.addHeader("Cache-Control", "no-cache");
@@ -356,7 +362,7 @@ public class HttpBindServlet extends HttpServlet {
             content = "_BOSH_(\"" + StringEscapeUtils.escapeJavaScript(content) + "\")";
         }
 
-        if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+        if (DEBUG_ENABLED.get()) {
             System.out.println(new Date()+": HTTP SENT: " + content);
         }
         byte[] byteContent = content.getBytes("utf-8");
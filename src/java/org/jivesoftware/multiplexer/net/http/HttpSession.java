@@ -28,9 +28,13 @@ import org.jivesoftware.multiplexer.ClientSession;
 import org.jivesoftware.multiplexer.ConnectionManager;
 import org.jivesoftware.multiplexer.Session;
 import org.jivesoftware.multiplexer.net.MXParser;
+import org.jivesoftware.multiplexer.net.StanzaSerializer;
+import org.jivesoftware.util.BooleanProperty;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
+import org.jivesoftware.util.TaskEngine;
+import org.jivesoftware.util.TimerWheel;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
@@ -47,6 +51,8 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * @author Alexander Wenckus
  */
 public class HttpSession extends ClientSession {
+    private static final BooleanProperty IGNORE_OVERACTIVITY =
+            new BooleanProperty("xmpp.httpbind.client.requests.ignoreOveractivity", false);
     private static XmlPullParserFactory factory = null;
     private static ThreadLocal<XMPPPacketReader> localParser = null;
     static {
@@ -72,9 +78,11 @@ public class HttpSession extends ClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = new LinkedList<HttpConnection>();
+    // Open and answered requests indexed by rid. Requests are removed once their response was read
+    private final RequestRing<HttpConnection> connectionQueue = new RequestRing<HttpConnection>(2);
     private final List<Deliverable> pendingElements = new ArrayList<Deliverable>();
-    private final List<Delivered> sentElements = new ArrayList<Delivered>();
+    // Last responses indexed by rid so that they can be sent again if the client repeats a request
+    private final RequestRing<Delivered> sentElements = new RequestRing<Delivered>(2);
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
@@ -89,15 +97,15 @@ public class HttpSession extends ClientSession {
     private int maxPause;
     private int majorVersion = -1;
     private int minorVersion = -1;
-
-    // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
-
-    private static final Comparator<HttpConnection> connectionComparator
-            = new Comparator<HttpConnection>() {
-        public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
+    // Timeout that closes the session once it has been inactive for the inactivity timeout
+    private TimerWheel.Timeout inactivityTimer;
+    private long inactivityDeadline;
+    private final Runnable inactivityTask = new Runnable() {
+        public void run() {
+            checkInactivity();
         }
     };
+
     private ConnectionManager connectionManager;
 
     public HttpSession(String serverName, String streamID, long rid) {
@@ -136,7 +144,7 @@ public class HttpSession extends ClientSession {
 	public String getAvailableStreamFeatures() {
         StringBuilder sb = new StringBuilder(200);
         for (Element element : getAvailableStreamFeaturesElements()) {
-            sb.append(element.asXML());
+            StanzaSerializer.append(element, sb);
         }
         return sb.toString();
     }
@@ -195,6 +203,7 @@ public class HttpSession extends ClientSession {
      */
     public void setHold(int hold) {
         this.hold = hold;
+        updateWindow();
     }
 
     /**
@@ -257,6 +266,17 @@ public class HttpSession extends ClientSession {
      */
     public void setMaxRequests(int maxRequests) {
         this.maxRequests = maxRequests;
+        updateWindow();
+    }
+
+    /**
+     * Makes room in the request rings for the rids that may be in use at the same time. Open
+     * requests have rids up to <tt>maxRequests</tt> greater than the last answered request
+     * and the last <tt>hold + 1</tt> responses are kept so that they can be sent again.
+     */
+    private synchronized void updateWindow() {
+        connectionQueue.ensureWindow(maxRequests + hold);
+        sentElements.ensureWindow(hold + 1);
     }
 
     /**
@@ -357,6 +377,7 @@ public class HttpSession extends ClientSession {
      */
     public void setInactivityTimeout(int inactivityTimeout) {
         this.inactivityTimeout = inactivityTimeout;
+        updateInactivityTimer();
     }
 
     /**
@@ -366,7 +387,7 @@ public class HttpSession extends ClientSession {
      * @see #pause(int)
      */
     public void resetInactivityTimeout() {
-        this.inactivityTimeout = this.defaultInactivityTimeout;
+        setInactivityTimeout(this.defaultInactivityTimeout);
     }
 
     /**
@@ -390,9 +411,9 @@ public class HttpSession extends ClientSession {
      * @param duration the time, in seconds, after which this session will be considered inactive
      *        and terminated.
      */
-    public void pause(int duration) {
+    public synchronized void pause(int duration) {
     	// Respond immediately to all pending requests
-        for (HttpConnection toClose : connectionQueue) {
+        for (HttpConnection toClose : connectionQueue.values()) {
             if (!toClose.isClosed()) {
                 toClose.close();
                 lastRequestID = toClose.getRequestId();
@@ -425,6 +446,57 @@ public class HttpSession extends ClientSession {
         }
     }
 
+    /**
+     * Makes sure that the inactivity timer of the session expires no later than the inactivity
+     * timeout after the last activity. A pending timer that expires earlier is kept since
+     * it will be scheduled again if the session is still active when it expires.
+     */
+    private synchronized void updateInactivityTimer() {
+        if (isClosed) {
+            return;
+        }
+        long deadline = lastActivity + inactivityTimeout * JiveConstants.SECOND;
+        if (inactivityTimer != null) {
+            if (inactivityDeadline <= deadline) {
+                return;
+            }
+            inactivityTimer.cancel();
+        }
+        scheduleInactivityTimer(deadline);
+    }
+
+    private void scheduleInactivityTimer(long deadline) {
+        inactivityDeadline = deadline;
+        inactivityTimer = TaskEngine.getInstance().newTimeout(inactivityTask,
+                deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Closes the session if it has been inactive for the inactivity timeout. Otherwise the
+     * inactivity timer is scheduled again. Sessions with open connections are checked again
+     * after the wait or the inactivity timeout, whatever is longer, in case the open
+     * connections are never closed.
+     */
+    private void checkInactivity() {
+        synchronized (this) {
+            inactivityTimer = null;
+            if (isClosed) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (getOpenConnectionCount() > 0) {
+                scheduleInactivityTimer(now + Math.max(wait, inactivityTimeout) * JiveConstants.SECOND);
+                return;
+            }
+            long deadline = lastActivity + inactivityTimeout * JiveConstants.SECOND;
+            if (deadline > now) {
+                scheduleInactivityTimer(deadline);
+                return;
+            }
+        }
+        close();
+    }
+
     /**
      * Returns the highest 'rid' attribute the server has received where it has also received
      * all requests with lower 'rid' values. When responding to a request that it has been
@@ -435,13 +507,10 @@ public class HttpSession extends ClientSession {
      * @return the highest 'rid' attribute the server has received where it has also received
      * all requests with lower 'rid' values.
      */
-    public long getLastAcknowledged() {
+    public synchronized long getLastAcknowledged() {
     	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == ack + 1) {
-            	ack++;
-            }
+        while (connectionQueue.contains(ack + 1)) {
+            ack++;
         }
         return ack;
     }
@@ -522,22 +591,40 @@ public class HttpSession extends ClientSession {
 	}
 
     public String getResponse(long requestID) throws HttpBindException {
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == requestID) {
-                String response = getResponse(connection);
+        HttpConnection connection;
+        synchronized (this) {
+            connection = connectionQueue.get(requestID);
+        }
+        if (connection == null) {
+            throw new InternalError("Could not locate connection: " + requestID);
+        }
+        return getResponse(connection);
+    }
+
+    /**
+     * Returns the response to the specified connection of this session waiting for the
+     * response if it is not available yet. The connection is removed from the session
+     * once its response was returned.
+     *
+     * @param connection the connection whose response will be returned.
+     * @return the response to the connection.
+     * @throws HttpBindException if the connection timed out and it was not the next expected
+     *         request.
+     */
+    public String getResponse(HttpConnection connection) throws HttpBindException {
+        String response = readResponse(connection);
 
-                // connection needs to be removed after response is returned to maintain idempotence
-                // otherwise if this method is called again, after 'waiting', the InternalError
-                // will be thrown because the connection is no longer in the queue.
-                connectionQueue.remove(connection);
+        // connection needs to be removed after response is returned to maintain idempotence
+        // since this method is called again after 'waiting' for the response.
+        synchronized (this) {
+            if (connectionQueue.remove(connection.getRequestId(), connection)) {
                 fireConnectionClosed(connection);
-                return response;
             }
         }
-        throw new InternalError("Could not locate connection: " + requestID);
+        return response;
     }
 
-    private String getResponse(HttpConnection connection) throws HttpBindException {
+    private String readResponse(HttpConnection connection) throws HttpBindException {
         String response = null;
         try {
             response = connection.getResponse();
@@ -608,12 +695,7 @@ public class HttpSession extends ClientSession {
     }
 
     private Delivered retrieveDeliverable(long rid) {
-        for (Delivered delivered : sentElements) {
-            if (delivered.getRequestID() == rid) {
-                return delivered;
-            }
-        }
-        return null;
+        return sentElements.get(rid);
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -636,18 +718,16 @@ public class HttpSession extends ClientSession {
             deliver(connection, pendingElements);
             lastRequestID = connection.getRequestId();
             pendingElements.clear();
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            queueConnection(connection);
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
 
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            queueConnection(connection);
 
             int connectionsToClose;
-            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
+            if(connectionQueue.getHighestRid() != connection.getRequestId()) {
             	// Current connection does not have the greatest rid. That means
             	// requests were received out of order, respond to all.
             	connectionsToClose = connectionQueue.size();
@@ -657,25 +737,40 @@ public class HttpSession extends ClientSession {
             	// how many that we need to close.
             	connectionsToClose = getOpenConnectionCount() - hold;
             }
+            // Close the open connections that follow the last answered request in rid order
             int closed = 0;
-            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-                HttpConnection toClose = connectionQueue.get(i);
-                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-                    if(toClose == connection) {
-                    	// Current connection has no continuation yet, just deliver.
-                    	deliver(new Deliverable(""));
-                    }
-                    else {
-                        toClose.close();
-                    }
-                    lastRequestID = toClose.getRequestId();
-                    closed++;
+            for (HttpConnection toClose = connectionQueue.get(lastRequestID + 1);
+                 toClose != null && !toClose.isClosed() && closed < connectionsToClose;
+                 toClose = connectionQueue.get(lastRequestID + 1)) {
+                if(toClose == connection) {
+                	// Current connection has no continuation yet, just deliver.
+                	deliver(new Deliverable(""));
+                }
+                else {
+                    toClose.close();
                 }
+                lastRequestID = toClose.getRequestId();
+                closed++;
             }
         }
         fireConnectionOpened(connection);
     }
 
+    /**
+     * Adds a connection to the queue of connections. A connection of the same request
+     * that is still in the queue (i.e. the client repeated a request that was not answered
+     * yet) is closed.
+     *
+     * @param connection the connection to add to the queue.
+     */
+    private void queueConnection(HttpConnection connection) {
+        HttpConnection replaced = connectionQueue.put(connection.getRequestId(), connection);
+        if (replaced != null && replaced != connection) {
+            replaced.close();
+            fireConnectionClosed(replaced);
+        }
+    }
+
     private int getOpenConnectionCount() {
         int count = 0;
         for (HttpConnection connection : connectionQueue) {
@@ -690,13 +785,15 @@ public class HttpSession extends ClientSession {
             throws HttpConnectionClosedException {
         connection.deliverBody(createDeliverable(deliverable));
 
+        long rid = connection.getRequestId();
         Delivered delivered = new Delivered(deliverable);
-        delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > hold) {
-            sentElements.remove(0);
+        delivered.setRequestID(rid);
+        sentElements.put(rid, delivered);
+        // Keep the responses of the last hold + 1 requests
+        sentElements.remove(rid - hold - 1);
+        if (sentElements.size() > hold + 1) {
+            sentElements.removeBefore(rid - hold);
         }
-
-        sentElements.add(delivered);
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -749,7 +846,7 @@ public class HttpSession extends ClientSession {
 
         if(overactivity) {
         	Log.debug(errorMessage);
-            if (!JiveGlobals.getBooleanProperty("xmpp.httpbind.client.requests.ignoreOveractivity", false)) {
+            if (!IGNORE_OVERACTIVITY.get()) {
                 throw new HttpBindException(errorMessage, BoshBindingError.policyViolation);
             }
         }
@@ -779,14 +876,13 @@ public class HttpSession extends ClientSession {
     private synchronized void deliver(Deliverable stanza) {
         Collection<Deliverable> deliverable = Arrays.asList(stanza);
         boolean delivered = false;
-        for (HttpConnection connection : connectionQueue) {
+        for (HttpConnection connection = connectionQueue.get(lastRequestID + 1);
+             connection != null; connection = connectionQueue.get(lastRequestID + 1)) {
             try {
-                if (connection.getRequestId() == lastRequestID + 1) {
-                    lastRequestID = connection.getRequestId();
-                    deliver(connection, deliverable);
-                    delivered = true;
-                    break;
-                }
+                lastRequestID = connection.getRequestId();
+                deliver(connection, deliverable);
+                delivered = true;
+                break;
             }
             catch (HttpConnectionClosedException e) {
                 /* Connection was closed, try the next one */
@@ -800,6 +896,7 @@ public class HttpSession extends ClientSession {
 
     private void fireConnectionClosed(HttpConnection connection) {
         lastActivity = System.currentTimeMillis();
+        updateInactivityTimer();
         for (SessionListener listener : listeners) {
             listener.connectionClosed(this, connection);
         }
@@ -828,6 +925,10 @@ public class HttpSession extends ClientSession {
             return;
         }
         isClosed = true;
+        if (inactivityTimer != null) {
+            inactivityTimer.cancel();
+            inactivityTimer = null;
+        }
 
         if (pendingElements.size() > 0) {
             failDelivery();
@@ -847,7 +948,7 @@ public class HttpSession extends ClientSession {
             }
         }
 
-        for (HttpConnection toClose : connectionQueue) {
+        for (HttpConnection toClose : connectionQueue.values()) {
             if (!toClose.isDelivered()) {
                 Delivered delivered = retrieveDeliverable(toClose.getRequestId());
                 if (delivered != null) {
@@ -917,28 +1018,16 @@ public class HttpSession extends ClientSession {
             this.text = null;
             this.packets = new ArrayList<String>();
             for (Element packet : elements) {
+                final StringBuilder sb = new StringBuilder(256);
+                String name = packet.getName();
                 // Rewrite packet namespace according XEP-0206
-                if ("presence".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<presence xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(9));
-                    this.packets.add(sb.toString());
-                }
-                else if ("iq".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<iq xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(3));
-                    this.packets.add(sb.toString());
-                }
-                else if ("message".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<message xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(8));
-                    this.packets.add(sb.toString());
+                if ("presence".equals(name) || "iq".equals(name) || "message".equals(name)) {
+                    StanzaSerializer.append(packet, "jabber:client", sb);
                 }
                 else {
-                    this.packets.add(packet.asXML());
+                    StanzaSerializer.append(packet, sb);
                 }
+                this.packets.add(sb.toString());
             }
         }
 
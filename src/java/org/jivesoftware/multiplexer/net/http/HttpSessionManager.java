@@ -30,25 +30,20 @@ import org.jivesoftware.multiplexer.StreamIDFactory;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
-import org.jivesoftware.util.TaskEngine;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Manages sessions for all users connecting to Openfire using the HTTP binding protocal,
- * <a href="http://www.xmpp.org/extensions/xep-0124.html">XEP-0124</a>.
+ * <a href="http://www.xmpp.org/extensions/xep-0124.html">XEP-0124</a>. HTTP sessions are
+ * kept with the other client sessions, see {@link Session#getSession(String)}.
  */
 public class HttpSessionManager {
-    public static StreamIDFactory idFactory = new StreamIDFactory();
     protected static String serverName = ConnectionManager.getInstance().getServerName();
 
     private ServerSurrogate serverSurrogate;
-    private Map<String, HttpSession> sessionMap = new ConcurrentHashMap<String, HttpSession>();
-    private TimerTask inactivityTask;
     private SessionListener sessionListener = new SessionListener() {
         public void connectionOpened(HttpSession session, HttpConnection connection) {
         }
@@ -57,9 +52,8 @@ public class HttpSessionManager {
         }
 
         public void sessionClosed(HttpSession session) {
-            Session.removeSession(session.getStreamID());
-            sessionMap.remove(session.getStreamID());
             serverSurrogate.clientSessionClosed(session.getStreamID());
+            Session.removeSession(session.getStreamID());
         }
     };
 
@@ -71,23 +65,19 @@ public class HttpSessionManager {
     }
 
     /**
-     * Starts the services used by the HttpSessionManager.
+     * Starts the services used by the HttpSessionManager. Inactive sessions are closed by
+     * their own inactivity timers so there is no service to start.
      */
     public void start() {
-        inactivityTask = new HttpSessionReaper();
-        TaskEngine.getInstance().schedule(inactivityTask, 30 * JiveConstants.SECOND,
-                30 * JiveConstants.SECOND);
     }
 
     /**
      * Stops any services and cleans up any resources used by the HttpSessionManager.
      */
     public void stop() {
-        inactivityTask.cancel();
-        for (HttpSession session : sessionMap.values()) {
+        for (HttpSession session : getSessions()) {
             session.close();
         }
-        sessionMap.clear();
     }
 
     /**
@@ -97,7 +87,23 @@ public class HttpSessionManager {
      * @return the session related to the provided stream id.
      */
     public HttpSession getSession(String streamID) {
-        return sessionMap.get(streamID);
+        Session session = Session.getSession(streamID);
+        return session instanceof HttpSession ? (HttpSession) session : null;
+    }
+
+    /**
+     * Returns the existing HTTP binding sessions.
+     *
+     * @return the existing HTTP binding sessions.
+     */
+    private List<HttpSession> getSessions() {
+        List<HttpSession> httpSessions = new ArrayList<HttpSession>();
+        for (Session session : Session.getSessions()) {
+            if (session instanceof HttpSession) {
+                httpSessions.add((HttpSession) session);
+            }
+        }
+        return httpSessions;
     }
 
     /**
@@ -288,11 +294,10 @@ public class HttpSessionManager {
 
     private HttpSession createSession(long rid, InetAddress address) {
         // Create a ClientSession for this user.
-        String streamID = idFactory.createStreamID();
+        String streamID = StreamIDFactory.getInstance().createStreamID();
         // Send to the server that a new client session has been created
         HttpSession session = new HttpSession(serverName, streamID, rid);
         // Register that the new session is associated with the specified stream ID
-        sessionMap.put(streamID, session);
         Session.addSession(streamID, session);
         session.addSessionCloseListener(sessionListener);
         // Send to the server that a new client session has been created
@@ -351,18 +356,4 @@ public class HttpSessionManager {
 
         return response.asXML();
     }
-
-    private class HttpSessionReaper extends TimerTask {
-
-        @Override
-		public void run() {
-            long currentTime = System.currentTimeMillis();
-            for (HttpSession session : sessionMap.values()) {
-                long lastActive = currentTime - session.getLastActivity();
-                if (lastActive > session.getInactivityTimeout() * JiveConstants.SECOND) {
-                    session.close();
-                }
-            }
-        }
-    }
 }
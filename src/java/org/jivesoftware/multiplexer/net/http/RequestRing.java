@@ -0,0 +1,297 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Ring of items indexed by the request ID (rid) of BOSH requests. The rids of the
+ * requests of a session that are in use at the same time are consecutive numbers within
+ * a small window (the number of simultaneous requests plus the number of held requests)
+ * so items are stored in the slot <tt>rid % capacity</tt> and adding, finding and
+ * removing items by rid are constant time operations.<p>
+ *
+ * The ring grows if an item is added to a slot that holds an item of another rid. Once
+ * the ring reached {@link #MAX_CAPACITY} the item in the slot is replaced instead.<p>
+ *
+ * This class is not thread safe.
+ */
+class RequestRing<T> implements Iterable<T> {
+
+    /**
+     * Max number of slots of a ring.
+     */
+    static final int MAX_CAPACITY = 1024;
+
+    private long[] rids;
+    private Object[] items;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * Creates a new ring for the specified window of rids.
+     *
+     * @param window max number of consecutive rids expected to be in the ring.
+     */
+    RequestRing(int window) {
+        int capacity = capacityFor(window);
+        rids = new long[capacity];
+        items = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int window) {
+        int capacity = 1;
+        while (capacity < window && capacity < MAX_CAPACITY) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * Makes sure that the ring can hold the specified window of consecutive rids.
+     *
+     * @param window max number of consecutive rids expected to be in the ring.
+     */
+    void ensureWindow(int window) {
+        int capacity = capacityFor(window);
+        if (capacity > items.length) {
+            resize(capacity);
+        }
+    }
+
+    /**
+     * Returns the number of items in the ring.
+     *
+     * @return the number of items in the ring.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the item of the specified rid.
+     *
+     * @param rid the rid of the item.
+     * @return the item of the rid or <tt>null</tt> if the ring has no item for the rid.
+     */
+    @SuppressWarnings("unchecked")
+    T get(long rid) {
+        int index = (int) (rid & mask);
+        return items[index] != null && rids[index] == rid ? (T) items[index] : null;
+    }
+
+    /**
+     * Returns true if the ring has an item for the specified rid.
+     *
+     * @param rid the rid of the item.
+     * @return true if the ring has an item for the rid.
+     */
+    boolean contains(long rid) {
+        return get(rid) != null;
+    }
+
+    /**
+     * Adds an item for the specified rid.
+     *
+     * @param rid the rid of the item.
+     * @param item the item to add.
+     * @return the item that was replaced. That is the previous item of the same rid or, if
+     *         the ring cannot grow anymore, the item of another rid that used the slot.
+     */
+    @SuppressWarnings("unchecked")
+    T put(long rid, T item) {
+        if (item == null) {
+            throw new NullPointerException("Item cannot be null");
+        }
+        int index = (int) (rid & mask);
+        while (items[index] != null && rids[index] != rid && items.length < MAX_CAPACITY) {
+            resize(items.length << 1);
+            index = (int) (rid & mask);
+        }
+        T replaced = (T) items[index];
+        if (replaced == null) {
+            size++;
+        }
+        rids[index] = rid;
+        items[index] = item;
+        return replaced;
+    }
+
+    /**
+     * Removes the item of the specified rid.
+     *
+     * @param rid the rid of the item to remove.
+     * @return the removed item or <tt>null</tt> if the ring had no item for the rid.
+     */
+    T remove(long rid) {
+        T item = get(rid);
+        if (item != null) {
+            removeAt((int) (rid & mask));
+        }
+        return item;
+    }
+
+    /**
+     * Removes the specified item of a rid. Nothing is removed if the rid has another item.
+     *
+     * @param rid the rid of the item to remove.
+     * @param item the item to remove.
+     * @return true if the item was removed.
+     */
+    boolean remove(long rid, T item) {
+        if (item == null || get(rid) != item) {
+            return false;
+        }
+        removeAt((int) (rid & mask));
+        return true;
+    }
+
+    /**
+     * Removes the items whose rid is lower than the specified rid.
+     *
+     * @param rid the lowest rid to keep.
+     */
+    void removeBefore(long rid) {
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null && rids[i] < rid) {
+                removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Returns the highest rid of the items in the ring.
+     *
+     * @return the highest rid of the items or -1 if the ring is empty.
+     */
+    long getHighestRid() {
+        long highest = -1;
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null && rids[i] > highest) {
+                highest = rids[i];
+            }
+        }
+        return highest;
+    }
+
+    /**
+     * Removes all the items.
+     */
+    void clear() {
+        for (int i = 0; i < items.length; i++) {
+            items[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Returns the items of the ring sorted by rid.
+     *
+     * @return the items of the ring sorted by rid.
+     */
+    @SuppressWarnings("unchecked")
+    List<T> values() {
+        List<T> values = new ArrayList<T>(size);
+        long[] sorted = new long[size];
+        int count = 0;
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] != null) {
+                // Insertion sort, rings are small
+                int j = count++;
+                for (; j > 0 && sorted[j - 1] > rids[i]; j--) {
+                    sorted[j] = sorted[j - 1];
+                }
+                sorted[j] = rids[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            values.add(get(sorted[i]));
+        }
+        return values;
+    }
+
+    /**
+     * Returns an iterator over the items of the ring. Items are not returned in rid order.
+     *
+     * @return an iterator over the items of the ring.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int next = advance(0);
+            private int last = -1;
+
+            private int advance(int index) {
+                while (index < items.length && items[index] == null) {
+                    index++;
+                }
+                return index;
+            }
+
+            public boolean hasNext() {
+                return next < items.length;
+            }
+
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (next >= items.length) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = advance(next + 1);
+                return (T) items[last];
+            }
+
+            public void remove() {
+                if (last < 0 || items[last] == null) {
+                    throw new IllegalStateException();
+                }
+                removeAt(last);
+                last = -1;
+            }
+        };
+    }
+
+    private void removeAt(int index) {
+        items[index] = null;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldRids = rids;
+        Object[] oldItems = items;
+        rids = new long[capacity];
+        items = new Object[capacity];
+        mask = capacity - 1;
+        for (int i = 0; i < oldItems.length; i++) {
+            if (oldItems[i] != null) {
+                int index = (int) (oldRids[i] & mask);
+                // Rids that used different slots never share a slot in a bigger ring
+                rids[index] = oldRids[i];
+                items[index] = oldItems[i];
+            }
+        }
+    }
+}
@@ -20,6 +20,8 @@
 
 package org.jivesoftware.multiplexer.task;
 
+import org.jivesoftware.multiplexer.ConnectionWorkerThread;
+
 /**
  * Base class for tasks that were requested by clients and that involves the server.
  * Example of tasks are: forwarding stanzas to the server or indicating the server that
@@ -35,6 +37,29 @@ public abstract class ClientTask implements Runnable {
         this.streamID = streamID;
     }
 
+    /**
+     * Returns the stream ID assigned by the connection manager to the client session.
+     *
+     * @return the stream ID assigned by the connection manager to the client session.
+     */
+    public String getStreamID() {
+        return streamID;
+    }
+
+    /**
+     * Executes the task using the connection to the server of the current thread.
+     */
+    public void run() {
+        run((ConnectionWorkerThread) Thread.currentThread());
+    }
+
+    /**
+     * Executes the task using the connection to the server of the specified thread.
+     *
+     * @param workerThread the thread whose connection to the server will be used.
+     */
+    public abstract void run(ConnectionWorkerThread workerThread);
+
     /**
      * Execute the corresponding action when the server is not available.
      */
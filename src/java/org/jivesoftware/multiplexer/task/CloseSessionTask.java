@@ -35,8 +35,8 @@ public class CloseSessionTask extends ClientTask {
         super(streamID);
     }
 
-    public void run() {
-        ConnectionWorkerThread workerThread = (ConnectionWorkerThread) Thread.currentThread();
+    @Override
+    public void run(ConnectionWorkerThread workerThread) {
         workerThread.clientSessionClosed(streamID);
     }
 
@@ -39,8 +39,8 @@ public class DeliveryFailedTask extends ClientTask {
         this.stanza = stanza;
     }
 
-    public void run() {
-        ConnectionWorkerThread workerThread = (ConnectionWorkerThread) Thread.currentThread();
+    @Override
+    public void run(ConnectionWorkerThread workerThread) {
         workerThread.deliveryFailed(stanza, streamID);
     }
 
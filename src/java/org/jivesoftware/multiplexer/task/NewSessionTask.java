@@ -40,8 +40,8 @@ public class NewSessionTask extends ClientTask {
         this.address = address;
     }
 
-    public void run() {
-        ConnectionWorkerThread workerThread = (ConnectionWorkerThread) Thread.currentThread();
+    @Override
+    public void run(ConnectionWorkerThread workerThread) {
         workerThread.clientSessionCreated(streamID, address);
     }
 
@@ -37,8 +37,8 @@ public class RouteTask extends ClientTask {
         this.stanza = stanza;
     }
 
-    public void run() {
-        ConnectionWorkerThread workerThread = (ConnectionWorkerThread) Thread.currentThread();
+    @Override
+    public void run(ConnectionWorkerThread workerThread) {
         workerThread.deliver(stanza, streamID);
     }
 
@@ -0,0 +1,66 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+/**
+ * Boolean value local property. Reading the value is a volatile read, see
+ * {@link JiveProperty}.
+ */
+public class BooleanProperty extends JiveProperty {
+
+    private final boolean defaultValue;
+    private volatile boolean value;
+
+    /**
+     * Creates a new boolean property. The default value is used when the property does
+     * not exist.
+     *
+     * @param name the name of the property.
+     * @param defaultValue the default value of the property.
+     */
+    public BooleanProperty(String name, boolean defaultValue) {
+        super(name);
+        this.defaultValue = defaultValue;
+        register();
+    }
+
+    /**
+     * Returns true if the property value is <tt>"true"</tt> (ignoring case). The default
+     * value is returned if the property does not exist.
+     *
+     * @return the value of the property.
+     */
+    public boolean get() {
+        return value;
+    }
+
+    /**
+     * Returns the default value of the property.
+     *
+     * @return the default value of the property.
+     */
+    public boolean getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    protected void setValue(String value) {
+        this.value = value != null ? Boolean.valueOf(value) : defaultValue;
+    }
+}
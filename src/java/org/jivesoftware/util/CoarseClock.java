@@ -0,0 +1,67 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+/**
+ * Clock that is updated by a background thread every {@link #RESOLUTION} milliseconds.
+ * Reading the clock is just a volatile read so it can be used by code that records
+ * timestamps for every stanza (e.g. last activity of connections) where a resolution
+ * of a fraction of a second is good enough. The resolution is set with the
+ * <tt>xmpp.clock.resolution</tt> property and defaults to 100 milliseconds.
+ */
+public class CoarseClock {
+
+    /**
+     * Number of milliseconds between updates of the clock.
+     */
+    public static final IntProperty RESOLUTION = new IntProperty("xmpp.clock.resolution", 100);
+
+    private static volatile long now = System.currentTimeMillis();
+
+    static {
+        Thread thread = new Thread("Coarse Clock") {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(Math.max(1, RESOLUTION.get()));
+                    }
+                    catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    now = System.currentTimeMillis();
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /**
+     * Returns the current time in milliseconds. The returned time may be up to
+     * {@link #RESOLUTION} milliseconds behind {@link System#currentTimeMillis()}.
+     *
+     * @return the current time in milliseconds.
+     */
+    public static long currentTimeMillis() {
+        return now;
+    }
+}
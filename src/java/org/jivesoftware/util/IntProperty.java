@@ -0,0 +1,75 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+/**
+ * Integer value local property. Reading the value is a volatile read, see
+ * {@link JiveProperty}.
+ */
+public class IntProperty extends JiveProperty {
+
+    private final int defaultValue;
+    private volatile int value;
+
+    /**
+     * Creates a new integer property. The default value is used when the property does
+     * not exist or is not a number.
+     *
+     * @param name the name of the property.
+     * @param defaultValue the default value of the property.
+     */
+    public IntProperty(String name, int defaultValue) {
+        super(name);
+        this.defaultValue = defaultValue;
+        register();
+    }
+
+    /**
+     * Returns the value of the property or the default value if the property does not
+     * exist or is not a number.
+     *
+     * @return the value of the property.
+     */
+    public int get() {
+        return value;
+    }
+
+    /**
+     * Returns the default value of the property.
+     *
+     * @return the default value of the property.
+     */
+    public int getDefaultValue() {
+        return defaultValue;
+    }
+
+    @Override
+    protected void setValue(String value) {
+        int newValue = defaultValue;
+        if (value != null) {
+            try {
+                newValue = Integer.parseInt(value);
+            }
+            catch (NumberFormatException nfe) {
+                // Ignore.
+            }
+        }
+        this.value = newValue;
+    }
+}
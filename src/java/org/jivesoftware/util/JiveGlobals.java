@@ -466,6 +466,8 @@ public class JiveGlobals {
             else {
                 try {
                     xmlProperties = new XMLProperties(home + File.separator + getConfigName());
+                    // Load properties that were created before the home directory was set
+                    JiveProperty.loadAll();
                 }
                 catch (IOException ioe) {
                     Log.error(ioe);
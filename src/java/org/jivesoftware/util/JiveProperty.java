@@ -0,0 +1,135 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Local property whose typed value is kept in memory. Reading the value of
+ * {@link JiveGlobals} properties requires a lookup in the synchronized {@link XMLProperties}
+ * and parsing the text of the value so code that reads properties for every packet or
+ * write uses a JiveProperty instead. The value is loaded again when the property is set or
+ * deleted.<p>
+ *
+ * Properties are meant to be kept in static fields. For example:
+ * <pre>
+ * private static final IntProperty SENDING_LIMIT =
+ *         new IntProperty("xmpp.session.sending-limit", 60000);
+ * </pre>
+ *
+ * @see IntProperty
+ * @see BooleanProperty
+ */
+public abstract class JiveProperty {
+
+    private static final List<JiveProperty> properties = new CopyOnWriteArrayList<JiveProperty>();
+
+    static {
+        // Listen for changes to the properties
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private final String name;
+
+    protected JiveProperty(String name) {
+        if (name == null) {
+            throw new NullPointerException("Property name cannot be null");
+        }
+        this.name = name;
+    }
+
+    /**
+     * Returns the name of the property.
+     *
+     * @return the name of the property.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Loads the current value of the property and keeps it updated. Subclasses must call
+     * this method once their default value was set.
+     */
+    protected final void register() {
+        load();
+        properties.add(this);
+    }
+
+    /**
+     * Loads the current value of the property.
+     */
+    private void load() {
+        setValue(JiveGlobals.getXMLProperty(name));
+    }
+
+    /**
+     * Sets the text of the property as the new value. The default value of the property
+     * is used when the text is <tt>null</tt> or not valid.
+     *
+     * @param value the text of the property or <tt>null</tt> if the property was not set.
+     */
+    protected abstract void setValue(String value);
+
+    /**
+     * Loads the value of all the properties. Used once the local properties were loaded
+     * since properties may be created before the home directory is set.
+     */
+    static void loadAll() {
+        for (JiveProperty property : properties) {
+            property.load();
+        }
+    }
+
+    /**
+     * Loads the value of the properties that were set or deleted.
+     */
+    private static void propertyChanged(String name) {
+        for (JiveProperty property : properties) {
+            if (property.name.equals(name)) {
+                property.load();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            propertyChanged(property);
+        }
+    }
+}
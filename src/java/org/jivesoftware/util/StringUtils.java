@@ -27,14 +27,15 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.BreakIterator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Utility class to peform common String manipulation algorithms.
@@ -47,10 +48,13 @@ public class StringUtils {
     private static final char[] LT_ENCODE = "&lt;".toCharArray();
     private static final char[] GT_ENCODE = "&gt;".toCharArray();
 
-    // Stringprep operations are very expensive. Therefore, we cache node, domain and
-    // resource values that have already had stringprep applied so that we can check
-    // incoming values against the cache.
-    private static Map stringprepCache = Collections.synchronizedMap(new Cache(10000));
+    // Stringprep operations are very expensive. Therefore, we cache JIDs that were
+    // already validated so that we can check incoming values against the cache.
+    private static final int JID_CACHE_SIZE = 10000;
+    private static final ConcurrentMap<String, Boolean> validJIDs =
+            new ConcurrentHashMap<String, Boolean>();
+    private static final AtomicLong jidCacheHits = new AtomicLong(0);
+    private static final AtomicLong jidCacheMisses = new AtomicLong(0);
 
     private StringUtils() {
         // Not instantiable.
@@ -1011,99 +1015,108 @@ public class StringUtils {
 
     /**
      * Validates that the provided JID address is well-formed. Note that doing stringprep
-     * operations is very expensive. We are using a Cache to reduce number of stringprep
-     * operations but some of them will eventually be needed.
+     * operations is very expensive. Valid addresses are kept in a concurrent cache and
+     * parts that only contain ASCII characters that stringprep accepts are not prepared.
      *
      * @param jid the JID address to validate.
      * @return true if the address is well-formed.
      */
     // TODO replace with proper JID validation from Tinder. Possibly use Tinder as dependency of this project.
     public static boolean validateJID(String jid) {
-        String node = null , domain, resource;
         if (jid == null) {
             return true;
         }
-
-        int atIndex = jid.indexOf("@");
-        int slashIndex = jid.indexOf("/");
-
-        // Node
-        if (atIndex > 0) {
-            node = jid.substring(0, atIndex);
-        }
-
-        // Domain
-        if (atIndex + 1 > jid.length()) {
-            throw new IllegalArgumentException("JID with empty domain not valid");
+        if (validJIDs.containsKey(jid)) {
+            jidCacheHits.incrementAndGet();
+            return true;
         }
-        if (atIndex < 0) {
-            if (slashIndex > 0) {
-                domain = jid.substring(0, slashIndex);
-            }
-            else {
-                domain = jid;
-            }
+        jidCacheMisses.incrementAndGet();
+        if (!isValidJID(jid)) {
+            return false;
         }
-        else {
-            if (slashIndex > 0) {
-                domain = jid.substring(atIndex + 1, slashIndex);
-            }
-            else {
-                domain = jid.substring(atIndex + 1);
+        if (validJIDs.size() >= JID_CACHE_SIZE) {
+            // Remove a quarter of the cached addresses. Removed addresses are random since
+            // the cache is not ordered
+            Iterator<String> it = validJIDs.keySet().iterator();
+            for (int i = JID_CACHE_SIZE / 4; i > 0 && it.hasNext(); i--) {
+                it.next();
+                it.remove();
             }
         }
+        validJIDs.put(jid, Boolean.TRUE);
+        return true;
+    }
 
-        // Resource
-        if (slashIndex + 1 > jid.length() || slashIndex < 0) {
-            resource = null;
-        }
-        else {
-            resource = jid.substring(slashIndex + 1);
-        }
+    /**
+     * Returns the number of validated JIDs that were found in the cache of valid JIDs.
+     *
+     * @return the number of validated JIDs that were found in the cache.
+     */
+    public static long getJIDCacheHits() {
+        return jidCacheHits.get();
+    }
 
+    /**
+     * Returns the number of validated JIDs that were not found in the cache of valid JIDs.
+     *
+     * @return the number of validated JIDs that were not found in the cache.
+     */
+    public static long getJIDCacheMisses() {
+        return jidCacheMisses.get();
+    }
 
-        // Set node and resource to null if they are the empty string.
-        if (node != null && node.equals("")) {
-            node = null;
-        }
-        if (resource != null && resource.equals("")) {
-            resource = null;
+    private static boolean isValidJID(String jid) {
+        // The resource starts after the first slash and may contain any character
+        int slashIndex = jid.indexOf('/');
+        int domainEnd = slashIndex < 0 ? jid.length() : slashIndex;
+        int atIndex = jid.indexOf('@');
+        if (atIndex >= domainEnd) {
+            atIndex = -1;
         }
-        // Stringprep (node prep, resourceprep, etc).
+        int resourceStart = slashIndex < 0 ? jid.length() : slashIndex + 1;
+
+        // Stringprep (node prep, resourceprep, etc). Parts are only extracted and prepared
+        // if they contain characters that may be changed or rejected by stringprep
         try {
-            if (!stringprepCache.containsKey(node)) {
-                node = Stringprep.nodeprep(node);
+            // Empty nodes and resources are ignored
+            if (atIndex > 0) {
+                int length = atIndex;
+                if (!isASCIINode(jid, 0, atIndex)) {
+                    length = Stringprep.nodeprep(jid.substring(0, atIndex)).length();
+                }
                 // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
-                if (node != null && node.length()*2 > 1023) {
+                if (length * 2 > 1023) {
                     Log.warn("Node cannot be larger than 1023 bytes. " +
-                            "Size is " + (node.length() * 2) + " bytes.");
+                            "Size is " + (length * 2) + " bytes.");
                     return false;
                 }
-                stringprepCache.put(node, null);
             }
             // XMPP specifies that domains should be run through IDNA and
             // that they should be run through nameprep before doing any
             // comparisons. We always run the domain through nameprep to
             // make comparisons easier later.
-            if (!stringprepCache.containsKey(domain)) {
-                domain = Stringprep.nameprep(IDNA.toASCII(domain), false);
-                // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
-                if (domain.length()*2 > 1023) {
-                    Log.warn("Domain cannot be larger than 1023 bytes. " +
-                            "Size is " + (domain.length() * 2) + " bytes.");
-                    return false;
-                }
-                stringprepCache.put(domain, null);
+            int length = domainEnd - atIndex - 1;
+            if (!isASCIIDomain(jid, atIndex + 1, domainEnd)) {
+                String domain = jid.substring(atIndex + 1, domainEnd);
+                length = Stringprep.nameprep(IDNA.toASCII(domain), false).length();
             }
-            if (!stringprepCache.containsKey(resource)) {
-                resource = Stringprep.resourceprep(resource);
+            // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
+            if (length * 2 > 1023) {
+                Log.warn("Domain cannot be larger than 1023 bytes. " +
+                        "Size is " + (length * 2) + " bytes.");
+                return false;
+            }
+            if (resourceStart < jid.length()) {
+                length = jid.length() - resourceStart;
+                if (!isASCIIResource(jid, resourceStart, jid.length())) {
+                    length = Stringprep.resourceprep(jid.substring(resourceStart)).length();
+                }
                 // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
-                if (resource != null && resource.length()*2 > 1023) {
+                if (length * 2 > 1023) {
                     Log.warn("Resource cannot be larger than 1023 bytes. " +
-                            "Size is " + (resource.length() * 2) + " bytes.");
+                            "Size is " + (length * 2) + " bytes.");
                     return false;
                 }
-                stringprepCache.put(resource, null);
             }
         }
         catch (Exception e) {
@@ -1114,21 +1127,66 @@ public class StringUtils {
     }
 
     /**
-     * A simple cache class that extends LinkedHashMap. It uses an LRU policy to
-     * keep the cache at a maximum size.
+     * Returns true if the node only contains printable ASCII characters that nodeprep
+     * accepts. Nodeprep only lower cases these characters.
      */
-    private static class Cache extends LinkedHashMap {
-
-        private int maxSize;
+    private static boolean isASCIINode(String jid, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char ch = jid.charAt(i);
+            if (ch <= ' ' || ch >= 0x7F) {
+                return false;
+            }
+            switch (ch) {
+                case '"':
+                case '&':
+                case '\'':
+                case '/':
+                case ':':
+                case '<':
+                case '>':
+                case '@':
+                    return false;
+            }
+        }
+        return true;
+    }
 
-        public Cache(int maxSize) {
-            super(64, .75f, true);
-            this.maxSize = maxSize;
+    /**
+     * Returns true if the domain only contains labels of ASCII letters, digits and hyphens
+     * that IDNA and nameprep accept. Labels must have between 1 and 63 characters and may
+     * not start or end with a hyphen. IDNA and nameprep only lower case these labels.
+     */
+    private static boolean isASCIIDomain(String jid, int start, int end) {
+        int labelStart = start;
+        for (int i = start; i <= end; i++) {
+            char ch = i < end ? jid.charAt(i) : '.';
+            if (ch == '.') {
+                int length = i - labelStart;
+                if (length < 1 || length > 63 || jid.charAt(labelStart) == '-' ||
+                        jid.charAt(i - 1) == '-') {
+                    return false;
+                }
+                labelStart = i + 1;
+            }
+            else if (!((ch >= 'a' && ch <= 'z') || (ch >= '0' && ch <= '9') ||
+                    (ch >= 'A' && ch <= 'Z') || ch == '-')) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        @Override
-		protected boolean removeEldestEntry(Map.Entry eldest) {
-            return size() > maxSize;
+    /**
+     * Returns true if the resource only contains printable ASCII characters and spaces
+     * that resourceprep does not change.
+     */
+    private static boolean isASCIIResource(String jid, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char ch = jid.charAt(i);
+            if (ch < ' ' || ch >= 0x7F) {
+                return false;
+            }
         }
+        return true;
     }
 }
\ No newline at end of file
@@ -25,14 +25,21 @@ import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Performs tasks using worker threads. It also allows tasks to be scheduled to be
  * run at future dates. This class mimics relevant methods in both
- * {@link ExecutorService} and {@link Timer}. Any {@link TimerTask} that's
- * scheduled to be run in the future will automatically be run using the thread
- * executor's thread pool. This means that the standard restriction that TimerTasks
- * should run quickly does not apply.
+ * {@link ExecutorService} and {@link Timer}. Tasks are run by a fixed pool of
+ * <tt>xmpp.taskengine.threads</tt> threads (8 by default) so tasks that are submitted
+ * while all threads are busy wait in the queue instead of creating new threads. This
+ * means that the standard restriction that TimerTasks should run quickly does not apply
+ * but long running tasks delay other tasks.<p>
+ *
+ * Timeouts that are frequently scheduled and cancelled, like the idle timeouts of
+ * sessions, should use {@link #newTimeout(Runnable, long)} instead. Timeouts are kept in
+ * a {@link TimerWheel} that ticks every <tt>xmpp.taskengine.wheel.tick</tt> milliseconds
+ * (100 by default) and expired timeouts are run by the pool of threads.
  *
  * @author Matt Tucker
  */
@@ -49,16 +56,21 @@ public class TaskEngine {
         return instance;
     }
 
-    private Timer timer;
-    private ExecutorService executor;
-    private Map<TimerTask, TimerTaskWrapper> wrappedTasks = new ConcurrentHashMap<TimerTask, TimerTaskWrapper>();
+    private ScheduledThreadPoolExecutor executor;
+    private TimerWheel timerWheel;
+    private Map<TimerTask, ScheduledFuture<?>> wrappedTasks =
+            new ConcurrentHashMap<TimerTask, ScheduledFuture<?>>();
+
+    private final AtomicLong executions = new AtomicLong(0);
+    private final AtomicLong totalLag = new AtomicLong(0);
+    private final AtomicLong maxLag = new AtomicLong(0);
 
     /**
      * Constructs a new task engine.
      */
     private TaskEngine() {
-        timer = new Timer("timer-openfire", true);
-        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        int threads = Math.max(1, JiveGlobals.getIntProperty("xmpp.taskengine.threads", 8));
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
 
             final AtomicInteger threadNumber = new AtomicInteger(1);
 
@@ -74,6 +86,10 @@ public class TaskEngine {
                 return thread;
             }
         });
+        timerWheel = new TimerWheel("timer-openfire",
+                Math.max(1, JiveGlobals.getIntProperty("xmpp.taskengine.wheel.tick", 100)),
+                Math.max(1, JiveGlobals.getIntProperty("xmpp.taskengine.wheel.size", 512)),
+                executor);
     }
 
     /**
@@ -99,11 +115,11 @@ public class TaskEngine {
      * @param delay delay in milliseconds before task is to be executed.
      * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
      *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, or timer was cancelled.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, long delay) {
-        timer.schedule(new TimerTaskWrapper(task), delay);
+        checkDelay(delay);
+        executor.schedule(new TimerTaskWrapper(task, delay, 0), delay, TimeUnit.MILLISECONDS);
     }
 
     /**
@@ -113,11 +129,10 @@ public class TaskEngine {
      * @param task task to be scheduled.
      * @param time time at which task is to be executed.
      * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, Date time) {
-        timer.schedule(new TimerTaskWrapper(task), time);
+        schedule(task, getDelay(time));
     }
 
     /**
@@ -147,13 +162,13 @@ public class TaskEngine {
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
      *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, delay, period);
+        checkDelay(delay);
+        checkPeriod(period);
+        wrappedTasks.put(task, executor.scheduleWithFixedDelay(
+                new TimerTaskWrapper(task, delay, -period), delay, period, TimeUnit.MILLISECONDS));
     }
 
     /**
@@ -182,13 +197,10 @@ public class TaskEngine {
      * @param firstTime First time at which task is to be executed.
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void schedule(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.schedule(taskWrapper, firstTime, period);
+        schedule(task, getDelay(firstTime), period);
     }
 
     /**
@@ -219,13 +231,13 @@ public class TaskEngine {
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>delay</tt> is negative, or
      *         <tt>delay + System.currentTimeMillis()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void scheduleAtFixedRate(TimerTask task, long delay, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, delay, period);
+        checkDelay(delay);
+        checkPeriod(period);
+        wrappedTasks.put(task, executor.scheduleAtFixedRate(
+                new TimerTaskWrapper(task, delay, period), delay, period, TimeUnit.MILLISECONDS));
     }
 
     /**
@@ -255,27 +267,89 @@ public class TaskEngine {
      * @param firstTime First time at which task is to be executed.
      * @param period time in milliseconds between successive task executions.
      * @throws IllegalArgumentException if <tt>time.getTime()</tt> is negative.
-     * @throws IllegalStateException if task was already scheduled or
-     *         cancelled, timer was cancelled, or timer thread terminated.
+     * @throws RejectedExecutionException if the task engine was shut down.
      */
     public void scheduleAtFixedRate(TimerTask task, Date firstTime, long period) {
-        TimerTaskWrapper taskWrapper = new TimerTaskWrapper(task);
-        wrappedTasks.put(task, taskWrapper);
-        timer.scheduleAtFixedRate(taskWrapper, firstTime, period);
+        scheduleAtFixedRate(task, getDelay(firstTime), period);
+    }
+
+    /**
+     * Schedules a task to run once after the specified delay using a {@link TimerWheel}.
+     * Scheduling and cancelling timeouts is cheaper than scheduling tasks so timeouts are
+     * meant for large numbers of tasks that are usually cancelled before they run, like
+     * session timeouts. Timeouts run up to <tt>xmpp.taskengine.wheel.tick</tt> milliseconds
+     * after the delay.
+     *
+     * @param task the task to run.
+     * @param delay delay in milliseconds before the task is run.
+     * @return the timeout to use for cancelling the task.
+     */
+    public TimerWheel.Timeout newTimeout(Runnable task, long delay) {
+        return timerWheel.schedule(task, delay);
     }
 
     /**
      * Cancels the execution of a scheduled task. {@link java.util.TimerTask#cancel()}
+     * does not stop tasks scheduled with the task engine.
      *
      * @param task the scheduled task to cancel.
      */
     public void cancelScheduledTask(TimerTask task) {
-        TaskEngine.TimerTaskWrapper taskWrapper = wrappedTasks.remove(task);
-        if (taskWrapper != null) {
-            taskWrapper.cancel();
+        ScheduledFuture<?> future = wrappedTasks.remove(task);
+        if (future != null) {
+            future.cancel(false);
         }
     }
 
+    /**
+     * Returns the timer wheel used for timeouts.
+     *
+     * @return the timer wheel used for timeouts.
+     */
+    public TimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    /**
+     * Returns the number of tasks that are waiting to be run, including scheduled tasks
+     * that are not due yet.
+     *
+     * @return the number of tasks that are waiting to be run.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of threads that are running tasks.
+     *
+     * @return the number of threads that are running tasks.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the average number of milliseconds between the time when scheduled tasks
+     * were due and the time when they started running.
+     *
+     * @return the average lag of scheduled tasks in milliseconds.
+     */
+    public long getAverageLag() {
+        long count = executions.get();
+        return count == 0 ? 0 : totalLag.get() / count;
+    }
+
+    /**
+     * Returns the max number of milliseconds between the time when a scheduled task was
+     * due and the time when it started running.
+     *
+     * @return the max lag of scheduled tasks in milliseconds.
+     */
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
     /**
      * Shuts down the task engine service.
      */
@@ -285,27 +359,79 @@ public class TaskEngine {
             executor = null;
         }
 
-        if (timer != null) {
-            timer.cancel();
-            timer = null;
+        if (timerWheel != null) {
+            timerWheel.stop();
+            timerWheel = null;
+        }
+    }
+
+    private static void checkDelay(long delay) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Negative delay.");
+        }
+    }
+
+    private static void checkPeriod(long period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Non-positive period.");
         }
     }
 
     /**
-     * Wrapper class for a standard TimerTask. It simply executes the TimerTask
-     * using the executor's thread pool.
+     * Returns the delay until the specified time or 0 if the time is in the past.
      */
-    private class TimerTaskWrapper extends TimerTask {
+    private static long getDelay(Date time) {
+        if (time.getTime() < 0) {
+            throw new IllegalArgumentException("Negative time.");
+        }
+        return Math.max(0, time.getTime() - System.currentTimeMillis());
+    }
+
+    private void recordLag(long lag) {
+        lag = Math.max(0, lag);
+        executions.incrementAndGet();
+        totalLag.addAndGet(lag);
+        for (long max = maxLag.get(); lag > max && !maxLag.compareAndSet(max, lag);) {
+            max = maxLag.get();
+        }
+    }
+
+    /**
+     * Wrapper class for a standard TimerTask. It records the lag of the executions and
+     * logs the errors of the task. Periodic tasks keep running after an error like they
+     * did when TimerTasks were run by the thread pool.
+     */
+    private class TimerTaskWrapper implements Runnable {
 
-        private TimerTask task;
+        private final TimerTask task;
+        /**
+         * Positive for fixed-rate, negative for fixed-delay and 0 for one-time tasks.
+         */
+        private final long period;
+        private long nextExecutionTime;
 
-        public TimerTaskWrapper(TimerTask task) {
+        public TimerTaskWrapper(TimerTask task, long delay, long period) {
             this.task = task;
+            this.period = period;
+            this.nextExecutionTime = System.currentTimeMillis() + delay;
         }
 
-        @Override
-		public void run() {
-            executor.submit(task);
+        public void run() {
+            recordLag(System.currentTimeMillis() - nextExecutionTime);
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                Log.error("Error running scheduled task: " + task, t);
+            }
+            finally {
+                if (period > 0) {
+                    nextExecutionTime += period;
+                }
+                else {
+                    nextExecutionTime = System.currentTimeMillis() - period;
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,395 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed wheel timer for large numbers of timeouts that are usually cancelled or
+ * rescheduled before they expire (e.g. idle and inactivity timeouts of sessions).
+ * Scheduling and cancelling a timeout only adds it to a concurrent queue so both are
+ * constant time operations. A single thread moves the timeouts into the buckets of the
+ * wheel and expires the timeouts of one bucket every tick.<p>
+ *
+ * Timeouts expire up to one tick after their deadline. Expired tasks are run by the
+ * executor of the wheel or by the thread of the wheel if no executor was specified, in
+ * which case tasks must run quickly.
+ */
+public class TimerWheel {
+
+    /**
+     * Max number of new timeouts moved into the wheel every tick so that a burst of
+     * new timeouts does not delay the expiration of the current bucket.
+     */
+    private static final int MAX_TRANSFERS = 100000;
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Thread worker;
+    private final long startTime;
+    private volatile boolean stopped = false;
+    /**
+     * Number of ticks since the wheel started. Only used by the thread of the wheel.
+     */
+    private long tick = 0;
+
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicLong expired = new AtomicLong(0);
+    private final AtomicLong totalLag = new AtomicLong(0);
+    private final AtomicLong maxLag = new AtomicLong(0);
+
+    /**
+     * Creates and starts a new timer wheel.
+     *
+     * @param name the name of the thread of the wheel.
+     * @param tickDuration milliseconds between ticks.
+     * @param ticksPerWheel number of buckets of the wheel. Rounded up to a power of two.
+     * @param executor executor that runs the expired tasks or <tt>null</tt> to run them
+     *        in the thread of the wheel.
+     */
+    public TimerWheel(String name, long tickDuration, int ticksPerWheel, Executor executor) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("Invalid ticks per wheel: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.tickDuration = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        this.executor = executor;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        startTime = System.nanoTime();
+        worker = new Thread(name) {
+            @Override
+            public void run() {
+                work();
+            }
+        };
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to run once after the specified delay. Use the returned timeout
+     * to cancel the task.
+     *
+     * @param task the task to run.
+     * @param delay delay in milliseconds before the task is run.
+     * @return the timeout of the task.
+     * @throws IllegalStateException if the wheel was stopped.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null) {
+            throw new NullPointerException("Task cannot be null");
+        }
+        if (stopped) {
+            throw new IllegalStateException("Timer wheel was stopped");
+        }
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay)));
+        pending.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel. Pending timeouts will never expire.
+     */
+    public void stop() {
+        stopped = true;
+        worker.interrupt();
+    }
+
+    /**
+     * Returns the number of timeouts that were neither cancelled nor expired.
+     *
+     * @return the number of pending timeouts.
+     */
+    public int getPendingTimeouts() {
+        return pending.get();
+    }
+
+    /**
+     * Returns the number of expired timeouts.
+     *
+     * @return the number of expired timeouts.
+     */
+    public long getExpiredTimeouts() {
+        return expired.get();
+    }
+
+    /**
+     * Returns the average number of milliseconds between the deadline of the expired
+     * timeouts and their expiration.
+     *
+     * @return the average lag of the expired timeouts in milliseconds.
+     */
+    public long getAverageLag() {
+        long count = expired.get();
+        return count == 0 ? 0 : totalLag.get() / count;
+    }
+
+    /**
+     * Returns the max number of milliseconds between the deadline of an expired timeout
+     * and its expiration.
+     *
+     * @return the max lag of the expired timeouts in milliseconds.
+     */
+    public long getMaxLag() {
+        return maxLag.get();
+    }
+
+    private void work() {
+        while (!stopped) {
+            long deadline = waitForNextTick();
+            if (stopped) {
+                break;
+            }
+            removeCancelledTimeouts();
+            transferTimeouts();
+            wheel[(int) (tick & mask)].expireTimeouts(deadline);
+            tick++;
+        }
+    }
+
+    /**
+     * Waits until the start of the next tick.
+     *
+     * @return the time of the next tick.
+     */
+    private long waitForNextTick() {
+        long deadline = startTime + tickDuration * (tick + 1);
+        while (!stopped) {
+            long sleepTime = deadline - System.nanoTime();
+            if (sleepTime <= 0) {
+                break;
+            }
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepTime + 999999));
+            }
+            catch (InterruptedException e) {
+                // Ignore. The wheel may have been stopped
+            }
+        }
+        return deadline;
+    }
+
+    private void removeCancelledTimeouts() {
+        for (Timeout timeout = cancelledTimeouts.poll(); timeout != null;
+             timeout = cancelledTimeouts.poll()) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferTimeouts() {
+        for (int i = 0; i < MAX_TRANSFERS; i++) {
+            Timeout timeout = newTimeouts.poll();
+            if (timeout == null) {
+                break;
+            }
+            if (timeout.state.get() != INIT) {
+                // The timeout was cancelled before it was added to the wheel
+                continue;
+            }
+            long calculated = (timeout.deadline - startTime) / tickDuration;
+            timeout.remainingRounds = (calculated - tick) / wheel.length;
+            // Timeouts whose deadline has passed expire in the current tick
+            long ticks = Math.max(calculated, tick);
+            wheel[(int) (ticks & mask)].add(timeout);
+        }
+    }
+
+    private void expired(Timeout timeout) {
+        if (!timeout.state.compareAndSet(INIT, EXPIRED)) {
+            return;
+        }
+        pending.decrementAndGet();
+        long lag = Math.max(0, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - timeout.deadline));
+        expired.incrementAndGet();
+        totalLag.addAndGet(lag);
+        for (long max = maxLag.get(); lag > max && !maxLag.compareAndSet(max, lag);) {
+            max = maxLag.get();
+        }
+        if (executor != null) {
+            try {
+                executor.execute(timeout.task);
+            }
+            catch (RejectedExecutionException e) {
+                Log.error("Expired task was rejected: " + timeout.task, e);
+            }
+        }
+        else {
+            try {
+                timeout.task.run();
+            }
+            catch (Throwable t) {
+                Log.error("Error running expired task: " + timeout.task, t);
+            }
+        }
+    }
+
+    /**
+     * Timeout of a task scheduled in a timer wheel.
+     */
+    public class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        // Only used by the thread of the wheel
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+        private long remainingRounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Returns the task that runs when the timeout expires.
+         *
+         * @return the task that runs when the timeout expires.
+         */
+        public Runnable getTask() {
+            return task;
+        }
+
+        /**
+         * Cancels the timeout. The task will not run unless the timeout already expired.
+         *
+         * @return true if the timeout was cancelled or false if it already expired or was
+         *         cancelled.
+         */
+        public boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            pending.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+
+        /**
+         * Returns true if the timeout was cancelled.
+         *
+         * @return true if the timeout was cancelled.
+         */
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        /**
+         * Returns true if the timeout expired and its task was run or handed to the
+         * executor.
+         *
+         * @return true if the timeout expired.
+         */
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts of a tick of the wheel. Only used by the thread
+     * of the wheel.
+     */
+    private class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            else {
+                tail = timeout.prev;
+            }
+            timeout.bucket = null;
+            timeout.next = null;
+            timeout.prev = null;
+        }
+
+        /**
+         * Expires the timeouts of this bucket that are due in this round of the wheel.
+         *
+         * @param deadline the time of the current tick.
+         */
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0 && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    expired(timeout);
+                }
+                else if (timeout.isCancelled()) {
+                    remove(timeout);
+                }
+                else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test that a {@link ConnectionSelector} keeps sessions on their connection while
+ * connections are added and only moves the sessions of lost connections.
+ */
+public class ConnectionSelectorTest extends TestCase {
+
+    private static final int SESSIONS = 1000;
+
+    private final ConnectionSelector<Link> selector = new ConnectionSelector<Link>() {
+        @Override
+        protected boolean isValid(Link link) {
+            return link.valid;
+        }
+
+        @Override
+        protected String getName(Link link) {
+            return link.name;
+        }
+    };
+
+    private final List<Link> links = new ArrayList<Link>();
+    private final Map<String, Link> assigned = new HashMap<String, Link>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        for (int i = 1; i <= 4; i++) {
+            links.add(new Link("Connection Worker - " + i));
+        }
+        for (int i = 0; i < SESSIONS; i++) {
+            String streamID = "cm/" + Integer.toString(i, 36);
+            assigned.put(streamID, selector.select(streamID, null, links));
+        }
+    }
+
+    public void testSessionsAreSpread() {
+        for (Link link : links) {
+            int sessions = sessionsOf(link);
+            assertTrue("Unbalanced connection: " + sessions, sessions > SESSIONS / 8);
+        }
+    }
+
+    public void testAddedConnectionKeepsSessions() {
+        links.add(new Link("Connection Worker - 5"));
+        for (Map.Entry<String, Link> entry : assigned.entrySet()) {
+            assertSame("Session moved to another connection", entry.getValue(),
+                    selector.select(entry.getKey(), entry.getValue(), links));
+        }
+        // New sessions also use the new connection
+        int newSessions = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            if (selector.select("new/" + i, null, links) == links.get(4)) {
+                newSessions++;
+            }
+        }
+        assertTrue("New connection was not used", newSessions > 0);
+    }
+
+    public void testLostConnectionMovesOnlyItsSessions() {
+        Link lost = links.get(1);
+        lost.valid = false;
+        for (Map.Entry<String, Link> entry : assigned.entrySet()) {
+            Link link = selector.select(entry.getKey(), entry.getValue(), links);
+            assertNotNull("No connection was selected", link);
+            assertTrue("Invalid connection was selected", link.valid);
+            if (entry.getValue() != lost) {
+                assertSame("Session moved to another connection", entry.getValue(), link);
+            }
+        }
+        for (Link link : links) {
+            link.valid = false;
+        }
+        assertNull("Invalid connection was selected", selector.select("cm/0", null, links));
+    }
+
+    private int sessionsOf(Link link) {
+        int sessions = 0;
+        for (Link value : assigned.values()) {
+            if (value == link) {
+                sessions++;
+            }
+        }
+        return sessions;
+    }
+
+    private static class Link {
+        private final String name;
+        private boolean valid = true;
+
+        Link(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+
+import java.net.InetAddress;
+
+/**
+ * Test the caching of looked up host names of {@link HostNameResolver}.
+ */
+public class HostNameResolverTest extends TestCase {
+
+    private static final byte[] LOOPBACK = new byte[] {127, 0, 0, 1};
+
+    public void testImmediateResolverUsesIPUntilLookedUp() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(1, 60000, 100, 1000, true);
+        InetAddress address = InetAddress.getByAddress(LOOPBACK);
+        assertEquals("IP address was not used right away", "127.0.0.1",
+                resolver.getHostName(address));
+        String hostName = null;
+        for (int i = 0; i < 100 && resolver.getHits() == 0; i++) {
+            Thread.sleep(50);
+            hostName = resolver.getHostName(InetAddress.getByAddress(LOOPBACK));
+        }
+        assertEquals("Looked up host name was not used",
+                InetAddress.getByAddress(LOOPBACK).getHostName(), hostName);
+        assertEquals("Wrong number of lookups", 1, resolver.getLookups());
+    }
+
+    public void testWaitingResolver() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(1, 60000, 100, 10000, false);
+        String expected = InetAddress.getByAddress(LOOPBACK).getHostName();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Wrong host name", expected,
+                    resolver.getHostName(InetAddress.getByAddress(LOOPBACK)));
+        }
+        assertEquals("Wrong number of lookups", 1, resolver.getLookups());
+        assertEquals("Wrong number of hits", 2, resolver.getHits());
+    }
+
+    public void testExpiredNamesAreLookedUpAgain() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(1, 0, 100, 10000, false);
+        for (int i = 0; i < 3; i++) {
+            resolver.getHostName(InetAddress.getByAddress(LOOPBACK));
+        }
+        assertEquals("Wrong number of lookups", 3, resolver.getLookups());
+        assertEquals("Wrong number of hits", 0, resolver.getHits());
+    }
+
+    public void testCacheIsTrimmedWithSlack() throws Exception {
+        HostNameResolver resolver = new HostNameResolver(1, 60000, 16, 10000, false);
+        // The cache of 16 addresses is trimmed once it holds more than 18 addresses
+        for (int i = 1; i <= 18; i++) {
+            resolver.getHostName(InetAddress.getByAddress(new byte[] {127, 0, 0, (byte) i}));
+        }
+        assertEquals("Cache was trimmed before exceeding the slack", 18,
+                resolver.getCacheSize());
+        resolver.getHostName(InetAddress.getByAddress(new byte[] {127, 0, 0, 19}));
+        assertEquals("Cache was not trimmed to its max size", 16, resolver.getCacheSize());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+/**
+ * Test that {@link SessionControlReader} recognizes session control packets and reads
+ * other packets like {@link XMPPPacketReader} does.
+ */
+public class SessionControlReaderTest extends TestCase {
+
+    private static final String STREAM_HEADER =
+            "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" " +
+                    "xmlns=\"jabber:connectionmanager\" id=\"a1b2c3\" version=\"1.0\">";
+
+    public void testControlPackets() throws Exception {
+        SessionControlReader reader = createReader(
+                "<iq type=\"result\" id=\"1\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\" " +
+                        "id=\"s1\"><create/></session></iq>  \n " +
+                        "<iq type='set' id='2'><session xmlns='http://jabber.org/protocol/connectionmanager' " +
+                        "id='s2'><close></close></session></iq></stream:stream>");
+        assertNull("Control packet was read into elements", reader.read());
+        assertEquals("Wrong action", SessionControlReader.CREATED, reader.getAction());
+        assertEquals("Wrong stream ID", "s1", reader.getStreamID());
+        assertNull("Control packet was read into elements", reader.read());
+        assertEquals("Wrong action", SessionControlReader.CLOSE, reader.getAction());
+        assertEquals("Wrong stream ID", "s2", reader.getStreamID());
+        assertNull("End of stream was not found", reader.read());
+        assertEquals("Wrong action", SessionControlReader.NONE, reader.getAction());
+    }
+
+    public void testOtherPackets() throws Exception {
+        String packets =
+                // Control packets with unexpected content
+                "<iq type=\"result\" id=\"1\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\" " +
+                "id=\"s1\"><create/><extra/></session></iq>" +
+                "<iq type=\"set\" id=\"2\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\" " +
+                "id=\"s2\"><close>now</close></session></iq>" +
+                "<iq type=\"set\" id=\"3\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\" " +
+                "id=\"s3\"><create/></session></iq>" +
+                "<iq type=\"set\" id=\"4\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\">" +
+                "<close/></session></iq>" +
+                "<iq type=\"result\" id=\"5\"><session id=\"s5\"><create/></session> </iq>" +
+                "<iq type=\"set\" id=\"6\"/>" +
+                "<iq type=\"error\" id=\"7\"><session xmlns=\"http://jabber.org/protocol/connectionmanager\" " +
+                "id=\"s7\"><create/></session><error type=\"cancel\"/></iq>" +
+                "<iq type=\"set\" id=\"8\"><configuration xmlns=\"http://jabber.org/protocol/connectionmanager\">" +
+                "<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/></configuration></iq>" +
+                "<route streamid=\"s9\"><message xmlns=\"jabber:client\" to=\"a@b.c\"><body>Hi</body>" +
+                "</message></route>";
+        SessionControlReader reader = createReader(packets + "</stream:stream>");
+        XMPPPacketReader expected = new XMPPPacketReader();
+        expected.setPassthroughParent("route");
+        start(expected, packets + "</stream:stream>");
+        for (int i = 0; i < 9; i++) {
+            Element element = reader.read();
+            assertEquals("Wrong action", SessionControlReader.NONE, reader.getAction());
+            assertNotNull("Packet was not read", element);
+            assertEquals("Wrong packet was read", expected.parseElement().asXML(), element.asXML());
+        }
+        assertNull("End of stream was not found", reader.read());
+    }
+
+    private static SessionControlReader createReader(String packets) throws Exception {
+        XMPPPacketReader reader = new XMPPPacketReader();
+        reader.setPassthroughParent("route");
+        start(reader, packets);
+        return new SessionControlReader(reader);
+    }
+
+    private static void start(XMPPPacketReader reader, String packets) throws Exception {
+        XmlPullParser parser = reader.getXPPParser();
+        parser.setInput(new StringReader(STREAM_HEADER + packets));
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.START_TAG;) {
+            eventType = parser.next();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Test the striped registry of sessions keyed by stream ID.
+ */
+public class SessionRegistryTest extends TestCase {
+
+    private StreamIDFactory factory = new StreamIDFactory("cm");
+
+    public void testRegistry() {
+        SessionRegistry<String> registry = new SessionRegistry<String>(factory, 4);
+        String streamID = factory.createStreamID();
+        registry.put(streamID, "a");
+        assertEquals("Session not found", "a", registry.get(streamID));
+        assertEquals("Wrong size", 1, registry.size());
+        // Stream ID with the same key but a different salt
+        String forged = "cm-" + (streamID.charAt(3) == '0' ? '1' : '0') + streamID.substring(4);
+        assertEquals("Wrong key of forged stream ID", factory.getKey(streamID), factory.getKey(forged));
+        assertNull("Session found with forged stream ID", registry.get(forged));
+        assertNull("Session removed with forged stream ID", registry.remove(forged));
+        assertNull("Session found with unknown stream ID", registry.get("other"));
+        assertEquals("Session not removed", "a", registry.remove(streamID));
+        assertNull("Removed session was found", registry.get(streamID));
+        assertEquals("Wrong size", 0, registry.size());
+        try {
+            registry.put("other", "b");
+            fail("Unknown stream ID was registered");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    public void testRandomOperations() {
+        SessionRegistry<String> registry = new SessionRegistry<String>(factory, 2);
+        Map<String, String> expected = new HashMap<String, String>();
+        List<String> streamIDs = new ArrayList<String>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            if (streamIDs.isEmpty() || random.nextInt(3) > 0) {
+                String streamID = factory.createStreamID();
+                streamIDs.add(streamID);
+                registry.put(streamID, "s" + i);
+                expected.put(streamID, "s" + i);
+            }
+            else {
+                String streamID = streamIDs.remove(random.nextInt(streamIDs.size()));
+                assertEquals("Wrong removed session", expected.remove(streamID), registry.remove(streamID));
+            }
+        }
+        assertEquals("Wrong size", expected.size(), registry.size());
+        int total = 0;
+        for (int size : registry.getShardSizes()) {
+            total += size;
+        }
+        assertEquals("Wrong shard sizes", expected.size(), total);
+        for (Map.Entry<String, String> entry : expected.entrySet()) {
+            assertEquals("Wrong session", entry.getValue(), registry.get(entry.getKey()));
+        }
+        assertEquals("Wrong sessions", new HashSet<String>(expected.values()),
+                new HashSet<String>(registry.getSessions()));
+    }
+
+    public void testReadsWhileWriting() throws Exception {
+        final SessionRegistry<String> registry = new SessionRegistry<String>(factory, 1);
+        final String[] stable = new String[100];
+        for (int i = 0; i < stable.length; i++) {
+            stable[i] = factory.createStreamID();
+            registry.put(stable[i], stable[i]);
+        }
+        final boolean[] missed = new boolean[1];
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 200000 && !missed[0]; i++) {
+                    String streamID = stable[i % stable.length];
+                    if (!streamID.equals(registry.get(streamID))) {
+                        missed[0] = true;
+                    }
+                }
+            }
+        };
+        reader.start();
+        // Add and remove sessions so that chains are replaced and tables are resized
+        List<String> added = new ArrayList<String>();
+        for (int i = 0; i < 50000; i++) {
+            String streamID = factory.createStreamID();
+            registry.put(streamID, streamID);
+            added.add(streamID);
+            if (i % 2 == 1) {
+                registry.remove(added.remove(0));
+            }
+        }
+        reader.join();
+        assertFalse("Registered session was not found while writing", missed[0]);
+        assertEquals("Wrong size", stable.length + added.size(), registry.size());
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+import org.dom4j.tree.DefaultElement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test that stanzas of a {@link StanzaQueue} are processed in order by one thread at a time.
+ */
+public class StanzaQueueTest extends TestCase {
+
+    public void testSchedule() {
+        StanzaQueue queue = new StanzaQueue();
+        assertTrue("Idle queue was not scheduled", queue.add(new DefaultElement("a")));
+        assertFalse("Scheduled queue was scheduled again", queue.add(new DefaultElement("b")));
+        assertEquals("Wrong stanza", "a", queue.poll().getName());
+        assertEquals("Wrong stanza", "b", queue.poll().getName());
+        assertNull("Queue is not empty", queue.poll());
+        assertFalse("Empty queue has to be processed", queue.release());
+        assertTrue("Idle queue was not scheduled", queue.add(new DefaultElement("c")));
+    }
+
+    public void testOrderedProcessing() throws Exception {
+        final StanzaQueue queue = new StanzaQueue();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<String> processed = new ArrayList<String>();
+        final AtomicInteger processing = new AtomicInteger();
+        final AtomicInteger tasks = new AtomicInteger();
+        final AtomicBoolean concurrent = new AtomicBoolean(false);
+        final Runnable task = new Runnable() {
+            public void run() {
+                tasks.incrementAndGet();
+                do {
+                    Element stanza;
+                    while ((stanza = queue.poll()) != null) {
+                        if (processing.incrementAndGet() != 1) {
+                            concurrent.set(true);
+                        }
+                        // Only one thread may add to the list at a time
+                        processed.add(stanza.getName());
+                        processing.decrementAndGet();
+                    }
+                } while (queue.release());
+            }
+        };
+        for (int i = 0; i < 10000; i++) {
+            if (queue.add(new DefaultElement("s" + i))) {
+                executor.execute(task);
+            }
+        }
+        executor.shutdown();
+        assertTrue("Stanzas were not processed", executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertFalse("Queue was processed concurrently", concurrent.get());
+        assertEquals("Wrong number of processed stanzas", 10000, processed.size());
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("Stanzas were not processed in order", "s" + i, processed.get(i));
+        }
+        assertTrue("Too many tasks were scheduled", tasks.get() <= 10000);
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures how many stream IDs {@link StreamIDFactory} creates per second when used by
+ * several threads. This is not a test case, run it from the command line:<p>
+ *
+ * <tt>java org.jivesoftware.multiplexer.StreamIDFactoryBenchmark [threads] [iterations]</tt>
+ */
+public class StreamIDFactoryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        StreamIDFactory factory = new StreamIDFactory("connection-manager-1");
+        // Run everything twice so that the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            System.out.println("Round " + (round + 1));
+            benchmark(factory, 1, iterations);
+            benchmark(factory, threads, iterations);
+        }
+    }
+
+    private static void benchmark(final StreamIDFactory factory, int threads, final int iterations)
+            throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(threads);
+        final long[] keys = new long[threads];
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            final int index = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    long sum = 0;
+                    for (int j = 0; j < iterations; j++) {
+                        sum += factory.getKey(factory.createStreamID());
+                    }
+                    keys[index] = sum;
+                    finished.countDown();
+                }
+            }.start();
+        }
+        finished.await();
+        long elapsed = System.nanoTime() - start;
+        long ids = (long) threads * iterations;
+        System.out.println(threads + " threads: " + (ids * 1000000000L / Math.max(elapsed, 1)) +
+                " stream IDs/sec (" + keys[0] + ")");
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Test that {@link StreamIDFactory} creates unique stream IDs and keys when used by
+ * many threads.
+ */
+public class StreamIDFactoryTest extends TestCase {
+
+    private static final int THREADS = 8;
+    private static final int IDS_PER_THREAD = 50000;
+
+    public void testKeys() {
+        StreamIDFactory factory = new StreamIDFactory("cm");
+        String streamID = factory.createStreamID();
+        assertTrue("Missing prefix", streamID.startsWith("cm-"));
+        long key = factory.getKey(streamID);
+        assertTrue("Invalid key", key > 0);
+        assertEquals("Wrong key of next stream ID", key + 1, factory.getKey(factory.createStreamID()));
+        // Stream IDs not created by the factory
+        assertEquals("Wrong key of foreign stream ID", -1, factory.getKey("xx-12345"));
+        assertEquals("Wrong key of stream ID without separator", -1, factory.getKey("cmxabcd1"));
+        assertEquals("Wrong key of short stream ID", -1, factory.getKey("cm-abcd"));
+        assertEquals("Wrong key of invalid stream ID", -1, factory.getKey("cm-abcd1A"));
+        assertEquals("Wrong key of invalid stream ID", -1, factory.getKey("cm-abcd1-"));
+        assertEquals("Wrong key of long stream ID", -1, factory.getKey("cm-abcdzzzzzzzzzzzzz"));
+        assertEquals("Wrong key of zero stream ID", -1, factory.getKey("cm-abcd0"));
+        // Names that are prefixes of other names
+        StreamIDFactory other = new StreamIDFactory("cm1");
+        assertEquals("Stream ID of other prefix has a key", -1, factory.getKey(other.createStreamID()));
+        assertEquals("Stream ID of other prefix has a key", -1, other.getKey(factory.createStreamID()));
+        try {
+            new StreamIDFactory(null);
+            fail("Factory was created without a prefix");
+        }
+        catch (NullPointerException e) {
+            // Expected
+        }
+    }
+
+    public void testUniqueness() throws Exception {
+        final StreamIDFactory factory = new StreamIDFactory("cm");
+        final Map<String, Boolean> streamIDs = new ConcurrentHashMap<String, Boolean>();
+        final Map<Long, Boolean> keys = new ConcurrentHashMap<Long, Boolean>();
+        final List<String> errors = new ArrayList<String>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(THREADS);
+        for (int i = 0; i < THREADS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < IDS_PER_THREAD; j++) {
+                            String streamID = factory.createStreamID();
+                            long key = factory.getKey(streamID);
+                            if (streamIDs.put(streamID, Boolean.TRUE) != null ||
+                                    keys.put(key, Boolean.TRUE) != null || key <= 0) {
+                                synchronized (errors) {
+                                    errors.add(streamID);
+                                }
+                            }
+                        }
+                    }
+                    catch (InterruptedException e) {
+                        // Do nothing
+                    }
+                    finally {
+                        finished.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        finished.await();
+        assertTrue("Duplicated stream IDs: " + errors, errors.isEmpty());
+        assertEquals("Wrong number of stream IDs", THREADS * IDS_PER_THREAD, streamIDs.size());
+    }
+}
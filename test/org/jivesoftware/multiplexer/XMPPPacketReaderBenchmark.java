@@ -0,0 +1,165 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.dom4j.io.XMPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.CharArrayReader;
+
+/**
+ * Compares the reader used for the traffic sent by the server with the previous way of
+ * reading it: creating a Document for every packet and looking up every element and
+ * attribute name in the caches of the DocumentFactory. The traffic is a capture of route
+ * and session control packets sent by the server. This is not a test case, run it from
+ * the command line:<p>
+ *
+ * <tt>java org.jivesoftware.multiplexer.XMPPPacketReaderBenchmark [iterations]</tt>
+ */
+public class XMPPPacketReaderBenchmark {
+
+    private static final String STREAM_HEADER =
+            "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" " +
+                    "xmlns=\"jabber:connectionmanager\" from=\"capulet.lit\" id=\"a1b2c3\" version=\"1.0\">";
+
+    private static final String[] PACKETS = {
+            "<route from=\"juliet@capulet.lit/balcony\" to=\"romeo@montague.lit/orchard\" streamid=\"c2s1\">" +
+                    "<message xmlns=\"jabber:client\" from=\"juliet@capulet.lit/balcony\" " +
+                    "to=\"romeo@montague.lit/orchard\" type=\"chat\" id=\"m1\"><body>Wherefore art thou, Romeo?" +
+                    "</body><active xmlns=\"http://jabber.org/protocol/chatstates\"/></message></route>",
+            "<route from=\"nurse@capulet.lit/chamber\" to=\"romeo@montague.lit/orchard\" streamid=\"c2s1\">" +
+                    "<presence xmlns=\"jabber:client\" from=\"nurse@capulet.lit/chamber\" " +
+                    "to=\"romeo@montague.lit/orchard\"><show>away</show><status>Out for a walk</status>" +
+                    "<priority>5</priority><c xmlns=\"http://jabber.org/protocol/caps\" hash=\"sha-1\" " +
+                    "node=\"http://psi-im.org\" ver=\"q07IKJEyjvHSyhy//CH0CxmKi8w=\"/></presence></route>",
+            "<route from=\"capulet.lit\" to=\"romeo@montague.lit/orchard\" streamid=\"c2s1\">" +
+                    "<iq xmlns=\"jabber:client\" type=\"result\" id=\"roster1\" to=\"romeo@montague.lit/orchard\">" +
+                    "<query xmlns=\"jabber:iq:roster\"><item jid=\"juliet@capulet.lit\" name=\"Juliet\" " +
+                    "subscription=\"both\"><group>Friends</group></item><item jid=\"mercutio@montague.lit\" " +
+                    "subscription=\"both\"/></query></iq></route>",
+            "<iq type=\"set\" id=\"cm1\" to=\"multiplexer.capulet.lit\" from=\"capulet.lit\">" +
+                    "<session xmlns=\"http://jabber.org/protocol/connectionmanager\" id=\"c2s2\">" +
+                    "<close/></session></iq>",
+            "<route from=\"tybalt@capulet.lit/sword\" to=\"romeo@montague.lit/orchard\" streamid=\"c2s1\">" +
+                    "<message xmlns=\"jabber:client\" from=\"tybalt@capulet.lit/sword\" " +
+                    "to=\"romeo@montague.lit/orchard\" type=\"chat\" id=\"m2\"><body>Boy, this shall not " +
+                    "excuse the injuries that thou hast done me; therefore turn and draw. &amp; &lt;3</body>" +
+                    "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message></route>",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        StringBuilder sb = new StringBuilder(STREAM_HEADER);
+        for (String packet : PACKETS) {
+            sb.append(packet).append(' ');
+        }
+        char[] traffic = sb.toString().toCharArray();
+
+        for (String passthrough : new String[] {"route", null}) {
+            verify(traffic, passthrough);
+        }
+        // Run everything twice so that the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            System.out.println("Round " + (round + 1));
+            for (String passthrough : new String[] {"route", null}) {
+                String mode = passthrough == null ? " (parsed routes)" : " (passthrough routes)";
+                benchmark("Document per packet" + mode, new DocumentReader(), traffic, passthrough,
+                        iterations);
+                benchmark("Element per packet" + mode, new XMPPPacketReader(), traffic, passthrough,
+                        iterations);
+            }
+        }
+    }
+
+    /**
+     * Checks that both ways of reading the traffic return the same packets.
+     */
+    private static void verify(char[] traffic, String passthrough) throws Exception {
+        DocumentReader expected = new DocumentReader();
+        XMPPPacketReader actual = new XMPPPacketReader();
+        start(expected, traffic, passthrough);
+        start(actual, traffic, passthrough);
+        for (int i = 0; i < PACKETS.length; i++) {
+            String expectedXML = expected.read().asXML();
+            String actualXML = actual.parseElement().asXML();
+            if (!expectedXML.equals(actualXML)) {
+                throw new IllegalStateException("Different packets read: " + expectedXML + " " +
+                        actualXML);
+            }
+        }
+    }
+
+    private static void benchmark(String name, XMPPPacketReader reader, char[] traffic,
+            String passthrough, int iterations) throws Exception {
+        int read = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            start(reader, traffic, passthrough);
+            for (int j = 0; j < PACKETS.length; j++) {
+                if (reader instanceof DocumentReader) {
+                    read += ((DocumentReader) reader).read() != null ? 1 : 0;
+                }
+                else {
+                    read += reader.parseElement() != null ? 1 : 0;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long packets = (long) iterations * PACKETS.length;
+        System.out.println(name + ": " + (packets * 1000000000L / Math.max(elapsed, 1)) +
+                " packets/sec (" + read + ")");
+    }
+
+    /**
+     * Sets the traffic as the input of the reader and skips the stream header.
+     */
+    private static void start(XMPPPacketReader reader, char[] traffic, String passthrough)
+            throws Exception {
+        reader.setPassthroughParent(passthrough);
+        XmlPullParser parser = reader.getXPPParser();
+        parser.setInput(new CharArrayReader(traffic));
+        for (int eventType = parser.getEventType(); eventType != XmlPullParser.START_TAG;) {
+            eventType = parser.next();
+        }
+    }
+
+    /**
+     * Reader that reads packets like the server link did before: a Document is created for
+     * every packet and every name is looked up in the caches of the DocumentFactory.
+     */
+    private static class DocumentReader extends XMPPPacketReader {
+
+        Element read() throws Exception {
+            return parseDocument().getRootElement();
+        }
+
+        @Override
+        protected QName getQName(String name, String prefix, String namespace) {
+            return prefix == null ? getDocumentFactory().createQName(name, namespace) :
+                    getDocumentFactory().createQName(name, prefix, namespace);
+        }
+
+        @Override
+        protected QName getAttributeQName(String name) {
+            return getDocumentFactory().createQName(name);
+        }
+    }
+}
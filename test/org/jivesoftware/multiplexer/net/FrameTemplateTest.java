@@ -0,0 +1,65 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+/**
+ * Test that {@link FrameTemplate} creates the same bytes as encoding the stanza text.
+ */
+public class FrameTemplateTest extends TestCase {
+
+    private FrameTemplate route = new FrameTemplate(true,
+            "<route to='example.com' from='cm/Worker - 1' streamid='", "'>", "</route>");
+
+    public void testRoute() throws Exception {
+        String stanza = "<message to=\"a@example.com\"><body>caf\u00e9 \u20ac \ud834\udd1e &amp; &lt;</body></message>";
+        assertEquals("Wrong route",
+                "<route to='example.com' from='cm/Worker - 1' streamid='abc'>" + stanza + "</route>",
+                new String(route.build("abc", stanza), "UTF-8"));
+    }
+
+    public void testEscapedValues() throws Exception {
+        FrameTemplate template = new FrameTemplate(false, "<host name='", "' address='", "'/>");
+        assertEquals("Values were not escaped", "<host name='a&apos;b&lt;&amp;&gt;&quot;\u00e9' address='1.2.3.4'/>",
+                new String(template.build("a'b<&>\"\u00e9", "1.2.3.4"), "UTF-8"));
+        // The payload is not escaped but other values are
+        assertEquals("Wrong payload", "<route to='example.com' from='cm/Worker - 1' streamid='&amp;'><a/></route>",
+                new String(route.build("&", "<a/>"), "UTF-8"));
+    }
+
+    public void testUnpairedSurrogates() throws Exception {
+        String text = "a\ud834b\udd1ec\ud834";
+        String expected = "<route to='example.com' from='cm/Worker - 1' streamid='x'>" + text + "</route>";
+        assertTrue("Wrong encoding of unpaired surrogates",
+                Arrays.equals(expected.getBytes("UTF-8"), route.build("x", text)));
+    }
+
+    public void testWrongValues() {
+        try {
+            route.build("abc");
+            fail("Missing value was accepted");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+import org.dom4j.io.XMPPPacketReader;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+
+/**
+ * Test that stanzas wrapped in route elements are kept as text by {@link XMPPPacketReader}
+ * and that the kept text represents the same stanzas as the parsed DOM.
+ */
+public class PassthroughElementTest extends TestCase {
+
+    private static final String STREAM = "<stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" " +
+            "xmlns=\"jabber:connectionmanager\" from=\"example.com\" id=\"1\">";
+
+    private static final String[] STANZAS = {
+            "<message to=\"a@example.com/r\" type=\"chat\"><body>Hi &amp; &lt;bye&gt; \"q\"</body></message>",
+            "<message xmlns=\"jabber:client\" to=\"a@example.com\"><body>x</body><x xmlns=\"jabber:x:oob\"><url>u</url></x></message>",
+            "<iq type=\"result\" id=\"a&quot;1\"><query xmlns=\"jabber:iq:roster\"><item jid=\"b@example.com\" name=\"B&amp;C\"/></query></iq>",
+            "<success xmlns=\"urn:ietf:params:xml:ns:xmpp-sasl\"/>",
+            "<presence><x:c xmlns:x=\"http://jabber.org/protocol/caps\" node=\"n\"/></presence>",
+    };
+
+    public void testPassthrough() throws Exception {
+        for (String stanza : STANZAS) {
+            Element passthrough = parseRoute(stanza, true);
+            Element parsed = parseRoute(stanza, false);
+            assertTrue("Stanza was parsed into DOM", passthrough instanceof PassthroughElement);
+            assertEquals("Wrong element name", parsed.getName(), passthrough.getName());
+            assertEquals("Wrong attributes", parsed.attributeCount(), passthrough.attributeCount());
+            assertEquals("Wrong to attribute", parsed.attributeValue("to"), passthrough.attributeValue("to"));
+            // Copies are parsed from the kept text so they must match the parsed stanza
+            assertEquals("Text does not match parsed DOM", parsed.asXML(), passthrough.createCopy().asXML());
+        }
+    }
+
+    private Element parseRoute(String stanza, boolean passthrough) throws Exception {
+        XMPPPacketReader reader = new XMPPPacketReader();
+        if (passthrough) {
+            reader.setPassthroughParent("route");
+        }
+        reader.getXPPParser().setInput(new StringReader(STREAM +
+                "<route streamid=\"abc\" from=\"example.com\">" + stanza + "</route>"));
+        // Skip the stream header as done when connecting to the server
+        XmlPullParser xpp = reader.getXPPParser();
+        for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+            eventType = xpp.next();
+        }
+        Element route = reader.parseDocument().getRootElement();
+        assertEquals("Wrong route attribute", "abc", route.attributeValue("streamid"));
+        return (Element) route.elements().get(0);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.jivesoftware.multiplexer.ClientSession;
+import org.jivesoftware.multiplexer.StreamIDFactory;
+
+import java.util.Arrays;
+
+/**
+ * Measures the heap retained by idle client sessions and fails if the footprint grows
+ * beyond the expected size. An idle session is represented by its {@link ClientSession},
+ * its {@link NIOConnection} and the parser kept by the MINA session.<p>
+ *
+ * Retained bytes are measured by comparing the used heap before and after creating many
+ * sessions so the result is an average that includes object headers and padding. Garbage
+ * collections make each measurement vary so the median of several measurements is
+ * compared with a limit that leaves some margin over the usual footprint (about 440 bytes).
+ */
+public class SessionFootprintTest extends TestCase {
+
+    private static final int SESSIONS = 20000;
+    private static final int MEASUREMENTS = 5;
+    /**
+     * Max number of bytes that an idle session may retain.
+     */
+    private static final int MAX_SESSION_BYTES = 640;
+
+    public void testIdleSessionFootprint() {
+        StreamIDFactory idFactory = new StreamIDFactory("cm");
+        // Create sessions once so that classes and static fields are not measured
+        createSession(idFactory);
+        long[] measurements = new long[MEASUREMENTS];
+        for (int i = 0; i < MEASUREMENTS; i++) {
+            measurements[i] = measure(idFactory);
+        }
+        Arrays.sort(measurements);
+        long perSession = measurements[MEASUREMENTS / 2];
+        assertTrue("Idle session retains " + perSession + " bytes, measured: " +
+                Arrays.toString(measurements), perSession <= MAX_SESSION_BYTES);
+    }
+
+    /**
+     * Returns the average number of bytes retained by each of many new idle sessions.
+     */
+    private long measure(StreamIDFactory idFactory) {
+        Object[] sessions = new Object[SESSIONS];
+        long before = usedMemory();
+        for (int i = 0; i < SESSIONS; i++) {
+            sessions[i] = createSession(idFactory);
+        }
+        long after = usedMemory();
+        // Keep the sessions reachable until the heap was measured
+        assertNotNull(sessions[SESSIONS - 1]);
+        return (after - before) / SESSIONS;
+    }
+
+    private static Object createSession(StreamIDFactory idFactory) {
+        NIOConnection connection = new NIOConnection(null, null);
+        ClientSession session = new ClientSession("example.com", connection, idFactory.createStreamID());
+        XMLLightweightParser parser = new XMLLightweightParser("UTF-8");
+        return new Object[] {session, connection, parser};
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect garbage until the used heap does not shrink
+        for (int i = 0; i < 10; i++) {
+            System.gc();
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e) {
+                // Do nothing
+            }
+            long current = runtime.totalMemory() - runtime.freeMemory();
+            if (current >= used) {
+                return current;
+            }
+            used = current;
+        }
+        return used;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Test the pooling and accounting of {@link SizeClassBufferAllocator}.
+ */
+public class SizeClassBufferAllocatorTest extends TestCase {
+
+    public void testReleasedBuffersAreReused() {
+        for (boolean direct : new boolean[] {false, true}) {
+            SizeClassBufferAllocator allocator = new SizeClassBufferAllocator(64 * 1024, 1024 * 1024);
+            ByteBuffer buffer = allocator.allocate(100, direct);
+            assertEquals("Wrong limit of allocated buffer", 100, buffer.limit());
+            assertEquals("Buffer was not rounded to its size class",
+                    SizeClassBufferAllocator.MIN_SIZE, buffer.capacity());
+            assertEquals("Wrong type of buffer", direct, buffer.isDirect());
+            assertEquals("Wrong number of outstanding buffers", 1, allocator.getOutstanding());
+            java.nio.ByteBuffer buf = buffer.buf();
+            buffer.release();
+            assertEquals("Wrong number of outstanding buffers", 0, allocator.getOutstanding());
+
+            ByteBuffer reused = allocator.allocate(SizeClassBufferAllocator.MIN_SIZE, direct);
+            assertSame("Released buffer was not reused", buf, reused.buf());
+            assertEquals("Wrong number of hits", 1, allocator.getHits());
+            assertEquals("Wrong number of misses", 1, allocator.getMisses());
+            reused.release();
+            // Buffers of other size classes or types are not reused
+            allocator.allocate(SizeClassBufferAllocator.MIN_SIZE + 1, direct).release();
+            allocator.allocate(100, !direct).release();
+            assertEquals("Wrong number of misses", 3, allocator.getMisses());
+        }
+    }
+
+    public void testExpandKeepsContent() {
+        SizeClassBufferAllocator allocator = new SizeClassBufferAllocator(64 * 1024, 1024 * 1024);
+        ByteBuffer buffer = allocator.allocate(16, false);
+        buffer.setAutoExpand(true);
+        for (int i = 0; i < 10000; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("Wrong content after expanding buffer", (byte) i, buffer.get());
+        }
+        buffer.release();
+        assertEquals("Wrong number of outstanding buffers", 0, allocator.getOutstanding());
+    }
+
+    public void testMaxPooledBytes() {
+        SizeClassBufferAllocator allocator = new SizeClassBufferAllocator(64 * 1024, 64 * 1024);
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = allocator.allocate(32 * 1024, false);
+        }
+        for (ByteBuffer buffer : buffers) {
+            buffer.release();
+        }
+        assertEquals("Pool exceeded the max pooled bytes", 64 * 1024, allocator.getPooledBytes());
+        // Buffers bigger than the max pooled size are never pooled
+        allocator.allocate(128 * 1024, false).release();
+        assertEquals("Pool exceeded the max pooled bytes", 64 * 1024, allocator.getPooledBytes());
+    }
+
+    public void testDuplicatedBuffersAreNotReused() {
+        SizeClassBufferAllocator allocator = new SizeClassBufferAllocator(64 * 1024, 1024 * 1024);
+        ByteBuffer buffer = allocator.allocate(100, false);
+        ByteBuffer duplicate = buffer.duplicate();
+        buffer.release();
+        ByteBuffer other = allocator.allocate(100, false);
+        assertNotSame("Duplicated buffer was reused", duplicate.array(), other.array());
+    }
+
+    public void testReleaseTwice() {
+        SizeClassBufferAllocator allocator = new SizeClassBufferAllocator(64 * 1024, 1024 * 1024);
+        ByteBuffer buffer = allocator.allocate(100, false);
+        buffer.release();
+        try {
+            buffer.release();
+            fail("Buffer was released twice");
+        }
+        catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals("Wrong number of outstanding buffers", 0, allocator.getOutstanding());
+    }
+}
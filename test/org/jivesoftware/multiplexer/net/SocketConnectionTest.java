@@ -0,0 +1,166 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+import org.jivesoftware.multiplexer.PacketDeliverer;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Test the queued writes of {@link SocketConnection} using a local socket.
+ */
+public class SocketConnectionTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Socket peer;
+    private SocketConnection connection;
+    private final List<Element> backup = new ArrayList<Element>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        peer = serverSocket.accept();
+        connection = new SocketConnection(new PacketDeliverer() {
+            public void deliver(Element doc) {
+                synchronized (backup) {
+                    backup.add(doc);
+                }
+            }
+        }, socket, false);
+        connection.startQueuedWrites("test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        connection.close();
+        peer.close();
+        serverSocket.close();
+    }
+
+    public void testQueuedWritesKeepOrder() throws Exception {
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String stanza = "<message id=\"" + i + "\"><body>" + i + "</body></message>";
+            connection.deliver(stanza);
+            expected.append(stanza);
+        }
+        connection.deliverRawText(" ");
+        expected.append(" ");
+
+        Reader reader = new InputStreamReader(peer.getInputStream(), "UTF-8");
+        char[] buffer = new char[expected.length()];
+        int read = 0;
+        while (read < buffer.length) {
+            int count = reader.read(buffer, read, buffer.length - read);
+            assertTrue("Connection was closed", count > 0);
+            read += count;
+        }
+        assertEquals("Wrong text was written", expected.toString(), new String(buffer));
+        // Statistics are updated after flushing the socket
+        for (int i = 0; i < 100 && connection.getBatchedStanzas() < 1001; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals("Wrong number of stanzas in batches", 1001, connection.getBatchedStanzas());
+        assertEquals("Wrong number of bytes in batches", expected.length(),
+                connection.getBatchedBytes());
+        assertTrue("No batch was written", connection.getBatchCount() > 0);
+        assertTrue("Wrong largest batch", connection.getLargestBatch() >= 1001 / connection.getBatchCount());
+    }
+
+    public void testDeliverWhileClosing() throws Exception {
+        final int stanzas = 2000;
+        Thread sender = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < stanzas; i++) {
+                    connection.deliver("<message id=\"" + i + "\"/>");
+                    if (i == stanzas / 2) {
+                        connection.close();
+                    }
+                }
+            }
+        };
+        sender.start();
+        // Count the stanzas that were written before the socket was closed
+        Reader reader = new InputStreamReader(peer.getInputStream(), "UTF-8");
+        StringBuilder written = new StringBuilder();
+        char[] buffer = new char[4096];
+        try {
+            for (int count = reader.read(buffer); count > 0; count = reader.read(buffer)) {
+                written.append(buffer, 0, count);
+            }
+        }
+        catch (IOException e) {
+            // The connection was reset
+        }
+        sender.join();
+        int sent = 0;
+        for (int i = written.indexOf("<message"); i > -1; i = written.indexOf("<message", i + 1)) {
+            sent++;
+        }
+        // Stanzas may be written and also sent to the backup deliverer if a write failed
+        for (int i = 0; i < 100 && sent + backupSize() < stanzas; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("Stanzas were lost", sent + backupSize() >= stanzas);
+    }
+
+    public void testWriteErrorWithQueuedStanzas() throws Exception {
+        // Reset the connection so that writing to the socket fails
+        peer.setSoLinger(true, 0);
+        peer.close();
+        final int stanzas = 2000;
+        for (int i = 0; i < stanzas; i++) {
+            connection.deliver("<message id=\"" + i + "\"/>");
+        }
+        // Nothing was read so every stanza has to reach the backup deliverer
+        for (int i = 0; i < 100 && backupSize() < stanzas; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue("Connection was not closed", connection.isClosed());
+        assertEquals("Stanzas were lost", stanzas, backupSize());
+    }
+
+    private int backupSize() {
+        synchronized (backup) {
+            return backup.size();
+        }
+    }
+
+    public void testDeliverAfterClose() throws Exception {
+        connection.close();
+        connection.deliver("<message id=\"1\"><body>a</body></message>");
+        synchronized (backup) {
+            assertEquals("Stanza was not sent to the backup deliverer", 1, backup.size());
+            assertEquals("Wrong stanza in backup deliverer", "1", backup.get(0).attributeValue("id"));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Measures the throughput of the stanza framers and of the character reference checks
+ * on typical message stanzas. This is not a test case, run it from the command line:<p>
+ *
+ * <tt>java org.jivesoftware.multiplexer.net.StanzaFramerBenchmark [iterations]</tt>
+ */
+public class StanzaFramerBenchmark {
+
+    private static final String[] STANZAS = {
+            "<message to=\"juliet@capulet.lit/balcony\" type=\"chat\" id=\"m1\"><body>Wherefore art thou, Romeo?</body>" +
+                    "<active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>",
+            "<presence><show>away</show><status>Out for a walk</status><priority>5</priority></presence>",
+            "<iq type=\"get\" id=\"ping1\" to=\"capulet.lit\"><ping xmlns=\"urn:xmpp:ping\"/></iq>",
+            "<message to=\"romeo@montague.lit\" type=\"chat\" id=\"m2\"><body>It is my lady, O, it is my love! " +
+                    "O, that she knew she were! &#169; &lt;3</body></message>",
+    };
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        StringBuilder sb = new StringBuilder();
+        for (String stanza : STANZAS) {
+            sb.append(stanza);
+        }
+        byte[] data = sb.toString().getBytes("UTF-8");
+
+        // Run everything twice so that the first round warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            System.out.println("Round " + (round + 1));
+            benchmarkCharacterReferences(iterations);
+            benchmarkFramer("XMLLightweightParser", new XMLLightweightParser("UTF-8"), data, iterations);
+            benchmarkFramer("UTF8StanzaFramer", new UTF8StanzaFramer(), data, iterations);
+            benchmarkFramer("ValidatingStanzaFramer", new ValidatingStanzaFramer(), data, iterations);
+        }
+    }
+
+    /**
+     * Compares the regex based check of complete stanzas with the incremental check
+     * done by the framers.
+     */
+    private static void benchmarkCharacterReferences(int iterations) {
+        int illegal = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (String stanza : STANZAS) {
+                if (XMLLightweightParser.hasIllegalCharacterReferences(stanza)) {
+                    illegal++;
+                }
+            }
+        }
+        report("Regex char refs", start, iterations, illegal);
+
+        CharacterReferenceVerifier verifier = new CharacterReferenceVerifier();
+        illegal = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (String stanza : STANZAS) {
+                verifier.reset();
+                for (int j = 0, length = stanza.length(); j < length; j++) {
+                    if (!verifier.verify(stanza.charAt(j))) {
+                        illegal++;
+                    }
+                }
+            }
+        }
+        report("Incremental char refs", start, iterations, illegal);
+    }
+
+    private static void benchmarkFramer(String name, StanzaFramer framer, byte[] data, int iterations)
+            throws Exception {
+        int found = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            framer.read(ByteBuffer.wrap(data));
+            found += framer.getMsgs().length;
+        }
+        report(name, start, iterations, found);
+    }
+
+    private static void report(String name, long start, int iterations, int result) {
+        long elapsed = System.nanoTime() - start;
+        long stanzas = (long) iterations * STANZAS.length;
+        System.out.println(name + ": " + (stanzas * 1000000000L / Math.max(elapsed, 1)) +
+                " stanzas/sec (" + result + ")");
+    }
+}
@@ -0,0 +1,128 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Namespace;
+import org.dom4j.QName;
+import org.dom4j.io.XMPPPacketReader;
+
+import java.io.StringReader;
+
+/**
+ * Test that {@link StanzaSerializer} writes the same text that {@link Element#asXML()}
+ * returns.
+ */
+public class StanzaSerializerTest extends TestCase {
+
+    private static final String[] STANZAS = new String[] {
+            "<message to=\"a@b.c\" type=\"chat\"><body>Hi &amp; &lt;bye&gt; \"'</body></message>",
+            "<presence xmlns=\"jabber:client\" from=\"a@b.c/r\"><status>\u00e9\u4e2d\ud83d\ude00</status>" +
+                    "<c xmlns=\"http://jabber.org/protocol/caps\" node=\"n\" ver=\"v\"/></presence>",
+            "<iq type=\"get\" id=\"1\"><query xmlns=\"jabber:iq:roster\"><item jid=\"x&quot;y\"/>" +
+                    "</query></iq>",
+            "<iq type=\"result\"><x xmlns:y=\"urn:y\" y:attr=\"v\"><y:z/></x><e xmlns=''/></iq>",
+            "<message><body><![CDATA[<raw>]]></body><!--comment--><b>a\tb\r\nc</b></message>",
+            "<stream:error xmlns:stream=\"http://etherx.jabber.org/streams\"><conflict " +
+                    "xmlns=\"urn:ietf:params:xml:ns:xmpp-streams\"/></stream:error>"
+    };
+
+    public void testParsedStanzas() throws Exception {
+        for (String stanza : STANZAS) {
+            XMPPPacketReader reader = new XMPPPacketReader();
+            Element element = reader.read(new StringReader(stanza)).getRootElement();
+            assertSerialized(element);
+        }
+    }
+
+    public void testCreatedStanzas() throws Exception {
+        Element iq = DocumentHelper.createElement("iq");
+        iq.addAttribute("type", "error");
+        iq.addAttribute("to", "a\u0001b<c>\"d\"");
+        Element error = iq.addElement("error");
+        error.addAttribute("type", "cancel");
+        error.addElement("unexpected-request").addAttribute("xmlns",
+                "urn:ietf:params:xml:ns:xmpp-stanzas");
+        error.addElement(QName.get("text", "urn:ietf:params:xml:ns:xmpp-stanzas"))
+                .setText("\u00e9\ud800x\u0002");
+        Element session = DocumentHelper.createElement(QName.get("session",
+                new Namespace("", "urn:ietf:params:xml:ns:xmpp-session")));
+        assertSerialized(iq);
+        assertSerialized(session);
+        assertSerialized(new PassthroughElement(QName.get("presence"), "<presence from=\"a@b.c\"/>"));
+    }
+
+    public void testReplacedNamespace() throws Exception {
+        XMPPPacketReader reader = new XMPPPacketReader();
+        Element element = reader.read(new StringReader(
+                "<message to=\"a@b.c\"><body>Hi</body></message>")).getRootElement();
+        StringBuilder builder = new StringBuilder();
+        StanzaSerializer.append(element, "jabber:client", builder);
+        assertEquals("Wrong namespace was declared",
+                "<message xmlns=\"jabber:client\" to=\"a@b.c\"><body>Hi</body></message>",
+                builder.toString());
+
+        element = reader.read(new StringReader(
+                "<iq xmlns=\"jabber:server\"><query xmlns=\"jabber:iq:roster\"/></iq>"))
+                .getRootElement();
+        builder = new StringBuilder();
+        StanzaSerializer.append(element, "jabber:client", builder);
+        assertEquals("Wrong namespace was declared",
+                "<iq xmlns=\"jabber:client\"><query xmlns=\"jabber:iq:roster\"/></iq>",
+                builder.toString());
+
+        // Passthrough elements replace the declaration like DOM elements do
+        element = new PassthroughElement(QName.get("message"),
+                "<message to=\"a@b.c\" id='x=\"1\"'\n xmlns = 'jabber:server'" +
+                        "><body xmlns=\"jabber:y\">Hi</body></message>");
+        builder = new StringBuilder();
+        StanzaSerializer.append(element, "jabber:client", builder);
+        assertEquals("Wrong namespace was declared",
+                "<message xmlns=\"jabber:client\" to=\"a@b.c\" id='x=\"1\"'><body " +
+                        "xmlns=\"jabber:y\">Hi</body></message>",
+                builder.toString());
+        element = new PassthroughElement(QName.get("presence"),
+                "<presence xmlns:a=\"urn:a\" a:b=\"c\"/>");
+        builder = new StringBuilder();
+        StanzaSerializer.append(element, "jabber:client", builder);
+        assertEquals("Wrong namespace was declared",
+                "<presence xmlns=\"jabber:client\" xmlns:a=\"urn:a\" a:b=\"c\"/>",
+                builder.toString());
+    }
+
+    private static void assertSerialized(Element element) throws Exception {
+        String expected = element.asXML();
+        StringBuilder builder = new StringBuilder();
+        StanzaSerializer.append(element, builder);
+        assertEquals("Wrong serialized text", expected, builder.toString());
+
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        StanzaSerializer.write(element, buffer);
+        buffer.flip();
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        assertEquals("Wrong serialized bytes", new String(expected.getBytes("UTF-8"), "UTF-8"),
+                new String(bytes, "UTF-8"));
+        assertEquals("Wrong number of serialized bytes", expected.getBytes("UTF-8").length,
+                bytes.length);
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Runs the test cases of {@link XMLLightweightParserTest} against {@link UTF8StanzaFramer}
+ * and adds a few test cases that are specific to framing bytes.
+ */
+public class UTF8StanzaFramerTest extends XMLLightweightParserTest {
+
+    @Override
+    protected StanzaFramer createParser() {
+        return new UTF8StanzaFramer();
+    }
+
+    public void testSplitMultiByteChar() throws Exception {
+        UTF8StanzaFramer framer = new UTF8StanzaFramer();
+        String stanza = "<message><body>é中😀</body></message>";
+        byte[] bytes = stanza.getBytes("UTF-8");
+        // Feed the framer one byte at a time so that every multi-byte char is split
+        for (byte b : bytes) {
+            framer.read(ByteBuffer.wrap(new byte[]{b}));
+        }
+        assertTrue("No messages were found in stanza", framer.areThereMsgs());
+        String[] msgs = framer.getMsgs();
+        assertEquals("Wrong number of parsed stanzas", 1, msgs.length);
+        assertEquals("Wrong stanza was parsed", stanza, msgs[0]);
+    }
+
+    public void testOffsets() throws Exception {
+        UTF8StanzaFramer framer = new UTF8StanzaFramer();
+        String msg1 = "<presence/>";
+        String msg2 = "<message><body>é</body></message>";
+        String msg3 = "<iq type=\"get\"><ping xmlns=\"urn:xmpp:ping\"/></iq>";
+        framer.read(ByteBuffer.wrap((msg1 + msg2 + msg3 + "<mess").getBytes("UTF-8")));
+        assertEquals("Wrong number of parsed stanzas", 3, framer.getMsgsCount());
+        byte[] buffer = framer.getBuffer();
+        String[] expected = {msg1, msg2, msg3};
+        for (int i = 0; i < expected.length; i++) {
+            int start = framer.getMsgStart(i);
+            assertEquals("Wrong stanza boundaries", expected[i],
+                    new String(buffer, start, framer.getMsgEnd(i) - start, "UTF-8"));
+        }
+        framer.getMsgs();
+        // Complete the pending stanza that was moved to the start of the buffer
+        framer.read(ByteBuffer.wrap("age/>".getBytes("UTF-8")));
+        assertEquals("Wrong number of parsed stanzas", 1, framer.getMsgsCount());
+        assertEquals("Pending stanza was not moved to the start of the buffer", 0, framer.getMsgStart(0));
+        assertEquals("Wrong stanza was parsed", "<message/>", framer.getMsgs()[0]);
+    }
+
+    public void testUnpairedHighSurrogate() throws Exception {
+        byte[] message = {'<', 'a', '>', (byte) 0xed, (byte) 0xa0, (byte) 0x80, 'b', '<', '/', 'a', '>'};
+        try {
+            new UTF8StanzaFramer().read(ByteBuffer.wrap(message));
+            fail("Failed to detect a high surrogate not followed by a low surrogate");
+        } catch (Exception e) {
+            assertEquals("Incorrect exception was received", "Found high surrogate not followed by low surrogate", e.getMessage());
+        }
+    }
+}
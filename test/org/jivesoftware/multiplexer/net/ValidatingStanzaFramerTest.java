@@ -0,0 +1,116 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Runs the test cases of {@link UTF8StanzaFramerTest} against {@link ValidatingStanzaFramer}
+ * and adds test cases for the headers and the validation of the found stanzas.
+ */
+public class ValidatingStanzaFramerTest extends UTF8StanzaFramerTest {
+
+    @Override
+    protected StanzaFramer createParser() {
+        return new ValidatingStanzaFramer();
+    }
+
+    public void testHeaders() throws Exception {
+        ValidatingStanzaFramer framer = new ValidatingStanzaFramer();
+        String stream = "<stream:stream to=\"example.com\" xmlns=\"jabber:client\" " +
+                "xmlns:stream=\"http://etherx.jabber.org/streams\">";
+        String msg = "<message to='a@b/&amp;c' type=\"chat\" id=\"1\"><body to='x'>hi</body></message>";
+        String iq = "<jabber:iq xmlns:jabber='jabber:client' id='2'><query/></jabber:iq>";
+        framer.read(ByteBuffer.wrap((stream + msg + " " + iq + "</stream:stream>").getBytes("UTF-8")));
+        StanzaHeader[] stanzas = framer.getStanzas();
+        assertEquals("Wrong number of parsed stanzas", 4, stanzas.length);
+        assertEquals("Wrong stanza was parsed", stream, stanzas[0].getXML());
+        assertEquals("Wrong root name", "stream", stanzas[0].getName());
+        assertEquals("Wrong stanza was parsed", msg, stanzas[1].getXML());
+        assertEquals("Wrong root name", "message", stanzas[1].getName());
+        assertEquals("Wrong to attribute", "a@b/&c", stanzas[1].getTo());
+        assertEquals("Wrong id attribute", "1", stanzas[1].getId());
+        assertEquals("Wrong type attribute", "chat", stanzas[1].getType());
+        assertEquals("Wrong root name", "iq", stanzas[2].getName());
+        assertNull("Attribute of child element was used", stanzas[2].getTo());
+        assertEquals("Wrong id attribute", "2", stanzas[2].getId());
+        assertEquals("Wrong stanza was parsed", "</stream:stream>", stanzas[3].getXML());
+        assertNull("Closing stream has no root", stanzas[3].getName());
+    }
+
+    public void testSplitTokens() throws Exception {
+        ValidatingStanzaFramer framer = new ValidatingStanzaFramer();
+        framer.read(ByteBuffer.wrap("<presence/><message to".getBytes("UTF-8")));
+        assertEquals("Wrong number of parsed stanzas", 1, framer.getStanzas().length);
+        // The pending stanza is moved to the start of the buffer while reading an attribute
+        framer.read(ByteBuffer.wrap("='a@b' id='&#x".getBytes("UTF-8")));
+        framer.read(ByteBuffer.wrap("41;'></mess".getBytes("UTF-8")));
+        framer.read(ByteBuffer.wrap("age>".getBytes("UTF-8")));
+        StanzaHeader[] stanzas = framer.getStanzas();
+        assertEquals("Wrong number of parsed stanzas", 1, stanzas.length);
+        assertEquals("Wrong to attribute", "a@b", stanzas[0].getTo());
+        assertEquals("Wrong id attribute", "A", stanzas[0].getId());
+    }
+
+    public void testNamespacePrefixes() throws Exception {
+        ValidatingStanzaFramer framer = new ValidatingStanzaFramer();
+        String msg = "<message xmlns:a='a' a:id='1' xml:lang='en'><a:x xmlns:b='b'>" +
+                "<b:y b:z='2'/></a:x><c:x xmlns:c='c'/></message>";
+        framer.read(ByteBuffer.wrap(msg.getBytes("UTF-8")));
+        StanzaHeader[] stanzas = framer.getStanzas();
+        assertEquals("Wrong number of parsed stanzas", 1, stanzas.length);
+        assertEquals("Wrong stanza was parsed", msg, stanzas[0].getXML());
+        // Prefixes are only bound within the stanza that declared them
+        try {
+            framer.read(ByteBuffer.wrap("<a:x/>".getBytes("UTF-8")));
+            fail("Prefix declared by a previous stanza was accepted");
+        } catch (XMLNotWellFormedException e) {
+            // Expected
+        }
+    }
+
+    public void testMalformedStanzas() throws Exception {
+        String[] stanzas = {
+                "<message><body></message></body>",
+                "<message to=a@b/>",
+                "<message to='a' to='b'/>",
+                "<message to='a'type='b'/>",
+                "<message><body>&nbsp;</body></message>",
+                "<message><body>&#x1;</body></message>",
+                "<message><body>&#;</body></message>",
+                "<message to='<'/>",
+                "</message>",
+                "hello<message/>",
+                "<!DOCTYPE foo><message/>",
+                "<stream:error/>",
+                "<message><x:body xmlns:y='y'/></message>",
+                "<message><x:body xmlns:x='x'/><x:body/></message>",
+                "<message x:to='a'/>",
+                "<message xmlns:='a'/>",
+        };
+        for (String stanza : stanzas) {
+            try {
+                new ValidatingStanzaFramer().read(ByteBuffer.wrap(stanza.getBytes("UTF-8")));
+                fail("Failed to detect malformed stanza: " + stanza);
+            } catch (XMLNotWellFormedException e) {
+                // Expected
+            }
+        }
+    }
+}
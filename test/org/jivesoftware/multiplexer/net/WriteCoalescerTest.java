@@ -0,0 +1,102 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.IoHandlerAdapter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.transport.socket.nio.SocketAcceptor;
+
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the coalesced writes of {@link WriteCoalescer} using a local MINA session.
+ */
+public class WriteCoalescerTest extends TestCase {
+
+    private SocketAcceptor acceptor;
+    private InetSocketAddress address;
+    private Socket peer;
+    private IoSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final BlockingQueue<IoSession> sessions = new ArrayBlockingQueue<IoSession>(1);
+        acceptor = new SocketAcceptor();
+        address = new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0);
+        acceptor.bind(address, new IoHandlerAdapter() {
+            @Override
+            public void sessionOpened(IoSession session) throws Exception {
+                sessions.add(session);
+            }
+        });
+        // Get the port that was assigned to the acceptor
+        address = (InetSocketAddress) acceptor.getManagedServiceAddresses().iterator().next();
+        peer = new Socket(address.getAddress(), address.getPort());
+        session = sessions.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Session was not opened", session);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+        peer.close();
+        acceptor.unbindAll();
+    }
+
+    public void testCoalescedWritesKeepOrder() throws Exception {
+        WriteCoalescer writer = new WriteCoalescer(session);
+        CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+        long requests = WriteCoalescer.getWriteRequests();
+        long coalesced = WriteCoalescer.getCoalescedWrites();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            String stanza = "<presence from=\"user" + i + "@example.com/r\"><show>\u00e9</show></presence>";
+            writer.write(stanza, encoder, false);
+            expected.append(stanza);
+        }
+        writer.writeNow("</stream:stream>", encoder, true).join(10000);
+        expected.append("</stream:stream>").append('\0');
+
+        Reader reader = new InputStreamReader(peer.getInputStream(), "UTF-8");
+        char[] buffer = new char[expected.length()];
+        int read = 0;
+        while (read < buffer.length) {
+            int count = reader.read(buffer, read, buffer.length - read);
+            assertTrue("Connection was closed", count > 0);
+            read += count;
+        }
+        assertEquals("Wrong text was written", expected.toString(), new String(buffer));
+        // Stanzas written while the first write was in progress share a few write requests
+        long written = WriteCoalescer.getWriteRequests() - requests;
+        assertTrue("Writes were not coalesced: " + written + " write requests", written <= 100);
+        assertTrue("Too few writes were coalesced",
+                WriteCoalescer.getCoalescedWrites() - coalesced >= 900);
+    }
+}
@@ -40,9 +40,19 @@ public class XMLLightweightParserTest extends TestCase {
 
     private final static String CHARSET = "UTF-8";
 
-    private XMLLightweightParser parser;
+    private StanzaFramer parser;
     private ByteBuffer in;
 
+    /**
+     * Creates the stanza framer to test. Subclasses may override this method to run
+     * the same test cases against other framers.
+     *
+     * @return the stanza framer to test.
+     */
+    protected StanzaFramer createParser() {
+        return new XMLLightweightParser(CHARSET);
+    }
+
     public void testHeader() throws Exception {
         String msg1 =
                 "<stream:stream to=\"localhost\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">";
@@ -382,15 +392,15 @@ public class XMLLightweightParserTest extends TestCase {
         ByteBuffer mybuffer = ByteBuffer.wrap(message);
         try {
             parser.read(mybuffer);
-            fail("Failed to detect a low surrogate char without a preceding high surrogate");
+            fail("Failed to detect an invalid char");
         } catch (Exception e) {
-            assertEquals("Incorrect exception was received", "Found low surrogate char without a preceding high surrogate", e.getMessage());
+            assertEquals("Incorrect exception was received", "Character is invalid in: " + (char) 0x7, e.getMessage());
         }
     }
 
     public void testRead() {
         try {
-            XMLLightweightParser parser = new XMLLightweightParser("UTF-8");
+            StanzaFramer parser = createParser();
             String xml1 = "<ab>\u1000</a";
             String xml2 = "b>";
             ByteBuffer buffer1 = ByteBuffer.wrap(xml1.getBytes("UTF-8"));
@@ -414,10 +424,67 @@ public class XMLLightweightParserTest extends TestCase {
         }
     }
 
+    public void testLegalCharacterReferences() throws Exception {
+        String msg = "<message><body>&#65;&#x42;&#x10FFFF;&#0000009;&amp;#1;</body></message>";
+        in.putString(msg, Charset.forName(CHARSET).newEncoder());
+        in.flip();
+        // Fill parser with byte buffer content and parse it
+        parser.read(in);
+        // Make verifications
+        assertTrue("Character references were rejected", parser.areThereMsgs());
+        assertEquals("Wrong stanza was parsed", msg, parser.getMsgs()[0]);
+    }
+
+    public void testIllegalCharacterReferences() throws Exception {
+        String[] messages = {"<message><body>&#1;</body></message>",
+                "<message><body>&#x1F;</body></message>", "<message><body>&#xFFFE;</body></message>",
+                "<message><body>&#55296;</body></message>", "<message to=\"&#x110000;\"/>",
+                "<message><body>&#99999999999999;</body></message>"};
+        for (String message : messages) {
+            try {
+                createParser().read(ByteBuffer.wrap(message.getBytes(CHARSET)));
+                fail("Failed to detect illegal character reference in: " + message);
+            } catch (Exception e) {
+                assertTrue("Incorrect exception was received", e.getMessage().startsWith("Illegal character reference found in: "));
+            }
+        }
+    }
+
+    public void testSplitIllegalCharacterReference() throws Exception {
+        // The reference is split across reads
+        parser.read(ByteBuffer.wrap("<message><body>&#x".getBytes(CHARSET)));
+        try {
+            parser.read(ByteBuffer.wrap("0;</body></message>".getBytes(CHARSET)));
+            fail("Failed to detect illegal character reference split across reads");
+        } catch (Exception e) {
+            assertTrue("Incorrect exception was received", e.getMessage().startsWith("Illegal character reference found in: "));
+        }
+    }
+
+    public void testCompactIdleParser() throws Exception {
+        // Parsers holding an incomplete stanza must keep their buffers
+        parser.read(ByteBuffer.wrap("<message><body>a".getBytes(CHARSET)));
+        assertFalse("Parser with incomplete stanza was compacted", parser.compact());
+        parser.read(ByteBuffer.wrap("</body></message> ".getBytes(CHARSET)));
+        // Parsers holding stanzas that were not consumed must keep their buffers
+        assertFalse("Parser with pending stanzas was compacted", parser.compact());
+        assertEquals("Wrong stanza was parsed", "<message><body>a</body></message>", parser.getMsgs()[0]);
+        assertTrue("Idle parser was not compacted", parser.compact());
+        assertTrue("Parser is not compacted", parser.isCompacted());
+        assertFalse("Parser was compacted twice", parser.compact());
+        // Buffers are allocated again when more data is read
+        parser.read(ByteBuffer.wrap("<presence/><iq type=\"get\"><ping/></iq>".getBytes(CHARSET)));
+        assertFalse("Parser is still compacted", parser.isCompacted());
+        String[] values = parser.getMsgs();
+        assertEquals("Wrong number of parsed stanzas", 2, values.length);
+        assertEquals("Wrong stanza was parsed", "<presence/>", values[0]);
+        assertEquals("Wrong stanza was parsed", "<iq type=\"get\"><ping/></iq>", values[1]);
+    }
+
     protected void setUp() throws Exception {
         super.setUp();
         // Create parser
-        parser = new XMLLightweightParser(CHARSET);
+        parser = createParser();
         // Crete byte buffer and append text
         in = ByteBuffer.allocate(4096);
         in.setAutoExpand(true);
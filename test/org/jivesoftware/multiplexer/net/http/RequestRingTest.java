@@ -0,0 +1,85 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Test that a {@link RequestRing} finds items by rid while the rids move forward and
+ * grows when rids outside of its window are added.
+ */
+public class RequestRingTest extends TestCase {
+
+    public void testSlidingWindow() {
+        RequestRing<String> ring = new RequestRing<String>(4);
+        for (long rid = 1000; rid < 1100; rid++) {
+            assertNull("Slot was not free", ring.put(rid, "r" + rid));
+            assertEquals("Wrong item", "r" + rid, ring.get(rid));
+            if (rid >= 1003) {
+                assertEquals("Wrong removed item", "r" + (rid - 3), ring.remove(rid - 3));
+            }
+            assertNull("Removed item was found", ring.get(rid - 3));
+        }
+        assertEquals("Wrong size", 3, ring.size());
+        assertEquals("Wrong highest rid", 1099, ring.getHighestRid());
+        assertEquals("Wrong items", Arrays.asList("r1097", "r1098", "r1099"), ring.values());
+    }
+
+    public void testReplaceAndRemove() {
+        RequestRing<String> ring = new RequestRing<String>(2);
+        ring.put(5, "a");
+        assertEquals("Replaced item was not returned", "a", ring.put(5, "b"));
+        assertEquals("Wrong size", 1, ring.size());
+        assertFalse("Other item was removed", ring.remove(5, "a"));
+        assertTrue("Item was not removed", ring.remove(5, "b"));
+        assertTrue("Ring is not empty", ring.isEmpty());
+        assertEquals("Wrong highest rid", -1, ring.getHighestRid());
+    }
+
+    public void testGrowth() {
+        RequestRing<String> ring = new RequestRing<String>(1);
+        // Rids out of order and farther apart than the window
+        long[] rids = {17, 3, 11, 4, 10, 16};
+        for (long rid : rids) {
+            assertNull("Item was replaced", ring.put(rid, "r" + rid));
+        }
+        for (long rid : rids) {
+            assertEquals("Item was lost", "r" + rid, ring.get(rid));
+        }
+        assertEquals("Wrong items", Arrays.asList("r3", "r4", "r10", "r11", "r16", "r17"),
+                ring.values());
+
+        ring.removeBefore(11);
+        assertEquals("Wrong items", Arrays.asList("r11", "r16", "r17"), ring.values());
+        for (Iterator<String> it = ring.iterator(); it.hasNext();) {
+            if ("r16".equals(it.next())) {
+                it.remove();
+            }
+        }
+        assertEquals("Wrong items", Arrays.asList("r11", "r17"), ring.values());
+
+        // Once the ring is full items of other rids are replaced
+        RequestRing<String> full = new RequestRing<String>(RequestRing.MAX_CAPACITY);
+        full.put(1, "a");
+        assertEquals("Item was not replaced", "a", full.put(1 + RequestRing.MAX_CAPACITY, "b"));
+        assertNull("Replaced item was found", full.get(1));
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+
+/**
+ * Test that {@link IntProperty} and {@link BooleanProperty} follow the changes to the
+ * local properties.
+ */
+public class JivePropertyTest extends TestCase {
+
+    private File home;
+
+    @Override
+    protected void setUp() throws Exception {
+        home = File.createTempFile("home", null);
+        home.delete();
+        File conf = new File(home, "conf");
+        conf.mkdirs();
+        FileWriter writer = new FileWriter(new File(conf, "manager.xml"));
+        writer.write("<manager><test><property><size>20</size></property></test></manager>");
+        writer.close();
+        JiveGlobals.setHomeDirectory(home.getPath());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File file : new File(home, "conf").listFiles()) {
+            file.delete();
+        }
+        new File(home, "conf").delete();
+        home.delete();
+    }
+
+    public void testChanges() {
+        IntProperty size = new IntProperty("test.property.size", 10);
+        BooleanProperty enabled = new BooleanProperty("test.property.enabled", true);
+        assertEquals("Property was not loaded", 20, size.get());
+        assertTrue("Default value was not used", enabled.get());
+
+        JiveGlobals.setXMLProperty("test.property.enabled", "false");
+        assertFalse("Property was not updated", enabled.get());
+        JiveGlobals.setXMLProperty("test.property.size", "30");
+        assertEquals("Property was not updated", 30, size.get());
+        JiveGlobals.setXMLProperty("test.property.size", "big");
+        assertEquals("Default value was not used", 10, size.get());
+
+        IntProperty other = new IntProperty("test.property.size", 5);
+        assertEquals("Default value was not used", 5, other.get());
+        JiveGlobals.setXMLProperty("test.property.size", "40");
+        assertEquals("Property was not updated", 40, other.get());
+
+        JiveGlobals.deleteXMLProperty("test.property.size");
+        JiveGlobals.deleteXMLProperty("test.property.enabled");
+        assertEquals("Default value was not used", 10, size.get());
+        assertEquals("Default value was not used", 5, other.get());
+        assertTrue("Default value was not used", enabled.get());
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import gnu.inet.encoding.IDNA;
+import gnu.inet.encoding.Stringprep;
+import junit.framework.TestCase;
+
+/**
+ * Test that {@link StringUtils#validateJID(String)} accepts the same JIDs that stringprep
+ * accepts.
+ */
+public class StringUtilsTest extends TestCase {
+
+    public void testASCIICharacters() {
+        for (char ch = 0; ch < 0x80; ch++) {
+            assertValidation("a" + ch + "b@example.com/res");
+            assertValidation("node@exa" + ch + "mple.com/res");
+            assertValidation("node@" + ch + ".example.com/res");
+            assertValidation("node@example.com/r" + ch + "s");
+        }
+    }
+
+    public void testOtherJIDs() {
+        String[] jids = {
+                "example.com", "node@example.com", "example.com/res", "Node@Example.COM/Res",
+                "node@-example.com", "node@example-.com", "node@exa-mple.com", "node@example..com",
+                "node@example.com.", "node@.example.com", "@example.com", "node@", "node@/res",
+                "example.com/", "node@example.com/res/more@other", "a/b@c", "a/b@c/d",
+                "n\u00f6de@ex\u00e4mple.com/r\u00e9s", "node@\u0440\u0444.example/res",
+                "node@" + repeat("a", 63) + ".com", "node@" + repeat("a", 64) + ".com",
+                repeat("n", 511) + "@example.com", repeat("n", 512) + "@example.com",
+                "node@example.com/" + repeat("r", 512)};
+        for (String jid : jids) {
+            assertValidation(jid);
+        }
+        assertTrue("Null JID is valid", StringUtils.validateJID(null));
+    }
+
+    public void testCache() {
+        String jid = "cached@example.com/res";
+        assertTrue("JID was not valid", StringUtils.validateJID(jid));
+        long hits = StringUtils.getJIDCacheHits();
+        long misses = StringUtils.getJIDCacheMisses();
+        assertTrue("JID was not valid", StringUtils.validateJID(jid));
+        assertEquals("JID was not found in the cache", hits + 1, StringUtils.getJIDCacheHits());
+        assertEquals("JID was not found in the cache", misses, StringUtils.getJIDCacheMisses());
+        // Invalid JIDs are not cached
+        assertFalse("JID was valid", StringUtils.validateJID("a b@example.com"));
+        assertFalse("JID was valid", StringUtils.validateJID("a b@example.com"));
+        assertEquals("Invalid JID was cached", misses + 2, StringUtils.getJIDCacheMisses());
+    }
+
+    private static void assertValidation(String jid) {
+        assertEquals("Wrong validation of " + jid, validate(jid), StringUtils.validateJID(jid));
+    }
+
+    /**
+     * Validates the JID preparing every part with stringprep.
+     */
+    private static boolean validate(String jid) {
+        int slashIndex = jid.indexOf('/');
+        String bare = slashIndex < 0 ? jid : jid.substring(0, slashIndex);
+        String resource = slashIndex < 0 ? "" : jid.substring(slashIndex + 1);
+        int atIndex = bare.indexOf('@');
+        String node = atIndex < 0 ? "" : bare.substring(0, atIndex);
+        String domain = bare.substring(atIndex + 1);
+        try {
+            if (node.length() > 0 && Stringprep.nodeprep(node).length() * 2 > 1023) {
+                return false;
+            }
+            if (Stringprep.nameprep(IDNA.toASCII(domain), false).length() * 2 > 1023) {
+                return false;
+            }
+            if (resource.length() > 0 && Stringprep.resourceprep(resource).length() * 2 > 1023) {
+                return false;
+            }
+        }
+        catch (Exception e) {
+            return false;
+        }
+        return true;
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+}
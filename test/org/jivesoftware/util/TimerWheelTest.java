@@ -0,0 +1,115 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.util;
+
+import junit.framework.TestCase;
+
+import java.util.TimerTask;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test that timeouts of a {@link TimerWheel} expire after their delay unless they are
+ * cancelled.
+ */
+public class TimerWheelTest extends TestCase {
+
+    private TimerWheel wheel;
+
+    @Override
+    protected void setUp() throws Exception {
+        // A small wheel so that timeouts need more than one round
+        wheel = new TimerWheel("test-wheel", 10, 4, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        wheel.stop();
+    }
+
+    public void testExpiration() throws Exception {
+        int count = 50;
+        final CountDownLatch latch = new CountDownLatch(count);
+        final long[] expirations = new long[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            wheel.schedule(new Runnable() {
+                public void run() {
+                    expirations[index] = System.nanoTime();
+                    latch.countDown();
+                }
+            }, i * 5);
+        }
+        assertTrue("Timeouts did not expire", latch.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < count; i++) {
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(expirations[i] - start);
+            assertTrue("Timeout " + i + " expired early: " + elapsed, elapsed >= i * 5);
+        }
+        assertEquals("Wrong number of expired timeouts", count, wheel.getExpiredTimeouts());
+        assertEquals("Wrong number of pending timeouts", 0, wheel.getPendingTimeouts());
+    }
+
+    public void testCancel() throws Exception {
+        final AtomicInteger runs = new AtomicInteger(0);
+        Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        TimerWheel.Timeout cancelled = wheel.schedule(task, 60);
+        TimerWheel.Timeout expired = wheel.schedule(task, 30);
+        // Cancel a timeout once it is in the wheel
+        Thread.sleep(20);
+        assertTrue("Timeout was not cancelled", cancelled.cancel());
+        assertFalse("Timeout was cancelled twice", cancelled.cancel());
+        assertEquals("Wrong number of pending timeouts", 1, wheel.getPendingTimeouts());
+        // Cancel a timeout before it is added to the wheel
+        wheel.schedule(task, 0).cancel();
+        Thread.sleep(200);
+        assertTrue("Timeout did not expire", expired.isExpired());
+        assertFalse("Expired timeout was cancelled", expired.cancel());
+        assertTrue("Timeout was not cancelled", cancelled.isCancelled());
+        assertEquals("Cancelled timeouts expired", 1, runs.get());
+        assertEquals("Wrong number of pending timeouts", 0, wheel.getPendingTimeouts());
+    }
+
+    public void testTaskEngine() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(3);
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                latch.countDown();
+                // Periodic tasks keep running after errors
+                throw new IllegalStateException("Error in task");
+            }
+        };
+        TaskEngine taskEngine = TaskEngine.getInstance();
+        taskEngine.scheduleAtFixedRate(task, 0, 10);
+        final CountDownLatch timeout = new CountDownLatch(1);
+        taskEngine.newTimeout(new Runnable() {
+            public void run() {
+                timeout.countDown();
+            }
+        }, 10);
+        assertTrue("Task did not run periodically", latch.await(5, TimeUnit.SECONDS));
+        assertTrue("Timeout did not expire", timeout.await(5, TimeUnit.SECONDS));
+        taskEngine.cancelScheduledTask(task);
+    }
+}